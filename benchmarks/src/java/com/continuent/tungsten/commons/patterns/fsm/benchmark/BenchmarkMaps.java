@@ -0,0 +1,201 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+
+package com.continuent.tungsten.commons.patterns.fsm.benchmark;
+
+import com.continuent.tungsten.commons.patterns.fsm.Action;
+import com.continuent.tungsten.commons.patterns.fsm.EntityAdapter;
+import com.continuent.tungsten.commons.patterns.fsm.Event;
+import com.continuent.tungsten.commons.patterns.fsm.EventTypeGuard;
+import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
+import com.continuent.tungsten.commons.patterns.fsm.RegexGuard;
+import com.continuent.tungsten.commons.patterns.fsm.State;
+import com.continuent.tungsten.commons.patterns.fsm.StateTransitionMap;
+import com.continuent.tungsten.commons.patterns.fsm.StateType;
+import com.continuent.tungsten.commons.patterns.fsm.Transition;
+
+/**
+ * Builds the state transition maps used by the benchmarks. Every map has a
+ * START state that moves on a "start" event to the state under test and an
+ * END state so that the map passes validation.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class BenchmarkMaps
+{
+    /** Entity type used by all benchmark maps. */
+    static final class BenchEntity extends EntityAdapter<Object>
+    {
+        BenchEntity()
+        {
+            super(null);
+        }
+    }
+
+    /** Event type accepted by typed transitions that never match. */
+    static final class MissEvent extends Event<Object>
+    {
+        MissEvent()
+        {
+            super(null);
+        }
+    }
+
+    /** Event type accepted by typed transitions that match. */
+    static final class TickEvent extends Event<Object>
+    {
+        TickEvent()
+        {
+            super(null);
+        }
+    }
+
+    /** Action that does nothing, used to exercise action dispatch. */
+    static final Action<BenchEntity> NO_OP = new Action<BenchEntity>()
+    {
+        public void doAction(Event<?> message, BenchEntity entity,
+                Transition<BenchEntity, ?> transition, int actionType)
+        {
+        }
+    };
+
+    private BenchmarkMaps()
+    {
+    }
+
+    /**
+     * Builds a map with two sibling chains of nested states, A1 to An and B1
+     * to Bn. The "go" transitions are defined on the outermost states and
+     * lead to the innermost state of the other chain, so every event exits
+     * and enters n states. The machine starts in An after a "start" event.
+     */
+    static StateTransitionMap<BenchEntity> hierarchy(int depth)
+            throws FiniteStateException
+    {
+        StateTransitionMap<BenchEntity> map = new StateTransitionMap<BenchEntity>();
+        State<BenchEntity> start = map.addState("START", StateType.START, null);
+        State<BenchEntity> end = map.addState("END", StateType.END, null);
+
+        State<BenchEntity> a1 = null, b1 = null, a = null, b = null;
+        for (int i = 1; i <= depth; i++)
+        {
+            a = map.addState("A" + i, StateType.ACTIVE, a, NO_OP, NO_OP);
+            b = map.addState("B" + i, StateType.ACTIVE, b, NO_OP, NO_OP);
+            if (i == 1)
+            {
+                a1 = a;
+                b1 = b;
+            }
+        }
+
+        map.addTransition("START-A", "start", start, null, a);
+        map.addTransition("A-B", "go", a1, NO_OP, b);
+        map.addTransition("B-A", "go", b1, NO_OP, a);
+        map.addTransition("A-END", "stop", a1, null, end);
+        map.addTransition("B-END", "stop", b1, null, end);
+        map.build();
+        return map;
+    }
+
+    /**
+     * Builds a map with states S1 and S2 where each state has a number of
+     * transitions of the given guard type. All but the last transition miss;
+     * the last one moves to the other state. String guards match the data
+     * "tick" and typed guards match {@link TickEvent}.
+     *
+     * @param guardType One of "literal", "regex" or "eventType"
+     * @param fanOut Number of transitions out of each state
+     */
+    static StateTransitionMap<BenchEntity> fanOut(String guardType, int fanOut)
+            throws FiniteStateException
+    {
+        StateTransitionMap<BenchEntity> map = new StateTransitionMap<BenchEntity>();
+        State<BenchEntity> start = map.addState("START", StateType.START, null);
+        State<BenchEntity> s1 = map.addState("S1", StateType.ACTIVE, null);
+        State<BenchEntity> s2 = map.addState("S2", StateType.ACTIVE, null);
+        State<BenchEntity> end = map.addState("END", StateType.END, null);
+
+        map.addTransition("START-S1", "start", start, null, s1);
+        addFanOut(map, guardType, fanOut, s1, s2);
+        addFanOut(map, guardType, fanOut, s2, s1);
+        map.addTransition("S1-END", "stop", s1, null, end);
+        map.build();
+        return map;
+    }
+
+    // Adds the missing transitions followed by the matching one.
+    private static void addFanOut(StateTransitionMap<BenchEntity> map,
+            String guardType, int fanOut, State<BenchEntity> from,
+            State<BenchEntity> to) throws FiniteStateException
+    {
+        for (int i = 0; i < fanOut; i++)
+        {
+            boolean last = (i == fanOut - 1);
+            String name = from.getName() + "-" + i;
+            State<BenchEntity> output = last ? to : from;
+            if ("literal".equals(guardType))
+            {
+                map.addTransition(name, last ? "tick" : "miss" + i, from,
+                        null, output);
+            }
+            else if ("regex".equals(guardType))
+            {
+                map.addTransition(name, last ? "t[ick]+" : "miss" + i + ".*",
+                        from, null, output);
+            }
+            else if ("eventType".equals(guardType))
+            {
+                map.addTransition(new Transition<BenchEntity, Object>(name,
+                        new EventTypeGuard<BenchEntity>(last
+                                ? TickEvent.class
+                                : MissEvent.class), from, null, output));
+            }
+            else
+                throw new IllegalArgumentException("Unknown guard type: "
+                        + guardType);
+        }
+    }
+
+    /**
+     * Builds a map whose machine toggles between states S1 and S2 on every
+     * "go" event. The machine starts in S1 after a "start" event.
+     */
+    static StateTransitionMap<BenchEntity> toggle() throws FiniteStateException
+    {
+        StateTransitionMap<BenchEntity> map = new StateTransitionMap<BenchEntity>();
+        State<BenchEntity> start = map.addState("START", StateType.START, null);
+        State<BenchEntity> s1 = map.addState("S1", StateType.ACTIVE, null);
+        State<BenchEntity> s2 = map.addState("S2", StateType.ACTIVE, null);
+        State<BenchEntity> end = map.addState("END", StateType.END, null);
+
+        map.addTransition("START-S1", "start", start, null, s1);
+        map.addTransition(new Transition<BenchEntity, String>("S1-S2",
+                new RegexGuard<BenchEntity>("go"), s1, NO_OP, s2));
+        map.addTransition(new Transition<BenchEntity, String>("S2-S1",
+                new RegexGuard<BenchEntity>("go"), s2, NO_OP, s1));
+        map.addTransition("S1-END", "stop", s1, null, end);
+        map.build();
+        return map;
+    }
+}
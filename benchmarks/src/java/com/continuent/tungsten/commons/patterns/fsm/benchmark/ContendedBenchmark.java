@@ -0,0 +1,89 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+
+package com.continuent.tungsten.commons.patterns.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachine;
+import com.continuent.tungsten.commons.patterns.fsm.StringEvent;
+import com.continuent.tungsten.commons.patterns.fsm.benchmark.BenchmarkMaps.BenchEntity;
+
+/**
+ * Measures throughput when several threads deliver events to one state
+ * machine at once, with and without lock-free mode, and the cost of reading
+ * the current state under the same conditions.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContendedBenchmark
+{
+    @Param({"false", "true"})
+    boolean                         lockFree;
+
+    private StateMachine<BenchEntity> sm;
+    private final StringEvent       go = new StringEvent("go");
+
+    @Setup
+    public void setup() throws FiniteStateException
+    {
+        sm = new StateMachine<BenchEntity>(BenchmarkMaps.toggle(),
+                new BenchEntity());
+        sm.setLockFreeEnabled(lockFree);
+        sm.applyEvent(new StringEvent("start"));
+    }
+
+    @Benchmark
+    public void applyEvent() throws FiniteStateException
+    {
+        sm.applyEvent(go);
+    }
+
+    @Benchmark
+    public Object getState()
+    {
+        return sm.getState();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+
+package com.continuent.tungsten.commons.patterns.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachine;
+import com.continuent.tungsten.commons.patterns.fsm.StringEvent;
+import com.continuent.tungsten.commons.patterns.fsm.benchmark.BenchmarkMaps.BenchEntity;
+
+/**
+ * Measures applyEvent() on flat and nested state hierarchies. Each event is
+ * handled by a transition inherited from the outermost enclosing state and
+ * fires exit and entry actions at every level.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HierarchyBenchmark
+{
+    @Param({"1", "3", "6"})
+    int                             depth;
+
+    private StateMachine<BenchEntity> sm;
+    private final StringEvent       go = new StringEvent("go");
+
+    @Setup
+    public void setup() throws FiniteStateException
+    {
+        sm = new StateMachine<BenchEntity>(BenchmarkMaps.hierarchy(depth),
+                new BenchEntity());
+        sm.applyEvent(new StringEvent("start"));
+    }
+
+    @Benchmark
+    public void applyEvent() throws FiniteStateException
+    {
+        sm.applyEvent(go);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+
+package com.continuent.tungsten.commons.patterns.fsm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
+import com.continuent.tungsten.commons.patterns.fsm.StateChangeListener;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachine;
+import com.continuent.tungsten.commons.patterns.fsm.StringEvent;
+import com.continuent.tungsten.commons.patterns.fsm.benchmark.BenchmarkMaps.BenchEntity;
+
+/**
+ * Measures the cost of notifying state change listeners on every
+ * transition.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark
+{
+    @Param({"0", "1", "8"})
+    int                             listeners;
+
+    private StateMachine<BenchEntity> sm;
+    private final StringEvent       go = new StringEvent("go");
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws FiniteStateException
+    {
+        sm = new StateMachine<BenchEntity>(BenchmarkMaps.toggle(),
+                new BenchEntity());
+        sm.applyEvent(new StringEvent("start"));
+        for (int i = 0; i < listeners; i++)
+        {
+            sm.addListener(new StateChangeListener<BenchEntity>()
+            {
+                public void stateChanged(BenchEntity entity,
+                        com.continuent.tungsten.commons.patterns.fsm.State<BenchEntity> oldState,
+                        com.continuent.tungsten.commons.patterns.fsm.State<BenchEntity> newState)
+                {
+                    blackhole.consume(newState);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void applyEvent() throws FiniteStateException
+    {
+        sm.applyEvent(go);
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an enum whose constants are the states of a state transition map.
+ * States are described by {@link StateSpec} and transitions by
+ * {@link TransitionSpec} on the constants. {@link StateMapProcessor}
+ * validates the map when the enum is compiled and generates a class in the
+ * same package that builds it.
+ * <p>
+ * The following example declares a simple map.
+ *
+ * <pre><code>
+ * &#64;StateMachineSpec
+ * public enum ReplicatorState
+ * {
+ *     &#64;StateSpec(type = StateType.START)
+ *     &#64;TransitionSpec(event = "online", to = "ONLINE")
+ *     OFFLINE,
+ *
+ *     &#64;TransitionSpec(event = "offline", to = "OFFLINE")
+ *     &#64;TransitionSpec(event = "shutdown", to = "SHUTDOWN")
+ *     ONLINE,
+ *
+ *     &#64;StateSpec(type = StateType.END)
+ *     SHUTDOWN
+ * }
+ * </code></pre>
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface StateMachineSpec
+{
+    /**
+     * Simple name of the generated class. The default is the name of the enum
+     * followed by "Map".
+     */
+    String className() default "";
+}
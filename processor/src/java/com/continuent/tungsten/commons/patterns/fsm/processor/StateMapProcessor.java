@@ -0,0 +1,486 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import com.continuent.tungsten.commons.patterns.fsm.Entity;
+import com.continuent.tungsten.commons.patterns.fsm.Event;
+import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
+import com.continuent.tungsten.commons.patterns.fsm.Guard;
+import com.continuent.tungsten.commons.patterns.fsm.State;
+import com.continuent.tungsten.commons.patterns.fsm.StateMapSourceGenerator;
+import com.continuent.tungsten.commons.patterns.fsm.StateTransitionMap;
+import com.continuent.tungsten.commons.patterns.fsm.StateType;
+
+/**
+ * Generates state maps from enums annotated with {@link StateMachineSpec}.
+ * The declared map is built at compile time with the same checks as
+ * {@link StateTransitionMap#build()}, so that missing start or end states,
+ * unreachable and dead-end states, unknown state names, and invalid event
+ * expressions are compile errors. Transition names are checked with
+ * {@link StateMapSourceGenerator#checkTransitionNames(StateTransitionMap)},
+ * so both generators reject duplicate names alike. The generated class adds states in the
+ * order of the enum constants, lets applications attach actions, and builds
+ * the map with {@link StateTransitionMap#buildWithoutValidation()}. It
+ * returns an {@link com.continuent.tungsten.commons.patterns.fsm.EnumStateMap}
+ * that converts between states and constants by ordinal.
+ * <p>
+ * Only validation moves to compile time. The generated build() method still
+ * adds each state and transition and compiles the dispatch tables when it is
+ * called at startup.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@SupportedAnnotationTypes("com.continuent.tungsten.commons.patterns.fsm.processor.StateMachineSpec")
+public class StateMapProcessor extends AbstractProcessor
+{
+    private static final String FSM_PACKAGE = "com.continuent.tungsten.commons.patterns.fsm";
+
+    // Accepts any event when transitions with event types are checked.
+    private static final Guard<Entity, Object> ANY_EVENT = new Guard<Entity, Object>()
+    {
+        public boolean accept(Event<Object> message, Entity entity, State<?> state)
+        {
+            return true;
+        }
+    };
+
+    // A state declared by an enum constant.
+    private static class StateModel
+    {
+        Element   element;
+        String    name;
+        StateType type;
+        int       parent = -1;
+        boolean   error;
+    }
+
+    // A transition declared on an enum constant.
+    private static class TransitionModel
+    {
+        Element element;
+        String  name;
+        int     from;
+        int     to;
+        String  event;
+        String  eventType;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv)
+    {
+        for (Element element : roundEnv
+                .getElementsAnnotatedWith(StateMachineSpec.class))
+        {
+            if (element.getKind() != ElementKind.ENUM)
+            {
+                error(element, "@StateMachineSpec may only be used on enums");
+                continue;
+            }
+            TypeElement enumType = (TypeElement) element;
+            List<StateModel> states = new ArrayList<StateModel>();
+            List<TransitionModel> transitions = new ArrayList<TransitionModel>();
+            if (readStates(enumType, states)
+                    && readTransitions(enumType, states, transitions)
+                    && validate(enumType, states, transitions))
+            {
+                generate(enumType, states, transitions);
+            }
+        }
+        return true;
+    }
+
+    // Reads the states declared by the enum constants. Returns false if there
+    // are errors.
+    private boolean readStates(TypeElement enumType, List<StateModel> states)
+    {
+        boolean valid = true;
+        HashMap<String, Integer> ordinals = new HashMap<String, Integer>();
+        StateModel errorState = null;
+        for (Element constant : enumType.getEnclosedElements())
+        {
+            if (constant.getKind() != ElementKind.ENUM_CONSTANT)
+                continue;
+            StateModel state = new StateModel();
+            state.element = constant;
+            state.name = constant.getSimpleName().toString();
+            state.type = StateType.ACTIVE;
+
+            StateSpec spec = constant.getAnnotation(StateSpec.class);
+            if (spec != null)
+            {
+                state.type = spec.type();
+                state.error = spec.error();
+                if (spec.parent().length() > 0)
+                {
+                    Integer parent = ordinals.get(spec.parent());
+                    if (parent == null)
+                    {
+                        error(constant, "Parent state must be a constant declared before this one: "
+                                + spec.parent());
+                        valid = false;
+                    }
+                    else
+                        state.parent = parent;
+                }
+            }
+            if (state.error)
+            {
+                if (errorState != null)
+                {
+                    error(constant, "Map already has an error state: "
+                            + errorState.name);
+                    valid = false;
+                }
+                errorState = state;
+            }
+
+            ordinals.put(state.name, states.size());
+            states.add(state);
+        }
+        if (states.isEmpty())
+        {
+            error(enumType, "State machine contains no states");
+            valid = false;
+        }
+        return valid;
+    }
+
+    // Reads the transitions declared on the enum constants. Returns false if
+    // there are errors.
+    private boolean readTransitions(TypeElement enumType,
+            List<StateModel> states, List<TransitionModel> transitions)
+    {
+        boolean valid = true;
+        HashMap<String, Integer> ordinals = new HashMap<String, Integer>();
+        for (int i = 0; i < states.size(); i++)
+            ordinals.put(states.get(i).name, i);
+        for (int i = 0; i < states.size(); i++)
+        {
+            Element constant = states.get(i).element;
+            for (TransitionSpec spec : constant
+                    .getAnnotationsByType(TransitionSpec.class))
+            {
+                TransitionModel transition = new TransitionModel();
+                transition.element = constant;
+                transition.from = i;
+                Integer to = ordinals.get(spec.to());
+                if (to == null)
+                {
+                    error(constant, "Unknown output state for transition: "
+                            + spec.to());
+                    valid = false;
+                    continue;
+                }
+                transition.to = to;
+                transition.name = (spec.name().length() > 0)
+                        ? spec.name()
+                        : states.get(i).name + "-" + spec.to();
+                transition.event = (spec.event().length() > 0)
+                        ? spec.event()
+                        : null;
+                transition.eventType = getEventType(spec);
+                if ((transition.event == null) == (transition.eventType == null))
+                {
+                    error(constant, "Transition must declare exactly one of event and eventType: "
+                            + transition.name);
+                    valid = false;
+                }
+                transitions.add(transition);
+            }
+        }
+        return valid;
+    }
+
+    // Returns the canonical name of the event type of a transition or null
+    // if none is given.
+    private String getEventType(TransitionSpec spec)
+    {
+        String name;
+        try
+        {
+            name = spec.eventType().getCanonicalName();
+        }
+        catch (MirroredTypeException e)
+        {
+            // Classes being compiled are only available as type mirrors.
+            TypeMirror type = e.getTypeMirror();
+            name = ((TypeElement) processingEnv.getTypeUtils().asElement(type))
+                    .getQualifiedName().toString();
+        }
+        return Event.class.getName().equals(name) ? null : name;
+    }
+
+    // Builds the map to apply the same checks as at runtime and as the source
+    // generator. Returns false if there are errors.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private boolean validate(TypeElement enumType, List<StateModel> states,
+            List<TransitionModel> transitions)
+    {
+        StateTransitionMap<Entity> map = new StateTransitionMap<Entity>();
+        State<Entity>[] built = new State[states.size()];
+        try
+        {
+            for (int i = 0; i < states.size(); i++)
+            {
+                StateModel state = states.get(i);
+                State<Entity> parent = (state.parent < 0)
+                        ? null
+                        : built[state.parent];
+                built[i] = map.addState(state.name, state.type, parent);
+                if (state.error)
+                    map.setErrorState(built[i]);
+            }
+            for (TransitionModel transition : transitions)
+            {
+                try
+                {
+                    if (transition.event != null)
+                        map.addTransition(transition.name, transition.event,
+                                built[transition.from], null,
+                                built[transition.to]);
+                    else
+                        map.addTransition(transition.name, ANY_EVENT,
+                                built[transition.from], null,
+                                built[transition.to]);
+                }
+                catch (PatternSyntaxException e)
+                {
+                    error(transition.element, "Invalid event expression for transition "
+                            + transition.name + ": " + e.getDescription());
+                    return false;
+                }
+            }
+            map.build();
+            StateMapSourceGenerator.checkTransitionNames(map);
+            return true;
+        }
+        catch (FiniteStateException e)
+        {
+            error(enumType, e.getMessage());
+            return false;
+        }
+    }
+
+    // Writes the source of the class that builds the map.
+    private void generate(TypeElement enumType, List<StateModel> states,
+            List<TransitionModel> transitions)
+    {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(
+                enumType);
+        String className = enumType.getAnnotation(StateMachineSpec.class)
+                .className();
+        if (className.length() == 0)
+            className = enumType.getSimpleName() + "Map";
+        String qualifiedName = pkg.isUnnamed() ? className : pkg
+                .getQualifiedName() + "." + className;
+        String enumName = enumType.getQualifiedName().toString();
+        String self = className + "<ET>";
+
+        StringBuilder sb = new StringBuilder();
+        if (!pkg.isUnnamed())
+            sb.append("package ").append(pkg.getQualifiedName()).append(
+                    ";\n\n");
+        for (String imported : new String[]{"Action", "Entity",
+                "EnumStateMap", "FiniteStateException", "State",
+                "StateTransitionMap", "StateType"})
+            sb.append("import ").append(FSM_PACKAGE).append('.').append(
+                    imported).append(";\n");
+        sb.append("\n");
+        sb.append("/**\n");
+        sb.append(" * Builds the state map declared by {@link ").append(
+                enumName).append("}.\n");
+        sb.append(" * Generated by ").append(
+                StateMapProcessor.class.getSimpleName()).append(
+                ", which validated the map at compile time; do not edit.\n");
+        sb.append(" *\n");
+        sb.append(" * @param <ET> The entity type of the map\n");
+        sb.append(" */\n");
+        sb.append("public final class ").append(className).append(
+                "<ET extends Entity>\n{\n");
+
+        sb.append("    private static final String[] TRANSITIONS = {");
+        for (int i = 0; i < transitions.size(); i++)
+        {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(literal(transitions.get(i).name));
+        }
+        sb.append("};\n\n");
+        sb.append("    private final Action<ET>[] entryActions;\n");
+        sb.append("    private final Action<ET>[] exitActions;\n");
+        sb.append("    private final Action<ET>[] transitionActions;\n\n");
+
+        sb.append("    /** Creates a new instance without actions. */\n");
+        sb.append("    @SuppressWarnings(\"unchecked\")\n");
+        sb.append("    public ").append(className).append("()\n    {\n");
+        sb.append("        entryActions = new Action[").append(states.size())
+                .append("];\n");
+        sb.append("        exitActions = new Action[").append(states.size())
+                .append("];\n");
+        sb.append("        transitionActions = new Action[").append(
+                transitions.size()).append("];\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /** Sets the action performed on entering a state. */\n");
+        sb.append("    public ").append(self).append(" onEntry(").append(
+                enumName).append(" state, Action<ET> action)\n    {\n");
+        sb.append("        entryActions[state.ordinal()] = action;\n");
+        sb.append("        return this;\n    }\n\n");
+
+        sb.append("    /** Sets the action performed on leaving a state. */\n");
+        sb.append("    public ").append(self).append(" onExit(").append(
+                enumName).append(" state, Action<ET> action)\n    {\n");
+        sb.append("        exitActions[state.ordinal()] = action;\n");
+        sb.append("        return this;\n    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Sets the action performed by a transition.\n");
+        sb.append("     *\n");
+        sb.append("     * @throws FiniteStateException Thrown if there is no such transition\n");
+        sb.append("     */\n");
+        sb.append("    public ").append(self).append(
+                " onTransition(String name, Action<ET> action)\n");
+        sb.append("            throws FiniteStateException\n    {\n");
+        sb.append("        for (int i = 0; i < TRANSITIONS.length; i++)\n");
+        sb.append("        {\n");
+        sb.append("            if (TRANSITIONS[i].equals(name))\n");
+        sb.append("            {\n");
+        sb.append("                transitionActions[i] = action;\n");
+        sb.append("                return this;\n");
+        sb.append("            }\n");
+        sb.append("        }\n");
+        sb.append("        throw new FiniteStateException(\"Unknown transition: \" + name);\n");
+        sb.append("    }\n\n");
+
+        sb.append("    /**\n");
+        sb.append("     * Builds the map without repeating the checks made at compile time.\n");
+        sb.append("     */\n");
+        sb.append("    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        sb.append("    public EnumStateMap<").append(enumName).append(
+                ", ET> build() throws FiniteStateException\n    {\n");
+        sb.append("        StateTransitionMap<ET> map = new StateTransitionMap<ET>();\n");
+        sb.append("        State<ET>[] states = new State[").append(
+                states.size()).append("];\n");
+        for (int i = 0; i < states.size(); i++)
+        {
+            StateModel state = states.get(i);
+            sb.append("        states[").append(i).append(
+                    "] = map.addState(").append(literal(state.name)).append(
+                    ", StateType.").append(state.type.name()).append(", ");
+            sb.append((state.parent < 0) ? "null" : "states[" + state.parent
+                    + "]");
+            sb.append(", entryActions[").append(i).append("], exitActions[")
+                    .append(i).append("]);\n");
+            if (state.error)
+                sb.append("        map.setErrorState(states[").append(i)
+                        .append("]);\n");
+        }
+        for (int i = 0; i < transitions.size(); i++)
+        {
+            TransitionModel transition = transitions.get(i);
+            sb.append("        map.addTransition(TRANSITIONS[").append(i)
+                    .append("], ");
+            if (transition.event != null)
+                sb.append(literal(transition.event));
+            else
+                sb.append("(Class) ").append(transition.eventType).append(
+                        ".class");
+            sb.append(", states[").append(transition.from).append(
+                    "], transitionActions[").append(i).append("], states[")
+                    .append(transition.to).append("]);\n");
+        }
+        sb.append("        map.buildWithoutValidation();\n");
+        sb.append("        return new EnumStateMap<").append(enumName).append(
+                ", ET>(").append(enumName).append(".class, map);\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+
+        try
+        {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                    qualifiedName, enumType);
+            Writer writer = file.openWriter();
+            try
+            {
+                writer.write(sb.toString());
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch (IOException e)
+        {
+            error(enumType, "Unable to write state map " + qualifiedName
+                    + ": " + e.getMessage());
+        }
+    }
+
+    // Returns a Java string literal.
+    private String literal(String value)
+    {
+        return processingEnv.getElementUtils().getConstantExpression(value);
+    }
+
+    // Reports a compile error on an element.
+    private void error(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                message, element);
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm.processor;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Repeatable;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.continuent.tungsten.commons.patterns.fsm.Event;
+
+/**
+ * Declares a transition out of the state named by an enum constant of a
+ * {@link StateMachineSpec} enum. Exactly one of {@link #event()} and
+ * {@link #eventType()} must be given. Transitions are matched in the order
+ * they are declared.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+@Repeatable(TransitionSpecs.class)
+public @interface TransitionSpec
+{
+    /**
+     * Name of the transition, which must be unique within the map. The
+     * default is the input and output state names separated by a dash.
+     */
+    String name() default "";
+
+    /** Name of the constant for the output state. */
+    String to();
+
+    /** Regular expression that string event data must match. */
+    String event() default "";
+
+    /** Class of events accepted by the transition, including subclasses. */
+    @SuppressWarnings("rawtypes")
+    Class<? extends Event> eventType() default Event.class;
+}
@@ -0,0 +1,231 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm.processor.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+import com.continuent.tungsten.commons.patterns.fsm.EnumStateMap;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachine;
+import com.continuent.tungsten.commons.patterns.fsm.StringEvent;
+import com.continuent.tungsten.commons.patterns.fsm.processor.StateMapProcessor;
+
+/**
+ * Tests generation of state maps from annotated enums.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateMapProcessorTest extends TestCase
+{
+    private static final String HEADER = "package sample;\n"
+                                               + "import com.continuent.tungsten.commons.patterns.fsm.*;\n"
+                                               + "import com.continuent.tungsten.commons.patterns.fsm.processor.*;\n";
+
+    private File                dir;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    /**
+     * Creates a scratch directory for sources and classes.
+     */
+    public void setUp() throws Exception
+    {
+        dir = File.createTempFile("processor", "");
+        dir.delete();
+        dir.mkdirs();
+        diagnostics = new DiagnosticCollector<JavaFileObject>();
+    }
+
+    /**
+     * Deletes the scratch directory and everything generated in it.
+     */
+    public void tearDown() throws Exception
+    {
+        delete(dir);
+    }
+
+    // Deletes a file or a directory tree.
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Confirm that a valid enum generates a map that runs with enum-keyed
+     * states.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void testGeneratedMap() throws Exception
+    {
+        String source = HEADER
+                + "@StateMachineSpec\n"
+                + "public enum ReplicatorState {\n"
+                + "  @StateSpec(type = StateType.START)\n"
+                + "  @TransitionSpec(event = \"online\", to = \"SYNCING\")\n"
+                + "  OFFLINE,\n"
+                + "  @TransitionSpec(name = \"shutdown\", event = \"shutdown\", to = \"SHUTDOWN\")\n"
+                + "  ONLINE,\n"
+                + "  @StateSpec(parent = \"ONLINE\")\n"
+                + "  @TransitionSpec(eventType = SyncEvent.class, to = \"READY\")\n"
+                + "  SYNCING,\n"
+                + "  @StateSpec(parent = \"ONLINE\")\n"
+                + "  READY,\n"
+                + "  @StateSpec(type = StateType.END)\n"
+                + "  SHUTDOWN\n"
+                + "}\n";
+        String event = HEADER
+                + "public class SyncEvent extends Event<Object> {\n"
+                + "  public SyncEvent() { super(null); }\n" + "}\n";
+        assertTrue("Compiled: " + diagnostics.getDiagnostics(), compile(
+                source, event));
+
+        ClassLoader loader = new URLClassLoader(new URL[]{dir.toURI()
+                .toURL()}, getClass().getClassLoader());
+        Class<? extends Enum> enumType = (Class<? extends Enum>) loader
+                .loadClass("sample.ReplicatorState");
+        Object generated = loader.loadClass("sample.ReplicatorStateMap")
+                .getConstructor().newInstance();
+        EnumStateMap map = (EnumStateMap) generated.getClass().getMethod(
+                "build").invoke(generated);
+
+        StateMachine sm = map.newStateMachine(null);
+        assertEquals("Start", "OFFLINE", map.getConstant(sm).name());
+        sm.applyEvent(new StringEvent("online"));
+        assertEquals("Substate", Enum.valueOf(enumType, "SYNCING"), map
+                .getConstant(sm));
+        assertEquals("Qualified name", "ONLINE:SYNCING", sm.getState()
+                .getName());
+        sm.applyEvent((com.continuent.tungsten.commons.patterns.fsm.Event) loader
+                .loadClass("sample.SyncEvent").getConstructor().newInstance());
+        sm.applyEvent(new StringEvent("shutdown"));
+        assertEquals("End", map.getState(Enum.valueOf(enumType, "SHUTDOWN")),
+                sm.getState());
+    }
+
+    /**
+     * Confirm that structural errors are reported at compile time.
+     */
+    public void testInvalidMaps() throws Exception
+    {
+        assertFalse("Dead end", compile(HEADER + "@StateMachineSpec\n"
+                + "public enum DeadEnd {\n"
+                + "  @StateSpec(type = StateType.START)\n"
+                + "  @TransitionSpec(event = \"go\", to = \"STUCK\")\n"
+                + "  @TransitionSpec(event = \"end\", to = \"END\")\n"
+                + "  START, STUCK,\n"
+                + "  @StateSpec(type = StateType.END) END\n" + "}\n"));
+        assertError("dead-end");
+
+        assertFalse("Unknown parent", compile(HEADER + "@StateMachineSpec\n"
+                + "public enum Orphan {\n"
+                + "  @StateSpec(type = StateType.START)\n"
+                + "  @TransitionSpec(event = \"go\", to = \"END\")\n"
+                + "  START,\n" + "  @StateSpec(type = StateType.END)\n"
+                + "  END,\n" + "  @StateSpec(parent = \"MISSING\")\n"
+                + "  CHILD\n" + "}\n"));
+        assertError("MISSING");
+
+        assertFalse("Bad expression", compile(HEADER + "@StateMachineSpec\n"
+                + "public enum BadRegex {\n"
+                + "  @StateSpec(type = StateType.START)\n"
+                + "  @TransitionSpec(event = \"(go\", to = \"END\")\n"
+                + "  START,\n" + "  @StateSpec(type = StateType.END)\n"
+                + "  END\n" + "}\n"));
+        assertError("Invalid event expression");
+
+        assertFalse("Duplicate name", compile(HEADER + "@StateMachineSpec\n"
+                + "public enum Twice {\n"
+                + "  @StateSpec(type = StateType.START)\n"
+                + "  @TransitionSpec(name = \"go\", event = \"a\", to = \"END\")\n"
+                + "  @TransitionSpec(name = \"go\", event = \"b\", to = \"END\")\n"
+                + "  START,\n" + "  @StateSpec(type = StateType.END)\n"
+                + "  END\n" + "}\n"));
+        assertError("Duplicate transition name: go");
+    }
+
+    // Compiles sources into the scratch directory with the processor.
+    private boolean compile(String... sources) throws IOException
+    {
+        File sourceDir = new File(dir, "sample");
+        sourceDir.mkdirs();
+        File[] files = new File[sources.length];
+        for (int i = 0; i < sources.length; i++)
+        {
+            String name = sources[i].replaceFirst("(?s).*public \\w+ (\\w+).*",
+                    "$1");
+            files[i] = new File(sourceDir, name + ".java");
+            FileWriter writer = new FileWriter(files[i]);
+            writer.write(sources[i]);
+            writer.close();
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(
+                diagnostics, null, null);
+        JavaCompiler.CompilationTask task = compiler.getTask(null,
+                fileManager, diagnostics, Arrays.asList("-d", dir.getPath(),
+                        "-s", dir.getPath(), "-classpath", System
+                                .getProperty("java.class.path")), null,
+                fileManager.getJavaFileObjects(files));
+        task.setProcessors(Collections.singleton(new StateMapProcessor()));
+        boolean success = task.call();
+        fileManager.close();
+        for (File file : files)
+            file.delete();
+        return success;
+    }
+
+    // Asserts that an error containing the given text was reported.
+    private void assertError(String text)
+    {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics
+                .getDiagnostics())
+        {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR
+                    && diagnostic.getMessage(null).contains(text))
+                return;
+        }
+        fail("No error containing " + text + ": "
+                + diagnostics.getDiagnostics());
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers state change notifications to another listener asynchronously, so
+ * that a slow listener does not delay event processing. Notifications are
+ * placed in a bounded ring buffer and delivered in order by a single task at
+ * a time on an executor, which preserves the order of changes for each
+ * state machine. When the buffer is full the {@link ListenerOverflowPolicy}
+ * decides what happens to new changes. Coalescing merges changes of the same
+ * state machine, or of the same instance of a {@link StateMachineEngine}.
+ * A wrapped {@link InstanceStateChangeListener} receives the ids of engine
+ * instances as if it were registered directly.
+ * <p>
+ * Instances are normally created by
+ * {@link StateMachine#addListener(StateChangeListener, int, ListenerOverflowPolicy)}
+ * and may be removed by passing either the instance or the wrapped listener to
+ * {@link StateMachine#removeListener(StateChangeListener)}. Exceptions thrown
+ * by the wrapped listener are logged and do not stop delivery.
+ *
+ * @param <ET> The entity type for which the state machine is defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class AsyncStateChangeListener<ET extends Entity>
+        implements
+            StateChangeListener<ET>
+{
+    private static Logger                 logger = LoggerFactory.getLogger(AsyncStateChangeListener.class);
+
+    private final StateChangeListener<ET> listener;
+    private final ListenerOverflowPolicy  policy;
+    private final Executor                executor;
+    private final Runnable                deliveryTask;
+
+    // Ring buffer of pending notifications, guarded by the instance monitor.
+    private final Object[]                sources;
+    private final int[]                   ids;
+    private final Object[]                entities;
+    private final State<ET>[]             oldStates;
+    private final State<ET>[]             newStates;
+    private int                           head;
+    private int                           count;
+    private boolean                       scheduled;
+    private long                          dropped;
+    private long                          coalesced;
+
+    /**
+     * Creates a new asynchronous listener that delivers notifications on the
+     * shared {@link VirtualThreadExecutor}.
+     *
+     * @param listener Listener to which notifications are delivered
+     * @param capacity Maximum number of pending notifications
+     * @param policy What to do with changes when the buffer is full
+     */
+    public AsyncStateChangeListener(StateChangeListener<ET> listener,
+            int capacity, ListenerOverflowPolicy policy)
+    {
+        this(listener, capacity, policy, VirtualThreadExecutor.getInstance());
+    }
+
+    /**
+     * Creates a new asynchronous listener.
+     *
+     * @param listener Listener to which notifications are delivered
+     * @param capacity Maximum number of pending notifications
+     * @param policy What to do with changes when the buffer is full
+     * @param executor Executor that runs delivery tasks
+     */
+    @SuppressWarnings("unchecked")
+    public AsyncStateChangeListener(StateChangeListener<ET> listener,
+            int capacity, ListenerOverflowPolicy policy, Executor executor)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException(
+                    "Listener capacity must be at least 1: " + capacity);
+        this.listener = listener;
+        this.policy = policy;
+        this.executor = executor;
+        this.sources = new Object[capacity];
+        this.ids = new int[capacity];
+        this.entities = new Object[capacity];
+        this.oldStates = (State<ET>[]) new State<?>[capacity];
+        this.newStates = (State<ET>[]) new State<?>[capacity];
+        this.deliveryTask = new Runnable()
+        {
+            public void run()
+            {
+                runDelivery();
+            }
+        };
+    }
+
+    /** Returns the listener to which notifications are delivered. */
+    public StateChangeListener<ET> getListener()
+    {
+        return listener;
+    }
+
+    /** Returns the overflow policy. */
+    public ListenerOverflowPolicy getPolicy()
+    {
+        return policy;
+    }
+
+    /** Returns the number of notifications waiting for delivery. */
+    public synchronized int getPendingCount()
+    {
+        return count;
+    }
+
+    /** Returns the number of notifications discarded because of overflow. */
+    public synchronized long getDroppedCount()
+    {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of changes merged into a pending notification
+     * because of overflow.
+     */
+    public synchronized long getCoalescedCount()
+    {
+        return coalesced;
+    }
+
+    /**
+     * Queues a notification for delivery. Depending on the overflow policy
+     * this may wait for room in the buffer. If the thread is interrupted while
+     * waiting, the notification is dropped and the interrupt status is kept.
+     * Changes passed to this method come from no known machine, so they are
+     * coalesced with earlier changes of the same entity.
+     */
+    public void stateChanged(ET entity, State<ET> oldState, State<ET> newState)
+    {
+        stateChanged(entity, -1, entity, oldState, newState);
+    }
+
+    /**
+     * Notifies a listener of a change of state in a state machine or engine
+     * instance, passing the source to asynchronous listeners so that they
+     * coalesce changes by source rather than by entity, which may be null or
+     * shared.
+     *
+     * @param listener Listener to notify
+     * @param source State machine or engine in which the state changed
+     * @param id Engine instance ID or -1 for a state machine
+     */
+    @SuppressWarnings("unchecked")
+    static <ET extends Entity> void notifyListener(StateChangeListener<ET> listener,
+            Object source, int id, ET entity, State<ET> oldState,
+            State<ET> newState)
+    {
+        if (listener instanceof AsyncStateChangeListener<?>)
+            ((AsyncStateChangeListener<ET>) listener).stateChanged(source, id,
+                    entity, oldState, newState);
+        else
+            call(listener, id, entity, oldState, newState);
+    }
+
+    // Calls a listener, passing the instance id to listeners that take one.
+    @SuppressWarnings("unchecked")
+    private static <ET extends Entity> void call(
+            StateChangeListener<ET> listener, int id, ET entity,
+            State<ET> oldState, State<ET> newState)
+    {
+        if (id >= 0 && listener instanceof InstanceStateChangeListener<?>)
+            ((InstanceStateChangeListener<ET>) listener).stateChanged(id,
+                    entity, oldState, newState);
+        else
+            listener.stateChanged(entity, oldState, newState);
+    }
+
+    // Queues a notification whose changes are coalesced by source and ID.
+    private void stateChanged(Object source, int id, ET entity,
+            State<ET> oldState, State<ET> newState)
+    {
+        boolean schedule = false;
+        synchronized (this)
+        {
+            int capacity = entities.length;
+            if (count == capacity)
+            {
+                switch (policy)
+                {
+                    case BLOCK :
+                        try
+                        {
+                            while (count == capacity)
+                                wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            dropped++;
+                            return;
+                        }
+                        break;
+                    case COALESCE :
+                        if (coalesce(source, id, newState))
+                            return;
+                        discardOldest();
+                        break;
+                    default :
+                        discardOldest();
+                        break;
+                }
+            }
+
+            int tail = (head + count) % capacity;
+            sources[tail] = source;
+            ids[tail] = id;
+            entities[tail] = entity;
+            oldStates[tail] = oldState;
+            newStates[tail] = newState;
+            count++;
+            if (!scheduled)
+            {
+                scheduled = true;
+                schedule = true;
+            }
+        }
+
+        // Start delivery outside the monitor in case the executor runs the
+        // task in this thread.
+        if (schedule)
+        {
+            boolean accepted = false;
+            try
+            {
+                executor.execute(deliveryTask);
+                accepted = true;
+            }
+            finally
+            {
+                // Clear the flag if the executor did not accept the task,
+                // whatever it threw, so that later changes are delivered.
+                if (!accepted)
+                {
+                    synchronized (this)
+                    {
+                        scheduled = false;
+                    }
+                }
+            }
+        }
+    }
+
+    // Merges a change into the latest pending notification for the same
+    // source, if there is one.
+    private boolean coalesce(Object source, int id, State<ET> newState)
+    {
+        int capacity = entities.length;
+        for (int i = count - 1; i >= 0; i--)
+        {
+            int index = (head + i) % capacity;
+            if (sources[index] == source && ids[index] == id)
+            {
+                newStates[index] = newState;
+                coalesced++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Discards the oldest pending notification.
+    private void discardOldest()
+    {
+        clear(head);
+        head = (head + 1) % entities.length;
+        count--;
+        dropped++;
+    }
+
+    // Clears a buffer slot so that delivered states and entities can be
+    // collected.
+    private void clear(int index)
+    {
+        sources[index] = null;
+        entities[index] = null;
+        oldStates[index] = null;
+        newStates[index] = null;
+    }
+
+    // Delivers pending notifications until the buffer is empty. If the
+    // wrapped listener throws an error the task ends and the remaining
+    // notifications are delivered by a new task.
+    private void runDelivery()
+    {
+        boolean drained = false;
+        try
+        {
+            drained = deliver();
+        }
+        finally
+        {
+            if (!drained)
+                reschedule();
+        }
+    }
+
+    // Hands pending notifications to a new task after the current one ended
+    // abnormally, or clears the scheduled flag if there are none.
+    private void reschedule()
+    {
+        synchronized (this)
+        {
+            if (count == 0)
+            {
+                scheduled = false;
+                return;
+            }
+        }
+        boolean accepted = false;
+        try
+        {
+            executor.execute(deliveryTask);
+            accepted = true;
+        }
+        finally
+        {
+            if (!accepted)
+            {
+                synchronized (this)
+                {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    // Delivers pending notifications and returns true once the buffer is
+    // empty, in which case the scheduled flag has already been cleared.
+    @SuppressWarnings("unchecked")
+    private boolean deliver()
+    {
+        while (true)
+        {
+            int id;
+            ET entity;
+            State<ET> oldState;
+            State<ET> newState;
+            synchronized (this)
+            {
+                if (count == 0)
+                {
+                    scheduled = false;
+                    return true;
+                }
+                id = ids[head];
+                entity = (ET) entities[head];
+                oldState = oldStates[head];
+                newState = newStates[head];
+                clear(head);
+                head = (head + 1) % entities.length;
+                count--;
+                notifyAll();
+            }
+
+            try
+            {
+                call(listener, id, entity, oldState, newState);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("State change listener failed: listener="
+                        + listener + " old state=" + oldState.getName()
+                        + " new state=" + newState.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a registered listener is the given listener or an
+     * asynchronous listener that wraps it.
+     */
+    static boolean matches(StateChangeListener<?> registered, Object listener)
+    {
+        if (registered.equals(listener))
+            return true;
+        return registered instanceof AsyncStateChangeListener<?>
+                && ((AsyncStateChangeListener<?>) registered).getListener()
+                        .equals(listener);
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the compiled transitions that may be taken out of a single state.
+ * Transitions defined on the state itself come first, followed by those of
+ * each enclosing state in turn, so that a linear scan finds the same
+ * transition as walking the state hierarchy. Tables are created by
+ * {@link StateTransitionMap#build()} and are immutable thereafter.
+ * <p>
+ * If any transitions are guarded by an {@link EventTypeGuard}, the table also
+ * keeps a cache of candidate transitions for each event class it has seen.
+ * The candidates for a class are all transitions except typed ones whose
+ * type the class cannot match, so that evaluating candidates in order gives
+ * the same result as evaluating every transition. The cache is copied on
+ * write, so lookups never lock. Event classes that the state or an enclosing
+ * state ignores are cached with a marker instead, so that ignored events are
+ * discarded without evaluating any guard. Once the cache holds
+ * {@link #MAX_CACHED_CLASSES} classes, events of further classes are checked
+ * against the ignored types and then evaluated against every transition,
+ * which is slower but does not allocate.
+ * <p>
+ * Similarly, {@link RegexGuard} transitions are resolved together by a
+ * {@link RegexIndex} when the event data is a string, leaving only the other
+ * transitions that precede the first regex match to be evaluated.
+ * <p>
+ * Since the input and output states of each transition are fixed, the table
+ * also holds the states whose exit and entry actions fire when the
+ * transition is taken from this state, so that callers need not search the
+ * state hierarchy for the least common parent on each event. The timeouts
+ * cancelled and armed by each transition are held for the same reason.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class DispatchTable<ET extends Entity>
+{
+    /** Value returned by match() for events the state ignores. */
+    static final int                  IGNORED            = -2;
+
+    // Marks event classes that are ignored in the candidate cache.
+    private static final int[]        IGNORED_CANDIDATES = new int[0];
+
+    private final State<ET>           state;
+    private final Transition<ET, ?>[] transitions;
+    private final int[]               outputOrdinals;
+
+    // States whose exit and entry actions fire for each transition, in the
+    // order they fire.
+    private final State<ET>[][]       exitChains;
+    private final State<ET>[][]       entryChains;
+
+    // Slots of the timeouts cancelled and armed by each transition.
+    private final int[][]             cancelTimeouts;
+    private final int[][]             armTimeouts;
+
+    /**
+     * Limit on cached event classes, which guards against unbounded growth
+     * when applications generate many event classes.
+     */
+    static final int                  MAX_CACHED_CLASSES = 64;
+
+    // Event type accepted by each transition if its guard is an
+    // EventTypeGuard, otherwise null.
+    private final Class<?>[]          eventTypes;
+    private final boolean             typeIndexed;
+
+    // Event types ignored in this state or null if there are none.
+    private final Class<?>[]          ignoredTypes;
+
+    // Combined matcher for regex guards or null if there are none.
+    private final RegexIndex          regexIndex;
+
+    // Candidate transitions by event class stored as alternating Class and
+    // int[] entries.
+    private volatile Object[]         candidateCache     = new Object[0];
+
+    /**
+     * Creates a new dispatch table.
+     *
+     * @param state State to which this table belongs
+     * @param transitions Transitions in the order they must be evaluated
+     * @param outputOrdinals Ordinals of the output state of each transition
+     * @param cancelTimeouts Slots of the timeouts cancelled by each transition
+     * @param armTimeouts Slots of the timeouts armed by each transition
+     * @param ignoredTypes Event types ignored in this state or null if none
+     */
+    DispatchTable(State<ET> state, Transition<ET, ?>[] transitions,
+            int[] outputOrdinals, int[][] cancelTimeouts, int[][] armTimeouts,
+            Class<?>[] ignoredTypes)
+    {
+        this.state = state;
+        this.transitions = transitions;
+        this.outputOrdinals = outputOrdinals;
+        this.cancelTimeouts = cancelTimeouts;
+        this.armTimeouts = armTimeouts;
+
+        this.eventTypes = new Class<?>[transitions.length];
+        boolean indexed = false;
+        for (int i = 0; i < transitions.length; i++)
+        {
+            // Only index the guard and transition classes themselves, since
+            // subclasses of either may override accept().
+            Guard<ET, ?> guard = transitions[i].getGuard();
+            if (transitions[i].getClass() == Transition.class
+                    && guard != null && guard.getClass() == EventTypeGuard.class)
+            {
+                eventTypes[i] = ((EventTypeGuard<?>) guard).getType();
+                indexed = true;
+            }
+        }
+        this.typeIndexed = indexed;
+        this.ignoredTypes = ignoredTypes;
+        this.regexIndex = RegexIndex.build(transitions);
+
+        int count = transitions.length;
+        @SuppressWarnings("unchecked")
+        State<ET>[][] exits = (State<ET>[][]) new State<?>[count][];
+        @SuppressWarnings("unchecked")
+        State<ET>[][] entries = (State<ET>[][]) new State<?>[count][];
+        for (int i = 0; i < transitions.length; i++)
+        {
+            State<ET> nextState = transitions[i].getOutput();
+            exits[i] = exitChain(state, nextState);
+            entries[i] = entryChain(state, nextState);
+        }
+        this.exitChains = exits;
+        this.entryChains = entries;
+    }
+
+    // Returns the states from the input state up to but excluding the least
+    // common parent that have exit actions. There are none if the state does
+    // not change.
+    @SuppressWarnings("unchecked")
+    private static <ET extends Entity> State<ET>[] exitChain(State<ET> state,
+            State<ET> nextState)
+    {
+        List<State<ET>> chain = new ArrayList<State<ET>>();
+        if (state != nextState)
+        {
+            State<ET> leastCommonParent = state.getLeastCommonParent(nextState);
+            for (State<ET> s = state; s != null && s != leastCommonParent; s = s
+                    .getParent())
+            {
+                if (s.getExitAction() != null)
+                    chain.add(s);
+            }
+        }
+        return (State<ET>[]) chain.toArray(new State<?>[chain.size()]);
+    }
+
+    // Returns the states from below the least common parent down to the
+    // output state that have entry actions. There are none if the state does
+    // not change.
+    @SuppressWarnings("unchecked")
+    private static <ET extends Entity> State<ET>[] entryChain(State<ET> state,
+            State<ET> nextState)
+    {
+        List<State<ET>> chain = new ArrayList<State<ET>>();
+        if (state != nextState)
+        {
+            State<ET> leastCommonParent = state.getLeastCommonParent(nextState);
+            State<ET>[] hierarchy = nextState.getHierarchy();
+            int startIndex = 0;
+            for (int i = 0; i < hierarchy.length; i++)
+            {
+                if (hierarchy[i] == leastCommonParent)
+                {
+                    startIndex = i + 1;
+                    break;
+                }
+            }
+            for (int i = startIndex; i < hierarchy.length; i++)
+            {
+                if (hierarchy[i].getEntryAction() != null)
+                    chain.add(hierarchy[i]);
+            }
+        }
+        return (State<ET>[]) chain.toArray(new State<?>[chain.size()]);
+    }
+
+    /** Returns the state to which this table belongs. */
+    State<ET> getState()
+    {
+        return state;
+    }
+
+    /** Returns the number of transitions in the table. */
+    int size()
+    {
+        return transitions.length;
+    }
+
+    /** Returns the transition at the given index. */
+    Transition<ET, ?> getTransition(int index)
+    {
+        return transitions[index];
+    }
+
+    /** Returns the ordinal of the output state of the given transition. */
+    int getOutputOrdinal(int index)
+    {
+        return outputOrdinals[index];
+    }
+
+    /**
+     * Returns the states whose exit actions fire when the given transition is
+     * taken, innermost first.
+     */
+    State<ET>[] getExitChain(int index)
+    {
+        return exitChains[index];
+    }
+
+    /**
+     * Returns the states whose entry actions fire when the given transition is
+     * taken, outermost first.
+     */
+    State<ET>[] getEntryChain(int index)
+    {
+        return entryChains[index];
+    }
+
+    /**
+     * Returns the slots of the timeouts cancelled when the given transition is
+     * taken.
+     */
+    int[] getCancelTimeouts(int index)
+    {
+        return cancelTimeouts[index];
+    }
+
+    /**
+     * Returns the slots of the timeouts armed when the given transition is
+     * taken.
+     */
+    int[] getArmTimeouts(int index)
+    {
+        return armTimeouts[index];
+    }
+
+    /**
+     * Returns the index of the first transition whose guard accepts the event,
+     * {@link #IGNORED} if the state ignores the event, or -1 if there is no
+     * such transition.
+     */
+    int match(Event<?> event, ET entity)
+    {
+        int[] candidates = null;
+        if ((typeIndexed || ignoredTypes != null) && event != null)
+        {
+            candidates = getCandidates(event.getClass());
+            if (candidates == IGNORED_CANDIDATES)
+                return IGNORED;
+        }
+
+        // Resolve all regex guards in one pass if the event data is a string.
+        // Null data matches no expression.
+        boolean regexResolved = false;
+        int regexMatch = -1;
+        if (regexIndex != null && event != null)
+        {
+            Object data = event.getData();
+            if (data == null || data instanceof String)
+            {
+                regexResolved = true;
+                if (data != null)
+                    regexMatch = regexIndex.firstMatch((String) data);
+            }
+        }
+
+        // Evaluate remaining guards that precede any regex match.
+        int limit = (regexMatch < 0) ? transitions.length : regexMatch;
+        int count = (candidates == null) ? transitions.length : candidates.length;
+        for (int c = 0; c < count; c++)
+        {
+            int i = (candidates == null) ? c : candidates[c];
+            if (i >= limit)
+                break;
+            if (regexResolved && regexIndex.isIndexed(i))
+                continue;
+            if (accept(i, event, entity))
+                return i;
+        }
+        return regexMatch;
+    }
+
+    /**
+     * Returns true if this state or an enclosing state ignores the event.
+     */
+    boolean isIgnored(Event<?> event)
+    {
+        return ignoredTypes != null && event != null
+                && getCandidates(event.getClass()) == IGNORED_CANDIDATES;
+    }
+
+    // Evaluates the guard of a single transition.
+    @SuppressWarnings("unchecked")
+    private boolean accept(int index, Event<?> event, ET entity)
+    {
+        Transition<ET, Object> transition = (Transition<ET, Object>) transitions[index];
+        return transition.accept((Event<Object>) event, entity);
+    }
+
+    /**
+     * Returns the indexes of transitions that may accept events of the given
+     * class, computing and caching them on first use, or null if the cache is
+     * full and every transition must be evaluated.
+     */
+    int[] getCandidates(Class<?> eventClass)
+    {
+        Object[] cache = candidateCache;
+        for (int i = 0; i < cache.length; i += 2)
+        {
+            if (cache[i] == eventClass)
+                return (int[]) cache[i + 1];
+        }
+
+        // Computing candidates that cannot be cached would allocate on every
+        // event, so scan the ignored types only.
+        if (cache.length >= MAX_CACHED_CLASSES * 2)
+            return isIgnoredType(eventClass) ? IGNORED_CANDIDATES : null;
+
+        int[] candidates = computeCandidates(eventClass);
+        synchronized (this)
+        {
+            cache = candidateCache;
+            if (cache.length < MAX_CACHED_CLASSES * 2)
+            {
+                Object[] newCache = new Object[cache.length + 2];
+                System.arraycopy(cache, 0, newCache, 0, cache.length);
+                newCache[cache.length] = eventClass;
+                newCache[cache.length + 1] = candidates;
+                candidateCache = newCache;
+            }
+        }
+        return candidates;
+    }
+
+    // Returns true if this state or an enclosing state ignores the class.
+    private boolean isIgnoredType(Class<?> eventClass)
+    {
+        if (ignoredTypes != null)
+        {
+            for (int i = 0; i < ignoredTypes.length; i++)
+            {
+                if (ignoredTypes[i].isAssignableFrom(eventClass))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    // Selects transitions that are untyped or whose type matches the class.
+    private int[] computeCandidates(Class<?> eventClass)
+    {
+        if (isIgnoredType(eventClass))
+            return IGNORED_CANDIDATES;
+
+        int[] buffer = new int[transitions.length];
+        int count = 0;
+        for (int i = 0; i < transitions.length; i++)
+        {
+            if (eventTypes[i] == null
+                    || eventTypes[i].isAssignableFrom(eventClass))
+                buffer[count++] = i;
+        }
+        int[] candidates = new int[count];
+        System.arraycopy(buffer, 0, candidates, 0, count);
+        return candidates;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Keys the states of a built map by the constants of an enum, which must
+ * have been added to the map in the order the constants are declared and
+ * with the constant names as their base names. Conversions in both
+ * directions are array lookups by ordinal rather than name lookups. Maps of
+ * this kind are generated from annotated enums by the tungsten-fsm
+ * annotation processor.
+ *
+ * @param <S> Enum whose constants name the states
+ * @param <ET> The entity type of the map
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class EnumStateMap<S extends Enum<S>, ET extends Entity>
+{
+    private final StateTransitionMap<ET> map;
+    private final S[]                    constants;
+    private final State<ET>[]            states;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param enumType Enum whose constants name the states
+     * @param map A built map whose states correspond to the enum constants
+     * @throws FiniteStateException Thrown if the map is not built or its
+     *             states do not match the enum constants
+     */
+    @SuppressWarnings("unchecked")
+    public EnumStateMap(Class<S> enumType, StateTransitionMap<ET> map)
+            throws FiniteStateException
+    {
+        this.map = map;
+        this.constants = enumType.getEnumConstants();
+        if (map.getStateCount() != constants.length)
+        {
+            throw new FiniteStateException("State map has "
+                    + map.getStateCount() + " states but enum "
+                    + enumType.getName() + " has " + constants.length
+                    + " constants");
+        }
+        this.states = (State<ET>[]) new State<?>[constants.length];
+        for (int i = 0; i < constants.length; i++)
+        {
+            states[i] = map.getState(i);
+            if (!states[i].getBaseName().equals(constants[i].name()))
+            {
+                throw new FiniteStateException("State " + states[i].getName()
+                        + " does not match enum constant " + constants[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the underlying state transition map.
+     */
+    public StateTransitionMap<ET> getMap()
+    {
+        return map;
+    }
+
+    /**
+     * Returns the state that corresponds to an enum constant.
+     */
+    public State<ET> getState(S constant)
+    {
+        return states[constant.ordinal()];
+    }
+
+    /**
+     * Returns the enum constant that corresponds to a state or null if the
+     * state is not part of the map.
+     */
+    public S getConstant(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        return (ordinal < 0) ? null : constants[ordinal];
+    }
+
+    /**
+     * Returns the enum constant for the current state of a state machine that
+     * uses this map.
+     */
+    public S getConstant(StateMachine<ET> sm)
+    {
+        return getConstant(sm.getState());
+    }
+
+    /**
+     * Creates a new state machine for an entity in the start state.
+     */
+    public StateMachine<ET> newStateMachine(ET entity)
+    {
+        return new StateMachine<ET>(map, entity);
+    }
+
+    /**
+     * Creates a new state machine for an entity in the state that corresponds
+     * to an enum constant.
+     *
+     * @throws FiniteStateException Thrown if the state cannot be used
+     */
+    public StateMachine<ET> newStateMachine(ET entity, S constant)
+            throws FiniteStateException
+    {
+        return new StateMachine<ET>(map, entity, getState(constant));
+    }
+}
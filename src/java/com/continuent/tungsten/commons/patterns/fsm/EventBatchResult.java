@@ -0,0 +1,112 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Describes the outcome of applying a batch of events with
+ * {@link StateMachine#applyEvents(Event[], int, int)}. Processing stops at
+ * the first event that cannot be applied, in which case the result holds the
+ * exception that applyEvent() would have thrown for that event.
+ *
+ * @param <ET> The entity type for which the state machine is defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class EventBatchResult<ET extends Entity>
+{
+    private final int                  processed;
+    private final State<ET>            state;
+    private final FiniteStateException exception;
+
+    /**
+     * Creates a new result.
+     *
+     * @param processed Number of events applied successfully
+     * @param state State of the machine after the batch
+     * @param exception Exception that stopped the batch or null
+     */
+    public EventBatchResult(int processed, State<ET> state,
+            FiniteStateException exception)
+    {
+        this.processed = processed;
+        this.state = state;
+        this.exception = exception;
+    }
+
+    /**
+     * Returns the number of events applied successfully. If the batch stopped
+     * early, this is also the position of the failing event within the batch.
+     */
+    public int getProcessed()
+    {
+        return processed;
+    }
+
+    /** Returns the state of the machine after the batch. */
+    public State<ET> getState()
+    {
+        return state;
+    }
+
+    /** Returns true if every event in the batch was applied. */
+    public boolean isComplete()
+    {
+        return exception == null;
+    }
+
+    /**
+     * Returns true if the batch stopped because an action rolled back a
+     * transition, which leaves the machine in the state it was in before the
+     * failing event.
+     */
+    public boolean isRolledBack()
+    {
+        return exception instanceof TransitionRollbackException;
+    }
+
+    /**
+     * Returns true if the batch stopped because an action failed, which moves
+     * the machine to the error state.
+     */
+    public boolean isFailed()
+    {
+        return exception instanceof TransitionFailureException;
+    }
+
+    /** Returns the exception that stopped the batch or null. */
+    public FiniteStateException getException()
+    {
+        return exception;
+    }
+
+    /**
+     * Prints a summary of the result.
+     */
+    public String toString()
+    {
+        return "EventBatchResult: processed=" + processed + " state="
+                + (state == null ? null : state.getName()) + " exception="
+                + exception;
+    }
+}
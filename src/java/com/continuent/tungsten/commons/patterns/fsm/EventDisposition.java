@@ -0,0 +1,53 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Enumerates the outcomes of {@link StateMachine#tryApplyEvent(Event)}, which
+ * reports events that no transition accepts with a status rather than a
+ * {@link TransitionNotFoundException}.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public enum EventDisposition
+{
+    /**
+     * A transition accepted the event and was taken, which may or may not
+     * have changed the state.
+     */
+    APPLIED,
+
+    /**
+     * The current state ignores events of this type, so the event was
+     * discarded without evaluating any guard. See
+     * {@link StateTransitionMap#addIgnoredEvent(State, Class)}.
+     */
+    IGNORED,
+
+    /**
+     * No transition out of the current state accepts the event. The state is
+     * unchanged.
+     */
+    UNMATCHED;
+}
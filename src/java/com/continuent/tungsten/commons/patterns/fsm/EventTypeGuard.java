@@ -30,12 +30,20 @@ package com.continuent.tungsten.commons.patterns.fsm;
  */
 public class EventTypeGuard<ET extends Entity> implements Guard<ET, Object>
 {
-    private final Class<? extends Event> type;
+    private final Class<? extends Event<?>> type;
 
     public EventTypeGuard(Class<? extends Event<?>> type)
     {
         this.type = type;
     }
+
+    /**
+     * Returns the event type accepted by this guard.
+     */
+    public Class<? extends Event<?>> getType()
+    {
+        return type;
+    }
     
     /**
      * Returns true if the event is an instance of type.  Note we check the 
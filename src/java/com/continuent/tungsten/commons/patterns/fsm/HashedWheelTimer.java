@@ -0,0 +1,324 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Schedules large numbers of short tasks with coarse timing, as used for
+ * timeout transitions. Timeouts are kept on a wheel of buckets, each of which
+ * holds the timeouts that expire during one tick. A single daemon thread
+ * advances the wheel once per tick and runs the tasks that have expired.
+ * Scheduling and cancelling a timeout are constant time operations that never
+ * lock, so millions of timeouts may be pending at once.
+ * <p>
+ * Tasks run on the timer thread and must finish quickly, for example by
+ * handing work to another thread. Timeouts fire no earlier than requested and
+ * up to about one tick later.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public final class HashedWheelTimer
+{
+    private static Logger                          logger    = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private static final AtomicInteger             instances = new AtomicInteger();
+
+    // Shared timer used by state machines that do not have their own.
+    private static volatile HashedWheelTimer       defaultTimer;
+
+    private final long                             tickNanos;
+    private final Bucket[]                         wheel;
+    private final int                              mask;
+    private final long                             startNanos;
+    private final Thread                           worker;
+    private volatile boolean                       stopped;
+
+    // Timeouts waiting to be placed on the wheel or removed from it by the
+    // timer thread.
+    private final ConcurrentLinkedQueue<Timeout>   scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout>   cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * A task scheduled to run once after a delay.
+     */
+    public static final class Timeout
+    {
+        private static final int     PENDING   = 0;
+        private static final int     CANCELLED = 1;
+        private static final int     EXPIRED   = 2;
+
+        private final HashedWheelTimer timer;
+        private final Runnable       task;
+        private final long           deadline;
+        private final AtomicInteger  status    = new AtomicInteger(PENDING);
+
+        // Position on the wheel, maintained only by the timer thread.
+        private long                 remainingRounds;
+        private Bucket               bucket;
+        private Timeout              next;
+        private Timeout              prev;
+
+        private Timeout(HashedWheelTimer timer, Runnable task, long deadline)
+        {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it has not run yet.
+         *
+         * @return True if the timeout was cancelled; false if it had already
+         *         expired or been cancelled
+         */
+        public boolean cancel()
+        {
+            if (!status.compareAndSet(PENDING, CANCELLED))
+                return false;
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        /** Returns true if the timeout was cancelled. */
+        public boolean isCancelled()
+        {
+            return status.get() == CANCELLED;
+        }
+
+        /** Returns true if the task has run or is running. */
+        public boolean isExpired()
+        {
+            return status.get() == EXPIRED;
+        }
+    }
+
+    /** A doubly linked list of timeouts that expire during the same tick. */
+    private static final class Bucket
+    {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            if (head == null)
+                head = tail = timeout;
+            else
+            {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        // Runs timeouts whose final round has come and counts down the rest.
+        void expire()
+        {
+            Timeout timeout = head;
+            while (timeout != null)
+            {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0)
+                {
+                    remove(timeout);
+                    if (timeout.status.compareAndSet(Timeout.PENDING,
+                            Timeout.EXPIRED))
+                    {
+                        try
+                        {
+                            timeout.task.run();
+                        }
+                        catch (Throwable t)
+                        {
+                            logger.warn("Timer task failed: " + timeout.task,
+                                    t);
+                        }
+                    }
+                }
+                else
+                    timeout.remainingRounds--;
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Creates and starts a new timer.
+     *
+     * @param tickDuration Duration of one tick, which is the precision of the
+     *            timer
+     * @param unit Unit of the tick duration
+     * @param ticksPerWheel Number of buckets on the wheel, which is rounded up
+     *            to a power of two
+     */
+    public HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel)
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException(
+                    "Tick duration must be positive: " + tickDuration);
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+            throw new IllegalArgumentException("Invalid wheel size: "
+                    + ticksPerWheel);
+
+        int size = 1;
+        while (size < ticksPerWheel)
+            size <<= 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+
+        worker = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                runWheel();
+            }
+        }, "fsm-timer-" + instances.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Returns a shared timer with a 10 millisecond tick, creating it on first
+     * use.
+     */
+    public static HashedWheelTimer getDefault()
+    {
+        HashedWheelTimer timer = defaultTimer;
+        if (timer == null)
+        {
+            synchronized (HashedWheelTimer.class)
+            {
+                timer = defaultTimer;
+                if (timer == null)
+                {
+                    timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+                    defaultTimer = timer;
+                }
+            }
+        }
+        return timer;
+    }
+
+    /**
+     * Schedules a task to run once after a delay.
+     *
+     * @param task Task to run on the timer thread
+     * @param delay Delay after which the task runs
+     * @param unit Unit of the delay
+     * @return A handle that may be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        if (stopped)
+            throw new IllegalStateException("Timer has been stopped");
+        long deadline = System.nanoTime() - startNanos
+                + Math.max(unit.toNanos(delay), 0);
+        Timeout timeout = new Timeout(this, task, deadline);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer thread. Pending timeouts never run.
+     */
+    public void stop()
+    {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    // Advances the wheel once per tick until stopped.
+    private void runWheel()
+    {
+        long tick = 0;
+        while (!stopped)
+        {
+            // Wait for the end of the current tick.
+            long tickEnd = tickNanos * (tick + 1);
+            long now;
+            while ((now = System.nanoTime() - startNanos) < tickEnd)
+            {
+                LockSupport.parkNanos(this, tickEnd - now);
+                if (stopped)
+                    return;
+            }
+
+            removeCancelled();
+            placeScheduled(tick);
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    // Unlinks cancelled timeouts from their buckets.
+    private void removeCancelled()
+    {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null)
+        {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    // Moves newly scheduled timeouts onto the wheel. Timeouts whose deadline
+    // has already passed go in the current bucket.
+    private void placeScheduled(long tick)
+    {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null)
+        {
+            if (timeout.status.get() != Timeout.PENDING)
+                continue;
+            long expiryTick = Math.max(
+                    (timeout.deadline + tickNanos - 1) / tickNanos - 1, tick);
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Listens for state changes of {@link StateMachineEngine} instances, which
+ * are identified by id since their entities may be null or shared. Engines
+ * call {@link #stateChanged(int, Entity, State, State)} on listeners that
+ * implement this interface; state machines, which have no instance id, call
+ * the inherited method.
+ *
+ * @param <ET> The entity type for which the state machine is defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public interface InstanceStateChangeListener<ET extends Entity>
+        extends
+            StateChangeListener<ET>
+{
+    /**
+     * Called to indicate a state change of an engine instance. The same
+     * rules apply as for
+     * {@link StateChangeListener#stateChanged(Entity, State, State)}.
+     *
+     * @param id Id of the instance whose state changed
+     * @param entity Entity of the instance, which may be null
+     * @param oldState Old state of the instance
+     * @param newState New state of the instance
+     */
+    public void stateChanged(int id, ET entity, State<ET> oldState,
+            State<ET> newState);
+}
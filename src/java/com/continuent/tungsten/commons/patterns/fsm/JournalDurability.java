@@ -0,0 +1,51 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Enumerates the durability guarantees offered by a
+ * {@link TransitionJournal}.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public enum JournalDurability
+{
+    /**
+     * Each record is forced to disk before the transition completes. This is
+     * the safest and slowest setting.
+     */
+    PER_EVENT,
+
+    /**
+     * Each record is forced to disk before the transition completes, but
+     * records appended concurrently share a single flush (group commit).
+     */
+    BATCHED,
+
+    /**
+     * Records are forced to disk at a fixed interval and transitions never
+     * wait. A crash may lose transitions made during the last interval.
+     */
+    PERIODIC;
+}
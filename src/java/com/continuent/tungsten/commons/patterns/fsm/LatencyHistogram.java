@@ -0,0 +1,165 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records a distribution of durations in nanoseconds. Values are counted in
+ * buckets whose width grows with the value: each power of two is split into
+ * 16 equal sub-buckets, so any recorded value is reported within about 6% of
+ * its true value across the whole range of a long. Recording is lock-free and
+ * does not allocate.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public final class LatencyHistogram
+{
+    // Number of bits used to split each power of two into sub-buckets.
+    private static final int     SUB_BUCKET_BITS  = 4;
+    private static final int     SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int     BUCKET_COUNT     = (64 - SUB_BUCKET_BITS)
+                                                          * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets          = new AtomicLongArray(
+                                                          BUCKET_COUNT);
+    private final LongAdder      count            = new LongAdder();
+    private final LongAdder      total            = new LongAdder();
+    private final AtomicLong     max              = new AtomicLong();
+
+    /**
+     * Records a single value. Negative values are recorded as zero.
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(indexOf(nanos));
+        count.increment();
+        total.add(nanos);
+
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    /** Returns the number of recorded values. */
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    /** Returns the largest recorded value or 0 if there are none. */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /** Returns the mean of recorded values or 0 if there are none. */
+    public double getMean()
+    {
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Returns a value that is at least as large as the given percentage of
+     * recorded values, or 0 if there are none.
+     *
+     * @param percentile A percentile from 0 to 100
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long[] counts = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if (n == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * n);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueIn(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with a reset
+     * may be partially cleared.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    // Returns the bucket that counts a non-negative value.
+    static int indexOf(long value)
+    {
+        if (value < SUB_BUCKET_COUNT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Returns the largest value counted by a bucket.
+    static long highestValueIn(int index)
+    {
+        if (index < SUB_BUCKET_COUNT)
+            return index;
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT) << shift;
+        long highest = lowest + (1L << shift) - 1;
+        return (highest < 0) ? Long.MAX_VALUE : highest;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see java.lang.Object#toString()
+     */
+    public String toString()
+    {
+        return "count=" + getCount() + " mean=" + (long) getMean() + " p50="
+                + getValueAtPercentile(50) + " p99="
+                + getValueAtPercentile(99) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+/**
+ * Enumerates what an {@link AsyncStateChangeListener} does with a state
+ * change when its buffer of pending notifications is full.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public enum ListenerOverflowPolicy
+{
+    /**
+     * The thread processing the event waits until there is room. No
+     * notifications are lost, but a slow listener stalls event processing
+     * once the buffer is full.
+     */
+    BLOCK,
+
+    /**
+     * The oldest pending notification is discarded to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The change is merged into the latest pending notification from the same
+     * state machine, or the same instance of a {@link StateMachineEngine},
+     * which then reports the old state of that notification and the new state
+     * of this change. Entities are not compared. If there is no pending
+     * notification from the same machine, this falls back to
+     * {@link #DROP_OLDEST}: the oldest pending notification is discarded,
+     * even though it may come from another machine.
+     */
+    COALESCE;
+}
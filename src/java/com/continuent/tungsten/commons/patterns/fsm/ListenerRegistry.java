@@ -0,0 +1,99 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the state change listeners of a {@link StateMachine} or
+ * {@link StateMachineEngine}. The listeners are kept in an array that is
+ * copied on write and swapped in with compare-and-set, so notification
+ * iterates a stable snapshot without locking and listeners can be added or
+ * removed at any time without waiting for event processing.
+ *
+ * @param <ET> The entity type for which the state machine is defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class ListenerRegistry<ET extends Entity>
+{
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<StateChangeListener<ET>[]> listeners = new AtomicReference<StateChangeListener<ET>[]>(
+                                                                               (StateChangeListener<ET>[]) new StateChangeListener<?>[0]);
+
+    /**
+     * Returns the current listeners. The array must not be modified.
+     */
+    StateChangeListener<ET>[] getListeners()
+    {
+        return listeners.get();
+    }
+
+    /** Adds a listener. */
+    void add(StateChangeListener<ET> listener)
+    {
+        while (true)
+        {
+            StateChangeListener<ET>[] current = listeners.get();
+            StateChangeListener<ET>[] updated = Arrays.copyOf(current,
+                    current.length + 1);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(current, updated))
+                return;
+        }
+    }
+
+    /**
+     * Removes the first listener that is equal to the given listener or is
+     * an asynchronous listener wrapping it.
+     *
+     * @return True if a listener was removed
+     */
+    boolean remove(Object listener)
+    {
+        while (true)
+        {
+            StateChangeListener<ET>[] current = listeners.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++)
+            {
+                if (AsyncStateChangeListener.matches(current[i], listener))
+                {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return false;
+
+            StateChangeListener<ET>[] updated = Arrays.copyOf(current,
+                    current.length - 1);
+            System.arraycopy(current, index + 1, updated, index,
+                    current.length - index - 1);
+            if (listeners.compareAndSet(current, updated))
+                return true;
+        }
+    }
+}
@@ -27,14 +27,35 @@ import java.util.regex.Pattern;
 
 /**
  * Defines a guard that accepts an event if its object is a string that matches
- * the regular expression supplied with the guard.
+ * the regular expression supplied with the guard. Expressions that contain no
+ * regex metacharacters are treated as literals and matched using string
+ * equality. Other expressions are matched with a matcher kept for each thread,
+ * so evaluating the guard does not allocate on a thread that has evaluated it
+ * before. The first evaluation on each new thread allocates a matcher, which
+ * includes every virtual thread started to drain a mailbox when virtual
+ * threads are enabled.
  * 
  * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
  * @version 1.0
  */
 public class RegexGuard<ET extends Entity> implements Guard<ET, String>
 {
-    Pattern pattern;
+    // Characters with special meaning in a regular expression.
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    Pattern                     pattern;
+    private final String        literal;
+
+    // Matcher reused by each thread so that evaluating the guard again on the
+    // same thread does not allocate.
+    private final ThreadLocal<Matcher> matcher = new ThreadLocal<Matcher>()
+    {
+        @Override
+        protected Matcher initialValue()
+        {
+            return pattern.matcher("");
+        }
+    };
 
     /**
      * Creates a new <code>RegexGuard</code> object
@@ -44,6 +65,38 @@ public class RegexGuard<ET extends Entity> implements Guard<ET, String>
     public RegexGuard(String regex)
     {
         pattern = Pattern.compile(regex);
+        literal = toLiteral(regex);
+    }
+
+    /**
+     * Returns the compiled pattern for this guard.
+     */
+    public Pattern getPattern()
+    {
+        return pattern;
+    }
+
+    /**
+     * Returns the string matched by this guard if the expression is a plain
+     * literal or null if it contains regex metacharacters.
+     */
+    public String getLiteral()
+    {
+        return literal;
+    }
+
+    /**
+     * Returns the regex unchanged if it contains no metacharacters and hence
+     * matches only itself, otherwise null.
+     */
+    static String toLiteral(String regex)
+    {
+        for (int i = 0; i < regex.length(); i++)
+        {
+            if (METACHARACTERS.indexOf(regex.charAt(i)) >= 0)
+                return null;
+        }
+        return regex;
     }
 
     /**
@@ -56,11 +109,24 @@ public class RegexGuard<ET extends Entity> implements Guard<ET, String>
     @Override
     public boolean accept(Event<String> message, ET entity, State<?> state)
     {
-        String o = message.getData();
-        if (o != null)
+        // Events of other types may reach this guard, so check the data type
+        // rather than relying on the declared one.
+        Object data = ((Event<?>) message).getData();
+        if (data instanceof String)
         {
-            Matcher m = pattern.matcher(o);
-            return m.matches();
+            String o = (String) data;
+            if (literal != null)
+                return literal.equals(o);
+            Matcher m = matcher.get();
+            try
+            {
+                return m.reset(o).matches();
+            }
+            finally
+            {
+                // Do not hold on to event data.
+                m.reset("");
+            }
         }
         else
             return false;
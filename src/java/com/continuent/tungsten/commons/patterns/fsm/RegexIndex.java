@@ -0,0 +1,235 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches string event data against all {@link RegexGuard} transitions of a
+ * dispatch table at once. Literal expressions are looked up in a hash map.
+ * Remaining expressions are combined into a single alternation in which each
+ * expression is wrapped in its own group; since alternatives are tried in
+ * order, the first group that participates in a match identifies the first
+ * matching transition. Expressions that cannot safely be combined, such as
+ * those containing back-references or named groups, are left for ordinary
+ * guard evaluation.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class RegexIndex
+{
+    // Marks transitions whose guard is resolved by this index.
+    private final boolean[]                indexed;
+
+    // First transition index for each literal.
+    private final HashMap<String, Integer> literals;
+
+    // Combined expression, the group number wrapping each expression, and
+    // the transition index to which each group belongs.
+    private final Pattern                  combined;
+    private final int[]                    groups;
+    private final int[]                    groupTransitions;
+
+    // Matcher for the combined expression reused by each thread. As in
+    // RegexGuard, each new thread allocates its own on first use.
+    private final ThreadLocal<Matcher>     matcher;
+
+    private RegexIndex(boolean[] indexed, HashMap<String, Integer> literals,
+            Pattern combined, int[] groups, int[] groupTransitions)
+    {
+        this.indexed = indexed;
+        this.literals = literals;
+        this.combined = combined;
+        this.groups = groups;
+        this.groupTransitions = groupTransitions;
+        this.matcher = (combined == null) ? null : new ThreadLocal<Matcher>()
+        {
+            @Override
+            protected Matcher initialValue()
+            {
+                return RegexIndex.this.combined.matcher("");
+            }
+        };
+    }
+
+    /**
+     * Builds an index over the regex guards of a set of transitions.
+     *
+     * @param transitions Transitions in evaluation order
+     * @return An index or null if no transition has a regex guard
+     */
+    static RegexIndex build(Transition<?, ?>[] transitions)
+    {
+        boolean[] indexed = new boolean[transitions.length];
+        HashMap<String, Integer> literals = new HashMap<String, Integer>();
+        List<Integer> regexTransitions = new ArrayList<Integer>();
+        List<Integer> regexGroups = new ArrayList<Integer>();
+        StringBuilder alternation = new StringBuilder();
+        int nextGroup = 1;
+        boolean found = false;
+
+        for (int i = 0; i < transitions.length; i++)
+        {
+            // Transition subclasses may override accept() and decide for
+            // themselves.
+            Guard<?, ?> guard = transitions[i].getGuard();
+            if (transitions[i].getClass() != Transition.class || guard == null
+                    || guard.getClass() != RegexGuard.class)
+                continue;
+
+            RegexGuard<?> regexGuard = (RegexGuard<?>) guard;
+            String literal = regexGuard.getLiteral();
+            if (literal != null)
+            {
+                if (!literals.containsKey(literal))
+                    literals.put(literal, i);
+                indexed[i] = true;
+                found = true;
+            }
+            else if (isCombinable(regexGuard.getPattern().pattern()))
+            {
+                if (alternation.length() > 0)
+                    alternation.append('|');
+                alternation.append('(')
+                        .append(regexGuard.getPattern().pattern()).append(')');
+                regexTransitions.add(i);
+                regexGroups.add(nextGroup);
+                nextGroup += 1 + regexGuard.getPattern().matcher("")
+                        .groupCount();
+                indexed[i] = true;
+                found = true;
+            }
+        }
+
+        if (!found)
+            return null;
+
+        Pattern combined = null;
+        int[] groups = new int[regexGroups.size()];
+        int[] groupTransitions = new int[regexTransitions.size()];
+        if (regexTransitions.size() > 0)
+        {
+            try
+            {
+                combined = Pattern.compile(alternation.toString());
+                for (int i = 0; i < groups.length; i++)
+                {
+                    groups[i] = regexGroups.get(i);
+                    groupTransitions[i] = regexTransitions.get(i);
+                }
+            }
+            catch (PatternSyntaxException e)
+            {
+                // Leave these expressions to be evaluated one at a time.
+                for (Integer index : regexTransitions)
+                    indexed[index] = false;
+                groups = new int[0];
+                groupTransitions = new int[0];
+            }
+        }
+
+        return new RegexIndex(indexed, literals, combined, groups,
+                groupTransitions);
+    }
+
+    // Returns true if an expression keeps its meaning when renumbered inside
+    // a larger expression.
+    private static boolean isCombinable(String regex)
+    {
+        for (int i = 0; i < regex.length() - 1; i++)
+        {
+            char c = regex.charAt(i);
+            char next = regex.charAt(i + 1);
+            if (c == '\\')
+            {
+                // Back-references refer to absolute group numbers or names.
+                if (Character.isDigit(next) || next == 'k')
+                    return false;
+                i++;
+            }
+            else if (c == '(' && next == '?' && regex.startsWith("(?<", i)
+                    && i + 3 < regex.length()
+                    && Character.isLetter(regex.charAt(i + 3)))
+            {
+                // Named groups may clash with other expressions.
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the guard of the transition at the given index is
+     * evaluated by this index.
+     */
+    boolean isIndexed(int index)
+    {
+        return indexed[index];
+    }
+
+    /**
+     * Returns the index of the first indexed transition that matches the data
+     * or -1 if none does.
+     */
+    int firstMatch(String data)
+    {
+        int first = -1;
+        Integer literal = literals.get(data);
+        if (literal != null)
+            first = literal.intValue();
+
+        // Only run the combined expression if it could find an earlier
+        // transition than the literal lookup.
+        if (combined != null && (first < 0 || groupTransitions[0] < first))
+        {
+            Matcher m = matcher.get();
+            try
+            {
+                if (m.reset(data).matches())
+                {
+                    for (int i = 0; i < groups.length; i++)
+                    {
+                        if (m.start(groups[i]) >= 0)
+                        {
+                            if (first < 0 || groupTransitions[i] < first)
+                                first = groupTransitions[i];
+                            break;
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                // Do not hold on to event data.
+                m.reset("");
+            }
+        }
+        return first;
+    }
+}
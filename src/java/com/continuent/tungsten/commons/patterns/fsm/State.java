@@ -50,6 +50,10 @@ public class State<ET extends Entity>
     private final State<ET>[]   hierarchy;
     private List<State<ET>>     children = new ArrayList<State<ET>>();
 
+    // Ordinal assigned by the first map to which this state was added.
+    private volatile Object     ordinalOwner;
+    private int                 ordinal  = -1;
+
     /**
      * Creates a new state.
      * 
@@ -254,6 +258,40 @@ public class State<ET extends Entity>
         return "State: " + getName();
     }
     
+    /**
+     * Records the ordinal assigned by a map unless the state already belongs
+     * to another map.
+     */
+    void setOrdinal(StateTransitionMap<?> map, int ordinal)
+    {
+        synchronized (this)
+        {
+            if (ordinalOwner == null)
+            {
+                this.ordinal = ordinal;
+                this.ordinalOwner = map;
+            }
+        }
+    }
+
+    /**
+     * Returns the ordinal assigned by a map or -1 if the state's ordinal was
+     * assigned by a different map.
+     */
+    int getOrdinal(StateTransitionMap<?> map)
+    {
+        return (ordinalOwner == map) ? ordinal : -1;
+    }
+
+    /**
+     * Returns a hash code based on the fully qualified name, consistent with
+     * {@link #equals(Object)}.
+     */
+    public int hashCode()
+    {
+        return (qualifiedName == null) ? 0 : qualifiedName.hashCode();
+    }
+
     /**
      * Returns true if state names match. 
      */
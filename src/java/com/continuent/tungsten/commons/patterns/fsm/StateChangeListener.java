@@ -38,6 +38,10 @@ public interface StateChangeListener<ET extends Entity>
      * release the monitor on the state machine instance.  Also, if the 
      * listener is in another thread it may not make calls to the state
      * machine that synchronize on the monitor or a deadlock will result. 
+     * In lock-free mode the monitor is not held, but the call still runs on
+     * the thread processing events and delays delivery of further events.
+     * Slow listeners should be registered through an
+     * {@link AsyncStateChangeListener}, which calls them on another thread.
      * 
      * @param entity Entity whose state changed
      * @param oldState Old state of entity
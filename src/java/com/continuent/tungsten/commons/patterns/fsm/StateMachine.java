@@ -22,8 +22,16 @@
 
 package com.continuent.tungsten.commons.patterns.fsm;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -74,7 +82,42 @@ import org.slf4j.LoggerFactory;
  * <p>
  * State machines enforce basic synchronization between threads by synchronizing
  * the applyEvent() call. Additional synchronization, if required, must be
- * supplied by the application.
+ * supplied by the application. The current state is published through a
+ * volatile reference, so getState() never blocks and always returns the most
+ * recently entered state.
+ * <p>
+ * Applications that poll state from many threads or deliver events from
+ * several threads at once may enable lock-free mode with
+ * {@link #setLockFreeEnabled(boolean)}. In this mode applyEvent() does not use
+ * the object monitor. Instead each caller places its event in a lock-free
+ * mailbox. Whichever caller finds the mailbox idle processes queued events in
+ * arrival order, including those of other callers, while the others park until
+ * their own event has been processed. Results and exceptions are delivered to
+ * each caller exactly as in the default mode.
+ * <p>
+ * Events may also be delivered asynchronously using {@link #submit(Event)},
+ * which queues the event in the same mailbox and returns at once. A single
+ * task on the event executor drains the mailbox, so submitted events are
+ * processed one at a time in the order they were submitted.
+ * <p>
+ * Applications whose actions block on I/O can process submitted events on
+ * virtual threads by calling {@link #setVirtualThreadsEnabled(boolean)}. This
+ * also enables lock-free mode, so that no monitor is held while actions run
+ * and blocked actions do not pin carrier threads. Since each drain runs on a
+ * new virtual thread, regex guards allocate their matchers again each time.
+ * <p>
+ * Transition counts, dwell times, and action execution times can be collected
+ * by setting a {@link StateMachineMetrics} instance with
+ * {@link #setMetrics(StateMachineMetrics)}. State changes can be recorded in a
+ * {@link TransitionJournal} with {@link #setJournal(TransitionJournal, long)}
+ * so that the state can be recovered after a crash.
+ * <p>
+ * Timeouts declared on the map with
+ * {@link StateTransitionMap#addTimeoutTransition(String, State, long, TimeUnit, Action, State)}
+ * are armed when the machine enters their state through a transition and
+ * cancelled when it leaves. An expired timeout delivers its event through the
+ * mailbox like {@link #submit(Event)}, on a {@link HashedWheelTimer} shared by
+ * all machines unless one is set with {@link #setTimer(HashedWheelTimer)}.
  * <p>
  * Finally, state machines have an error handling model that includes a family
  * of exceptions to signal error conditions both large and small. There is also
@@ -90,22 +133,201 @@ import org.slf4j.LoggerFactory;
 public class StateMachine<ET extends Entity>
 {
     private static Logger             logger              = LoggerFactory.getLogger(StateMachine.class);
-    private State<ET>                     state;
+
+    /** Default limit on the number of transitions chained from one event. */
+    public static final int           DEFAULT_MAX_CHAIN_DEPTH = 1000;
+
+    private static final int[]        NO_SLOTS                = new int[0];
+
+    private volatile State<ET>            state;
+    private int                       stateOrdinal        = -1;
     private final ET              entity;
     private final StateTransitionMap<ET>  map;
     private int                       transitions         = 0;
     private int                       maxTransitions      = 0;
-    private List<StateChangeListener<ET>> listeners           = new ArrayList<StateChangeListener<ET>>();
+    private final ListenerRegistry<ET> listeners           = new ListenerRegistry<ET>();
+    private final StateWaiters<ET>    waiters;
+
+    // Timeouts armed for the states the machine is in, indexed by timeout
+    // slot, and the number of times each slot has been armed, which
+    // identifies expirations of timeouts that have since been cancelled.
+    // Allocated when a timeout is first armed.
+    private HashedWheelTimer.Timeout[] armedTimeouts;
+    private int[]                     timeoutEpochs;
+    private volatile HashedWheelTimer timer;
     private boolean                   forwardChainEnabled = false;
+    private int                       maxChainDepth       = DEFAULT_MAX_CHAIN_DEPTH;
+
+    // True while a batch defers listener notification to its end.
+    private boolean                   coalescing;
+
+    // Optional metrics and the time at which the current state was entered,
+    // which is used to compute dwell times.
+    private volatile StateMachineMetrics metrics;
+    private long                      stateEnteredNanos;
+
+    // Optional journal that records each change of state and the id under
+    // which this machine's records are written.
+    private volatile TransitionJournal journal;
+    private volatile long             journalId;
+
+    // Lock-free mode. Callers queue events in the mailbox; the caller that
+    // raises the pending count from zero drains it on behalf of all others.
+    private volatile boolean          lockFreeEnabled     = false;
+    private final ConcurrentLinkedQueue<MailboxEntry<ET>> mailbox = new ConcurrentLinkedQueue<MailboxEntry<ET>>();
+    private final AtomicInteger       mailboxPending      = new AtomicInteger();
+    private volatile Thread           mailboxOwner;
+
+    // Executor that drains the mailbox for events delivered by submit().
+    private volatile Executor         eventExecutor       = ForkJoinPool.commonPool();
+    private final Runnable            drainTask           = new Runnable()
+    {
+        public void run()
+        {
+            drainMailbox();
+        }
+    };
+
+    /**
+     * An event waiting in the mailbox together with the caller that delivered
+     * it and the outcome of processing it. Submitted events have a future
+     * rather than a waiting caller.
+     */
+    private static final class MailboxEntry<ET extends Entity>
+    {
+        final Event<?>                    event;
+        final Thread                      caller;
+        final CompletableFuture<State<ET>> future;
+        Throwable                         error;
+        volatile boolean                  done;
+
+        // Slot and arm count of an expired timeout, or -1 for other events.
+        int                               timeoutSlot = -1;
+        int                               timeoutEpoch;
+
+        // Batch of events processed together, or null for a single event.
+        Batch<ET>                         batch;
+
+        // True if an unmatched event is reported in the disposition rather
+        // than as an error, and the outcome of processing the event.
+        boolean                           tolerant;
+        EventDisposition                  disposition;
+
+        MailboxEntry(Event<?> event, Thread caller,
+                CompletableFuture<State<ET>> future)
+        {
+            this.event = event;
+            this.caller = caller;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A batch of events given to applyEvents() and, once processed, the
+     * result. Events come from an array range or from an iterable.
+     */
+    private static final class Batch<ET extends Entity>
+    {
+        final Event<?>[]                  array;
+        final int                         from;
+        final int                         to;
+        final Iterable<? extends Event<?>> iterable;
+        final boolean                     coalesce;
+        EventBatchResult<ET>              result;
+
+        Batch(Event<?>[] array, int from, int to,
+                Iterable<? extends Event<?>> iterable, boolean coalesce)
+        {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+            this.iterable = iterable;
+            this.coalesce = coalesce;
+        }
+    }
+
+    /**
+     * Delivers the expiration of a timeout from the timer thread.
+     */
+    private final class TimeoutTask implements Runnable
+    {
+        final int slot;
+        final int epoch;
+
+        TimeoutTask(int slot, int epoch)
+        {
+            this.slot = slot;
+            this.epoch = epoch;
+        }
+
+        public void run()
+        {
+            MailboxEntry<ET> entry = new MailboxEntry<ET>(null, null, null);
+            entry.timeoutSlot = slot;
+            entry.timeoutEpoch = epoch;
+            enqueue(entry);
+        }
+    }
 
     /**
-     * Creates a new state machine in the default initialization state.
+     * Creates a new state machine in the default initialization state and
+     * arms the timeouts of that state.
      */
     public StateMachine(StateTransitionMap<ET> map, ET entity)
     {
         this.map = map;
         this.entity = entity;
         this.state = map.getStartState();
+        this.waiters = new StateWaiters<ET>(map);
+        updateTimeouts(NO_SLOTS, map.getTimeoutsToArm(state));
+    }
+
+    /**
+     * Creates a new state machine in a given state, for example to resume a
+     * state machine whose state was recovered from a
+     * {@link TransitionJournal} or read from a {@link StateMachineSnapshot}.
+     * Entry actions of the state are not fired, but timeouts of the state and
+     * its enclosing states are armed afresh.
+     *
+     * @param map A state transition map, which must already be built
+     * @param entity Entity whose state is managed by this state machine
+     * @param state Initial state, which must belong to the map
+     * @throws FiniteStateException Thrown if the map has not been built or
+     *             does not contain the state
+     */
+    public StateMachine(StateTransitionMap<ET> map, ET entity, State<ET> state)
+            throws FiniteStateException
+    {
+        this.map = map;
+        this.entity = entity;
+        this.waiters = new StateWaiters<ET>(map);
+        this.stateOrdinal = map.getOrdinal(state);
+        if (stateOrdinal < 0)
+            throw new FiniteStateException(
+                    "State is not part of the state transition map: " + state);
+        this.state = map.getState(stateOrdinal);
+        updateTimeouts(NO_SLOTS, map.getTimeoutsToArm(this.state));
+    }
+
+    /**
+     * Returns the timer that runs timeouts for this state machine, including
+     * those of {@link #awaitState(State, long, TimeUnit)}, which is the shared
+     * {@link HashedWheelTimer#getDefault()} timer unless another has been
+     * set.
+     */
+    public HashedWheelTimer getTimer()
+    {
+        HashedWheelTimer current = timer;
+        return (current == null) ? HashedWheelTimer.getDefault() : current;
+    }
+
+    /**
+     * Sets the timer that runs timeouts armed from now on, or restores the
+     * shared timer if the timer is null.
+     */
+    public void setTimer(HashedWheelTimer timer)
+    {
+        this.timer = timer;
     }
 
     /**
@@ -120,26 +342,133 @@ public class StateMachine<ET extends Entity>
     }
 
     /**
-     * Add a state change listener. 
+     * Add a state change listener. Adding and removing listeners does not
+     * synchronize on the state machine, so it never waits for event
+     * processing. A listener added while an event is processed may or may not
+     * see the resulting change.
      */
-    public synchronized void addListener(StateChangeListener<ET> listener)
+    public void addListener(StateChangeListener<ET> listener)
     {
         listeners.add(listener);
     }
 
     /**
-     * Remove a state change listener if it exists.
+     * Adds a state change listener that is notified asynchronously through a
+     * bounded buffer, so that it does not delay event processing. Changes are
+     * delivered in order. The returned wrapper or the listener itself may be
+     * passed to {@link #removeListener(StateChangeListener)}.
+     *
+     * @param listener Listener to notify
+     * @param capacity Maximum number of notifications waiting for delivery
+     * @param policy What to do with changes when the buffer is full
+     * @return The asynchronous wrapper that was added
+     */
+    public AsyncStateChangeListener<ET> addListener(
+            StateChangeListener<ET> listener, int capacity,
+            ListenerOverflowPolicy policy)
+    {
+        AsyncStateChangeListener<ET> async = new AsyncStateChangeListener<ET>(
+                listener, capacity, policy);
+        addListener(async);
+        return async;
+    }
+
+    /**
+     * Remove a state change listener if it exists. An asynchronous listener
+     * may be removed by passing the listener it wraps.
      * 
      * @return True if the listener was removed; false if it could not be found
      */
-    public synchronized boolean removeListener(StateChangeListener listener)
+    public boolean removeListener(StateChangeListener listener)
     {
         return listeners.remove(listener);
     }
 
+    /**
+     * Returns a future that completes when the machine is in the expected
+     * state or one of its substates. The future completes with the state the
+     * machine is in at that time, immediately if it is already there. Unlike a
+     * {@link StateTransitionLatch}, waiting does not need a thread.
+     * <p>
+     * The future is completed by the thread that changes the state, which
+     * runs dependent stages that are not asynchronous while processing the
+     * event. Cancelling the future stops the wait.
+     *
+     * @param expected State to wait for
+     * @return A future that completes with the state reached or exceptionally
+     *         with a {@link FiniteStateException} if the state is not part of
+     *         the map or the map has not been built
+     */
+    public CompletableFuture<State<ET>> stateFuture(State<ET> expected)
+    {
+        return stateFuture(expected, false);
+    }
+
+    /**
+     * Returns a future that completes when the machine is in the expected
+     * state or one of its substates or, optionally, in the error state. See
+     * {@link #stateFuture(State)}.
+     *
+     * @param expected State to wait for
+     * @param endOnError If true, complete with the error state if the machine
+     *            enters it first
+     */
+    public CompletableFuture<State<ET>> stateFuture(State<ET> expected,
+            boolean endOnError)
+    {
+        return waitForState(expected, endOnError, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns a future that completes when the machine is in the expected
+     * state or one of its substates or in the error state, whichever comes
+     * first, or exceptionally with a {@link TimeoutException} once the
+     * timeout expires on the machine's timer, which may be up to one tick
+     * late. See {@link #stateFuture(State)}.
+     *
+     * @param expected State to wait for
+     * @param timeout Maximum time to wait
+     * @param unit Unit of the timeout
+     */
+    public CompletableFuture<State<ET>> awaitState(State<ET> expected,
+            long timeout, TimeUnit unit)
+    {
+        // A timeout that has already expired only checks the current state.
+        CompletableFuture<State<ET>> future = waitForState(expected, true,
+                Math.max(timeout, 0), unit);
+        if (timeout <= 0)
+            future.completeExceptionally(new TimeoutException(
+                    "Timed out waiting for state: " + expected.getName()));
+        return future;
+    }
+
+    // Registers a waiter and then checks the current state. The state is set
+    // before waiters are completed, so no change can be missed.
+    private CompletableFuture<State<ET>> waitForState(State<ET> expected,
+            boolean endOnError, long timeout, TimeUnit unit)
+    {
+        CompletableFuture<State<ET>> future = waiters.add(expected,
+                endOnError, timeout, unit, getTimer());
+        if (!future.isDone())
+        {
+            State<ET> current = state;
+            waiters.stateChanged(map.ordinalOf(current), current);
+        }
+        return future;
+    }
+
     /**
      * Applies a message to the state transition diagram, thereby triggering the
      * next state.
+     * <p>
+     * Once the map and the machine are warmed up, this method does not
+     * allocate memory as long as debug logging is off and actions and
+     * listeners do not allocate themselves, including when transitions are
+     * forward chained. This holds for events processed on the calling thread.
+     * In lock-free mode each call allocates a small mailbox entry, and events
+     * processed on a new thread, such as a virtual thread started to drain the
+     * mailbox, allocate a matcher for each regex guard they evaluate. Events
+     * that the current state ignores are discarded silently.
      * 
      * @param event A event
      * @throws TransitionNotFoundException Thrown if an appropriate transition
@@ -148,194 +477,586 @@ public class StateMachine<ET extends Entity>
      *             back cleanly by action code
      * @throws FiniteStateException Thrown if a generic error occurs
      */
-    public synchronized void applyEvent(Event<?> event)
+    public void applyEvent(Event<?> event) throws FiniteStateException
+    {
+        if (lockFreeEnabled)
+            applyEventThroughMailbox(event);
+        else
+        {
+            synchronized (this)
+            {
+                processMatchedEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Applies an event like {@link #applyEvent(Event)} but reports events that
+     * no transition accepts with a status instead of an exception, so that
+     * events which most states legitimately do not handle are cheap to
+     * deliver. Rollbacks, action failures, and other errors are still thrown.
+     * 
+     * @param event An event
+     * @return Whether the event was applied, ignored, or not matched
+     * @throws TransitionRollbackException Thrown if the transition is rolled
+     *             back cleanly by action code
+     * @throws FiniteStateException Thrown if a generic error occurs
+     */
+    public EventDisposition tryApplyEvent(Event<?> event)
             throws FiniteStateException
     {
-        TransitionFailureException deferredException = null;
+        if (lockFreeEnabled)
+        {
+            MailboxEntry<ET> entry = new MailboxEntry<ET>(event, Thread
+                    .currentThread(), null);
+            entry.tolerant = true;
+            applyThroughMailbox(entry);
+            return entry.disposition;
+        }
+        else
+        {
+            synchronized (this)
+            {
+                return processEvent(event);
+            }
+        }
+    }
 
-        if (maxTransitions > 0)
+    /**
+     * Applies a range of events in order, stopping at the first event that
+     * cannot be applied. See {@link #applyEvents(Event[], int, int, boolean)}.
+     */
+    public EventBatchResult<ET> applyEvents(Event<?>[] events, int from, int to)
+    {
+        return applyEvents(events, from, to, false);
+    }
+
+    /**
+     * Applies a range of events in order as a single unit of work, for
+     * example to replay a backlog. The batch acquires the monitor, or in
+     * lock-free mode occupies the mailbox, once for all of its events, so
+     * events from other threads are not interleaved. Each event otherwise
+     * follows the rules of {@link #applyEvent(Event)}.
+     * <p>
+     * Processing stops at the first event that raises a
+     * {@link FiniteStateException}, which is returned in the result rather
+     * than thrown. Events that follow it are not applied. Unchecked
+     * exceptions from actions or listeners are thrown as usual.
+     *
+     * @param events Array of events
+     * @param from Index of the first event to apply
+     * @param to Index after the last event to apply
+     * @param coalesceNotifications If true, listeners and state waiters are
+     *            notified once at the end of the batch with the state before
+     *            the batch and the final state, and not at all if the two are
+     *            the same; otherwise they see every change
+     * @return The number of events applied, the final state, and the
+     *         exception that stopped the batch, if any
+     */
+    public EventBatchResult<ET> applyEvents(Event<?>[] events, int from,
+            int to, boolean coalesceNotifications)
+    {
+        if (from < 0 || to > events.length || from > to)
+            throw new IndexOutOfBoundsException("Invalid event range: from="
+                    + from + " to=" + to + " length=" + events.length);
+        return applyBatch(new Batch<ET>(events, from, to, null,
+                coalesceNotifications));
+    }
+
+    /**
+     * Applies events in iteration order, stopping at the first event that
+     * cannot be applied. See {@link #applyEvents(Event[], int, int, boolean)}.
+     */
+    public EventBatchResult<ET> applyEvents(Iterable<? extends Event<?>> events)
+    {
+        return applyEvents(events, false);
+    }
+
+    /**
+     * Applies events in iteration order as a single unit of work. See
+     * {@link #applyEvents(Event[], int, int, boolean)}.
+     */
+    public EventBatchResult<ET> applyEvents(
+            Iterable<? extends Event<?>> events, boolean coalesceNotifications)
+    {
+        return applyBatch(new Batch<ET>(null, 0, 0, events,
+                coalesceNotifications));
+    }
+
+    // Processes a batch under the monitor or through the mailbox.
+    private EventBatchResult<ET> applyBatch(Batch<ET> batch)
+    {
+        if (lockFreeEnabled)
         {
-            transitions++;
-            if (transitions > maxTransitions)
-                throw new FiniteStateException(
-                        "Max transition count exceeded: state="
-                                + state.getName() + " transition count="
-                                + transitions);
+            MailboxEntry<ET> entry = new MailboxEntry<ET>(null, Thread
+                    .currentThread(), null);
+            entry.batch = batch;
+            try
+            {
+                applyThroughMailbox(entry);
+            }
+            catch (FiniteStateException e)
+            {
+                // Batches report these in the result.
+                throw new IllegalStateException(e);
+            }
+            return batch.result;
         }
+        else
+        {
+            synchronized (this)
+            {
+                return processBatch(batch);
+            }
+        }
+    }
 
-        // Find the next transition. This is guaranteed to be non-null.
-        Transition<ET, ?> transition = map.nextTransition(state, event, entity);
-        State<ET> nextState = transition.getOutput();
-        logger.debug("Executing state transition: input state={} transition={} output state={}",
-                new Object[] {state.getName(), transition.getName(), nextState.getName()});
+    /**
+     * Delivers an event through the mailbox and waits until it has been
+     * processed, either by this thread or by the thread currently draining the
+     * mailbox.
+     */
+    private void applyEventThroughMailbox(Event<?> event)
+            throws FiniteStateException
+    {
+        applyThroughMailbox(new MailboxEntry<ET>(event, Thread
+                .currentThread(), null));
+    }
 
-        int actionType = -1;
-        try
+    /**
+     * Delivers a mailbox entry and waits until it has been processed. The
+     * entry's caller must be the current thread.
+     */
+    private void applyThroughMailbox(MailboxEntry<ET> entry)
+            throws FiniteStateException
+    {
+        // Actions that deliver events to their own state machine are already
+        // running on the draining thread, so process the event immediately as
+        // a reentrant monitor would.
+        Thread current = entry.caller;
+        if (mailboxOwner == current)
         {
-            // Compute the least common parent between the current and next
-            // state. Entry and exit actions fire below this state only in
-            // the state hierarchy.
-            State<ET> leastCommonParent = state.getLeastCommonParent(nextState);
+            processEntry(entry);
+            return;
+        }
 
-            // If we are transitioning to a new state look for exit actions.
-            if (state != nextState)
-            {
-                // Fire exit actions up to the state below the least common
-                // parent
-                // if it exists.
-                State<ET> exitState = state;
-                logger.debug("Searching for exit actions for current state: {}",
-                                state.getName());
-
-                while (exitState != null && exitState != leastCommonParent)
-                {
-                    if (exitState.getExitAction() != null)
-                    {
-                        Action<ET> exitAction = exitState.getExitAction();
-                        actionType = Action.EXIT_ACTION;
-                        logger.debug("Executing exit action for state: {}",
-                                exitState.getName());
-                        exitAction.doAction(event, entity, transition,
-                                actionType);
-                    }
+        mailbox.offer(entry);
+        if (mailboxPending.getAndIncrement() == 0)
+            drainMailbox();
 
-                    exitState = exitState.getParent();
-                }
-            }
+        // Wait for our event to be processed. Interrupts cannot abandon an
+        // event once it is queued, so preserve them for the caller.
+        boolean interrupted = false;
+        while (!entry.done)
+        {
+            LockSupport.park(this);
+            if (Thread.interrupted())
+                interrupted = true;
+        }
+        if (interrupted)
+            current.interrupt();
+
+        Throwable error = entry.error;
+        if (error == null)
+            return;
+        else if (error instanceof FiniteStateException)
+            throw (FiniteStateException) error;
+        else if (error instanceof RuntimeException)
+            throw (RuntimeException) error;
+        else
+            throw (Error) error;
+    }
+
+    /**
+     * Queues an event for asynchronous processing and returns immediately.
+     * Submitted events are processed one at a time, in submission order, by a
+     * task running on the event executor. In lock-free mode they share the
+     * mailbox with applyEvent() callers; otherwise the task acquires the
+     * object monitor for each event, and ordering relative to concurrent
+     * applyEvent() calls is not defined.
+     * 
+     * @param event An event
+     * @return A future that completes with the state of the machine after the
+     *         event is processed or exceptionally with the
+     *         {@link FiniteStateException} or other exception that
+     *         applyEvent() would have thrown
+     */
+    public CompletableFuture<State<ET>> submit(Event<?> event)
+    {
+        CompletableFuture<State<ET>> future = new CompletableFuture<State<ET>>();
+        enqueue(new MailboxEntry<ET>(event, null, future));
+        return future;
+    }
 
-            // Fire transition action if it exists.
-            if (transition.getAction() != null)
+    /**
+     * Queues a mailbox entry and starts a task on the event executor to drain
+     * the mailbox if none is running.
+     */
+    private void enqueue(MailboxEntry<ET> entry)
+    {
+        mailbox.offer(entry);
+        if (mailboxPending.getAndIncrement() == 0)
+        {
+            try
             {
-                Action<ET> transitionAction = transition.getAction();
-                actionType = Action.TRANSITION_ACTION;
-                logger.debug("Executing action for transition: {}",
-                        transition.getName());
-                transitionAction
-                        .doAction(event, entity, transition, actionType);
+                eventExecutor.execute(drainTask);
             }
+            catch (RejectedExecutionException e)
+            {
+                // Nobody else can drain the mailbox now, so do it here.
+                logger.warn("Event executor rejected mailbox task; processing events in calling thread");
+                drainMailbox();
+            }
+        }
+    }
 
-            // If we are transitioning to a new state look for entry actions.
-            if (state != nextState)
+    /**
+     * Processes queued events until the mailbox is empty. Only one thread runs
+     * this method at a time, which is guaranteed by the pending count.
+     */
+    private void drainMailbox()
+    {
+        int pending = 1;
+        do
+        {
+            mailboxOwner = Thread.currentThread();
+            MailboxEntry<ET> entry;
+            while ((entry = mailbox.poll()) != null)
             {
-                logger.debug("Searching for entry actions for next state: {}",
-                        nextState.getName());
-
-                // Fire entry actions from the state below the least common
-                // parent (if there is one) to the next state itself.
-                State<ET>[] entryStates = nextState.getHierarchy();
-                int startIndex = -1;
-                if (leastCommonParent == null)
-                    startIndex = 0;
-                else
+                try
                 {
-                    for (int i = 0; i < entryStates.length; i++)
+                    if (lockFreeEnabled)
+                        processEntry(entry);
+                    else
                     {
-                        if (entryStates[i] == leastCommonParent)
+                        synchronized (this)
                         {
-                            startIndex = i + 1;
-                            break;
+                            processEntry(entry);
                         }
                     }
                 }
+                catch (Throwable t)
+                {
+                    entry.error = t;
+                }
 
-                for (int i = startIndex; i < entryStates.length; i++)
+                if (entry.future != null)
                 {
-                    State<ET> entryState = entryStates[i];
-                    if (entryState.getEntryAction() != null)
-                    {
-                        Action<ET> entryAction = entryState.getEntryAction();
-                        actionType = Action.ENTER_ACTION;
-                        logger.debug("Executing entry action for state: {}",
-                                entryState.getName());
-                        entryAction.doAction(event, entity, transition,
-                                actionType);
-                    }
+                    if (entry.error == null)
+                        entry.future.complete(state);
+                    else
+                        entry.future.completeExceptionally(entry.error);
+                }
+                else if (entry.caller != null)
+                {
+                    entry.done = true;
+                    LockSupport.unpark(entry.caller);
+                }
+                else if (entry.error != null)
+                {
+                    // Nobody waits for timeouts, so report failures here.
+                    logger.warn("Unable to process timeout: "
+                            + map.getTimeout(entry.timeoutSlot), entry.error);
                 }
             }
+
+            // Give up ownership before the count can reach zero, since
+            // another thread may take over as soon as it does.
+            mailboxOwner = null;
+            pending = mailboxPending.addAndGet(-pending);
         }
-        catch (TransitionRollbackException e)
+        while (pending != 0);
+    }
+
+    /**
+     * Processes a mailbox entry, which is either an event or the expiration
+     * of a timeout. Expirations of timeouts that have been cancelled since are
+     * ignored.
+     */
+    private void processEntry(MailboxEntry<ET> entry)
+            throws FiniteStateException
+    {
+        int slot = entry.timeoutSlot;
+        if (entry.batch != null)
+            entry.batch.result = processBatch(entry.batch);
+        else if (slot < 0)
         {
-            // Log and rethrow a rollback exception.
-            logger.debug("Transition rolled back: state={} transition={} actionType={}",
-                new Object[] {state.getName(), transition.getName(), actionType});
-            throw e;
+            if (entry.tolerant)
+                entry.disposition = processEvent(entry.event);
+            else
+                processMatchedEvent(entry.event);
         }
-        catch (TransitionFailureException e)
+        else if (armedTimeouts != null && armedTimeouts[slot] != null
+                && timeoutEpochs[slot] == entry.timeoutEpoch)
         {
-            // Transition to the error state and rethrow the exception.
-            logger.debug("Transition failed: state={} transition={}  actionType={}",
-                    new Object[] {state.getName(),  transition.getName(), actionType});
-
-            State<ET> errorState = map.getErrorState();
+            armedTimeouts[slot] = null;
+            processMatchedEvent(map.getTimeout(slot).getEvent());
+        }
+    }
 
-            // Make sure we have an error state!
-            if (errorState == null)
+    /**
+     * Cancels the timeouts of states that have been left and arms those of
+     * states that have been entered.
+     */
+    private void updateTimeouts(int[] cancel, int[] arm)
+    {
+        for (int i = 0; i < cancel.length; i++)
+        {
+            int slot = cancel[i];
+            if (armedTimeouts != null && armedTimeouts[slot] != null)
             {
-                String msg = "Attempt to throw TransitionFailureException when no error state exists";
-                logger.error(msg, e);
-                throw new FiniteStateException(msg, e);
+                armedTimeouts[slot].cancel();
+                armedTimeouts[slot] = null;
             }
+        }
+        if (arm.length == 0)
+            return;
 
-            // Now transition to it or try to at least.
-            try
+        if (armedTimeouts == null)
+        {
+            armedTimeouts = new HashedWheelTimer.Timeout[map.getTimeoutCount()];
+            timeoutEpochs = new int[armedTimeouts.length];
+        }
+        HashedWheelTimer currentTimer = getTimer();
+        for (int i = 0; i < arm.length; i++)
+        {
+            int slot = arm[i];
+            if (armedTimeouts[slot] != null)
+                armedTimeouts[slot].cancel();
+            int epoch = ++timeoutEpochs[slot];
+            armedTimeouts[slot] = currentTimer.schedule(new TimeoutTask(slot,
+                    epoch), map.getTimeout(slot).getTimeout(
+                    TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Notifies listeners and completes waiters after a change of state.
+     */
+    private void notifyStateChanged(State<ET> prevState, State<ET> nextState,
+            int nextOrdinal)
+    {
+        // Iterate by index so that notification does not allocate.
+        StateChangeListener<ET>[] snapshot = listeners.getListeners();
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            AsyncStateChangeListener.notifyListener(snapshot[i], this, -1, entity,
+                    prevState, nextState);
+        }
+        waiters.stateChanged(nextOrdinal, nextState);
+    }
+
+    /**
+     * Processes the events of a batch in order until one fails. Callers must
+     * ensure that only one thread at a time executes this method.
+     */
+    private EventBatchResult<ET> processBatch(Batch<ET> batch)
+    {
+        State<ET> startState = state;
+        int processed = 0;
+        FiniteStateException exception = null;
+        coalescing = batch.coalesce;
+        try
+        {
+            if (batch.array != null)
             {
-                Action<ET> errorStateEntryAction = errorState.getEntryAction();
-                if (errorStateEntryAction != null)
+                for (int i = batch.from; i < batch.to; i++)
                 {
-                    logger.debug("Executing entry action for error state: {}",
-                                     errorState.getName());
-                    errorStateEntryAction.doAction(event, entity, transition,
-                            Action.ENTER_ACTION);
+                    processMatchedEvent(batch.array[i]);
+                    processed++;
                 }
-                nextState = errorState;
             }
-            catch (Throwable t)
+            else
             {
-                // This bad. Nothing to do but throw an generic exception.
-                throw new FiniteStateException(
-                        "Transition to error state failed", t);
+                for (Event<?> event : batch.iterable)
+                {
+                    processMatchedEvent(event);
+                    processed++;
+                }
+            }
+        }
+        catch (FiniteStateException e)
+        {
+            exception = e;
+        }
+        finally
+        {
+            // Report the net change, if any, even if an action threw an
+            // unchecked exception.
+            coalescing = false;
+            if (batch.coalesce && state != startState)
+                notifyStateChanged(startState, state, stateOrdinal);
+        }
+        return new EventBatchResult<ET>(processed, state, exception);
+    }
+
+    /**
+     * Processes an event, throwing an exception if no transition accepts it.
+     * Callers must ensure that only one thread at a time executes this
+     * method.
+     */
+    private void processMatchedEvent(Event<?> event)
+            throws FiniteStateException
+    {
+        if (processEvent(event) == EventDisposition.UNMATCHED)
+            throw new TransitionNotFoundException(
+                    "No matching exit transition found", state, event, entity);
+    }
+
+    /**
+     * Processes a single event and, if forward chaining is enabled, any
+     * transitions chained from it. Callers must ensure that only one thread at
+     * a time executes this method.
+     *
+     * @return Whether the event was applied, ignored, or not matched
+     */
+    private EventDisposition processEvent(Event<?> event)
+            throws FiniteStateException
+    {
+        // Run to completion: each pass fires one transition, and with forward
+        // chaining enabled the loop continues from the new state with the
+        // same event until no transition matches.
+        for (int depth = 0;; depth++)
+        {
+            // Find the next transition using the compiled dispatch table for
+            // the current state. The state ordinal is resolved once and then
+            // tracked as the machine changes state.
+            if (stateOrdinal < 0)
+                stateOrdinal = map.getOrdinal(state);
+            DispatchTable<ET> table = map.getDispatchTable(stateOrdinal,
+                    state, event, entity);
+            int index = table.match(event, entity);
+            if (index < 0)
+            {
+                // Running out of chained transitions, or reaching a state that
+                // ignores the event, is the normal end of a chain.
+                if (depth > 0)
+                    return EventDisposition.APPLIED;
+                else if (index == DispatchTable.IGNORED)
+                    return EventDisposition.IGNORED;
+                else
+                    return EventDisposition.UNMATCHED;
             }
+
+            if (maxTransitions > 0)
+            {
+                transitions++;
+                if (transitions > maxTransitions)
+                    throw new FiniteStateException(
+                            "Max transition count exceeded: state="
+                                    + state.getName() + " transition count="
+                                    + transitions);
+            }
+            if (maxChainDepth > 0 && depth > maxChainDepth)
+                throw new FiniteStateException(
+                        "Max forward chain depth exceeded: state="
+                                + state.getName() + " chain depth=" + depth);
+
+            if (!fireTransition(table, index, event) || !forwardChainEnabled)
+                return EventDisposition.APPLIED;
+        }
+    }
+
+    /**
+     * Fires a transition found in the dispatch table of the current state.
+     *
+     * @return True if the machine moved to the output state of the
+     *         transition; false if it stayed in the same state
+     * @throws TransitionFailureException Thrown after moving to the error
+     *             state if an action failed
+     */
+    private boolean fireTransition(DispatchTable<ET> table, int index,
+            Event<?> event) throws FiniteStateException
+    {
+        TransitionFailureException deferredException = null;
+        Transition<ET, ?> transition = table.getTransition(index);
+        State<ET> nextState = transition.getOutput();
+        int nextOrdinal = table.getOutputOrdinal(index);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("Executing state transition: input state={} transition={} output state={}",
+                    new Object[] {state.getName(), transition.getName(), nextState.getName()});
+        }
+
+        StateMachineMetrics currentMetrics = metrics;
+        try
+        {
+            TransitionExecutor.runActions(table, index, event, entity,
+                    currentMetrics);
+        }
+        catch (TransitionFailureException e)
+        {
+            // Transition to the error state and rethrow the exception once
+            // the state has changed.
+            nextOrdinal = TransitionExecutor.enterErrorState(map, transition,
+                    event, entity, e, currentMetrics);
+            nextState = map.getErrorState();
+
             // Store so that the application sees there has been an error.
             deferredException = e;
         }
+        if (currentMetrics != null)
+            currentMetrics.transitionFired(transition);
 
         // If we changed state, move to the new state and notify listeners.
-        if (state != nextState)
+        boolean changed = (state != nextState);
+        if (changed)
         {
             logger.debug("Entering new state: {}", nextState.getName());
 
+            // Write ahead to the journal, if any, so the state change is not
+            // visible until it has been recorded.
+            TransitionJournal currentJournal = journal;
+            if (currentJournal != null)
+            {
+                try
+                {
+                    currentJournal.append(journalId, stateOrdinal, transition
+                            .getName(), nextOrdinal);
+                }
+                catch (IOException e)
+                {
+                    throw new FiniteStateException(
+                            "Unable to journal state transition: transition="
+                                    + transition.getName(), e);
+                }
+            }
+
             State<ET> prevState = state;
             state = nextState;
+            stateOrdinal = nextOrdinal;
 
-            for (StateChangeListener<ET> listener : listeners)
+            // Move timeouts to the new state. After a failure the machine
+            // jumps to the error state, so the precomputed slots for the
+            // transition do not apply.
+            if (map.getTimeoutCount() > 0)
             {
-                listener.stateChanged(entity, prevState, nextState);
+                if (deferredException == null)
+                    updateTimeouts(table.getCancelTimeouts(index), table
+                            .getArmTimeouts(index));
+                else
+                    updateTimeouts(map
+                            .getTimeoutsToCancel(prevState, nextState), map
+                            .getTimeoutsToArm(prevState, nextState));
             }
 
-            if (isForwardChainEnabled())
+            if (currentMetrics != null)
             {
-                // Now see if we have a chained transition to handle. We can
-                // expect to get
-                // a FiniteStateException since we may not have a chained
-                // transition.
-                try
-                {
-                    if ((transition = map.nextTransition(state, event, entity)) != null)
-                    {
-                        applyEvent(event);
-                    }
-                }
-                catch (FiniteStateException f)
-                {
-                    // Just ignore it.
-                    return;
-                }
+                long now = System.nanoTime();
+                currentMetrics.stateExited(prevState, now - stateEnteredNanos);
+                currentMetrics.stateEntered(nextState);
+                stateEnteredNanos = now;
             }
+
+            if (!coalescing)
+                notifyStateChanged(prevState, nextState, nextOrdinal);
         }
 
-        // If we have a deferred exception, throw it now.
+        // If we have a deferred exception, throw it now. This also ends any
+        // forward chain.
         if (deferredException != null)
             throw deferredException;
+        return changed;
     }
 
     /**
@@ -362,6 +1083,123 @@ public class StateMachine<ET extends Entity>
         return state.isEnd();
     }
 
+    /**
+     * Returns true if events are delivered through the lock-free mailbox.
+     */
+    public boolean isLockFreeEnabled()
+    {
+        return lockFreeEnabled;
+    }
+
+    /**
+     * Enables or disables lock-free mode. This must be set before events are
+     * delivered and not changed while other threads may call applyEvent().
+     * 
+     * @param lockFreeEnabled If true, serialize callers through a lock-free
+     *            mailbox rather than the object monitor
+     */
+    public void setLockFreeEnabled(boolean lockFreeEnabled)
+    {
+        this.lockFreeEnabled = lockFreeEnabled;
+    }
+
+    /**
+     * Returns the executor that processes events delivered by submit().
+     */
+    public Executor getEventExecutor()
+    {
+        return eventExecutor;
+    }
+
+    /**
+     * Sets the executor that processes events delivered by submit(). The
+     * default is the common fork-join pool; applications whose actions block
+     * should supply their own executor. At most one task per state machine
+     * runs on the executor at any time.
+     */
+    public void setEventExecutor(Executor eventExecutor)
+    {
+        this.eventExecutor = eventExecutor;
+    }
+
+    /**
+     * Returns true if submitted events are processed on the shared
+     * {@link VirtualThreadExecutor}.
+     */
+    public boolean isVirtualThreadsEnabled()
+    {
+        return eventExecutor == VirtualThreadExecutor.getInstance();
+    }
+
+    /**
+     * Enables or disables processing of submitted events on virtual threads.
+     * Enabling sets the event executor to the shared
+     * {@link VirtualThreadExecutor} and turns on lock-free mode; disabling
+     * restores the default executor and leaves lock-free mode as it is. The
+     * same restrictions apply as for {@link #setLockFreeEnabled(boolean)}.
+     */
+    public void setVirtualThreadsEnabled(boolean virtualThreadsEnabled)
+    {
+        if (virtualThreadsEnabled)
+        {
+            setLockFreeEnabled(true);
+            setEventExecutor(VirtualThreadExecutor.getInstance());
+        }
+        else if (isVirtualThreadsEnabled())
+            setEventExecutor(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the metrics recorded by this state machine or null if metrics
+     * are disabled.
+     */
+    public StateMachineMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Enables metrics for this state machine or disables them if the metrics
+     * are null. Metrics may be shared by state machines that use the same
+     * map. Dwell time in the current state is measured from this call.
+     *
+     * @throws IllegalArgumentException Thrown if the metrics were created for
+     *             a different map
+     */
+    public void setMetrics(StateMachineMetrics metrics)
+    {
+        if (metrics != null && metrics.getMap() != map)
+            throw new IllegalArgumentException(
+                    "Metrics were created for a different state transition map");
+        stateEnteredNanos = System.nanoTime();
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the journal that records state changes of this state machine or
+     * null if there is none.
+     */
+    public TransitionJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Records each subsequent change of state in a journal or stops recording
+     * if the journal is null. Journal records are written before the new
+     * state becomes visible; if a record cannot be written, applyEvent()
+     * throws a {@link FiniteStateException} and the state does not change,
+     * although transition actions have already run.
+     *
+     * @param journal Journal, which may be shared by many state machines
+     * @param instanceId Id that identifies this state machine in the journal
+     */
+    public void setJournal(TransitionJournal journal, long instanceId)
+    {
+        this.journalId = instanceId;
+        this.journal = journal;
+    }
+
     /**
      * @return the forwardChainEnabled
      */
@@ -371,6 +1209,13 @@ public class StateMachine<ET extends Entity>
     }
 
     /**
+     * Enables or disables forward chaining. When enabled, each change of state
+     * caused by an event is followed by the transition, if any, that the same
+     * event matches in the new state, until the event matches no transition,
+     * leaves the state unchanged, or fails. Running out of transitions ends
+     * the chain quietly; failures and rollbacks in chained transitions are
+     * thrown to the caller as usual.
+     * 
      * @param forwardChainEnabled the forwardChainEnabled to set
      */
     public void setForwardChainEnabled(boolean forwardChainEnabled)
@@ -378,6 +1223,30 @@ public class StateMachine<ET extends Entity>
         this.forwardChainEnabled = forwardChainEnabled;
     }
 
+    /**
+     * Returns the maximum number of transitions that may be chained from a
+     * single event.
+     */
+    public int getMaxChainDepth()
+    {
+        return maxChainDepth;
+    }
+
+    /**
+     * Sets the maximum number of transitions that may be chained from a single
+     * event, not counting the transition the event triggers directly. This
+     * detects cycles in forward chains independently of
+     * {@link #setMaxTransitions(int)}, which counts transitions over the life
+     * of the machine. A chain that would exceed the limit stops with a
+     * {@link FiniteStateException} in the state reached so far.
+     * 
+     * @param max Maximum chain depth or 0 to ignore
+     */
+    public synchronized void setMaxChainDepth(int max)
+    {
+        this.maxChainDepth = max;
+    }
+
     /**
      * Returns the error state of this state machine, if defined, or null.
      */
@@ -0,0 +1,444 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a large population of state machine instances that share a single
+ * state transition map. Each instance is identified by an integer id from 0
+ * up to the engine capacity and its current state is stored as a state
+ * ordinal in a primitive array, so an instance costs a few bytes rather than a
+ * {@link StateMachine} object.
+ * <p>
+ * Events are applied with {@link #applyEvent(int, Event)}, which follows the
+ * same rules as {@link StateMachine#applyEvent(Event)} for guards, entry, exit
+ * and transition actions, rollback, ignored events, and the error state.
+ * Events for the same instance are serialized by marking the instance busy
+ * in the ordinal array with compare-and-set while its event is processed;
+ * events for different instances run concurrently, and a slow action only
+ * delays events for its own instance. Threads that find an instance busy
+ * wait on one of a fixed set of striped monitors, which is not held while
+ * actions run. Actions and listeners must therefore not apply events to the
+ * instance being processed, which would wait forever. Reading the state of
+ * an instance never blocks. Forward chaining, transition limits, and timeouts
+ * are not supported.
+ * <p>
+ * The following example runs a million instances of one map.
+ *
+ * <pre><code>
+ *  StateMachineEngine engine = new StateMachineEngine(map, 1000000);
+ *  engine.setEntity(42, mySession);
+ *  engine.applyEvent(42, new StringEvent("online"));
+ *  State current = engine.getState(42);
+ * </code></pre>
+ *
+ * @param <ET> The entity type for which the state machines are defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateMachineEngine<ET extends Entity>
+{
+    private static Logger                 logger       = LoggerFactory.getLogger(StateMachineEngine.class);
+
+    // Number of monitors on which threads wait for busy instances. Must be a
+    // power of two.
+    private static final int              LOCK_STRIPES = 256;
+
+    // Bit set in the ordinal of an instance while an event is processed.
+    private static final int              BUSY         = Integer.MIN_VALUE;
+
+    private final StateTransitionMap<ET>  map;
+    private final AtomicIntegerArray      ordinals;
+    private final AtomicReferenceArray<ET> entities;
+    private final Object[]                locks        = new Object[LOCK_STRIPES];
+    private final AtomicIntegerArray      waiters      = new AtomicIntegerArray(
+                                                               LOCK_STRIPES);
+    private final ListenerRegistry<ET> listeners   = new ListenerRegistry<ET>();
+    private volatile TransitionJournal    journal;
+
+    /**
+     * Creates a new engine whose instances all begin in the start state.
+     *
+     * @param map A state transition map, which must already be built
+     * @param capacity Number of instances
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public StateMachineEngine(StateTransitionMap<ET> map, int capacity)
+            throws FiniteStateException
+    {
+        this.map = map;
+        this.ordinals = new AtomicIntegerArray(capacity);
+        this.entities = new AtomicReferenceArray<ET>(capacity);
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+
+        int startOrdinal = map.getOrdinal(map.getStartState());
+        if (startOrdinal != 0)
+        {
+            for (int i = 0; i < capacity; i++)
+                ordinals.set(i, startOrdinal);
+        }
+    }
+
+    /**
+     * Returns the state transition map shared by all instances.
+     */
+    public StateTransitionMap<ET> getMap()
+    {
+        return map;
+    }
+
+    /**
+     * Returns the number of instances managed by this engine.
+     */
+    public int getCapacity()
+    {
+        return ordinals.length();
+    }
+
+    /**
+     * Sets the entity passed to guards, actions, and listeners for an
+     * instance. Instances without an entity receive null.
+     */
+    public void setEntity(int id, ET entity)
+    {
+        entities.set(id, entity);
+    }
+
+    /**
+     * Returns the entity of an instance or null if none has been set.
+     */
+    public ET getEntity(int id)
+    {
+        return entities.get(id);
+    }
+
+    /**
+     * Returns the current state of an instance.
+     */
+    public State<ET> getState(int id)
+    {
+        return map.getState(getOrdinal(id));
+    }
+
+    /**
+     * Places an instance in a given state without firing any actions or
+     * notifying listeners, for example to restore a state recovered from a
+     * {@link TransitionJournal}.
+     *
+     * @throws FiniteStateException Thrown if the state is not part of the map
+     */
+    public void restoreState(int id, State<ET> state)
+            throws FiniteStateException
+    {
+        int ordinal = map.getOrdinal(state);
+        if (ordinal < 0)
+            throw new FiniteStateException(
+                    "State is not part of the state transition map: " + state);
+        setOrdinal(id, ordinal);
+    }
+
+    /** Returns the state ordinal of an instance. */
+    int getOrdinal(int id)
+    {
+        return ordinals.get(id) & ~BUSY;
+    }
+
+    /**
+     * Sets the state ordinal of an instance, waiting for any event being
+     * processed for it to finish.
+     */
+    void setOrdinal(int id, int ordinal)
+    {
+        acquire(id);
+        release(id, ordinal);
+    }
+
+    // Marks an instance busy, waiting until no other event is processed for
+    // it, and returns its ordinal.
+    private int acquire(int id)
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                int value = ordinals.get(id);
+                if (value >= 0)
+                {
+                    if (ordinals.compareAndSet(id, value, value | BUSY))
+                        return value;
+                    continue;
+                }
+
+                // Register as a waiter before checking again, so that the
+                // releasing thread either sees the waiter or the check sees
+                // the release.
+                int stripe = id & (LOCK_STRIPES - 1);
+                Object lock = locks[stripe];
+                synchronized (lock)
+                {
+                    waiters.incrementAndGet(stripe);
+                    try
+                    {
+                        while (ordinals.get(id) < 0)
+                        {
+                            try
+                            {
+                                lock.wait();
+                            }
+                            catch (InterruptedException e)
+                            {
+                                interrupted = true;
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        waiters.decrementAndGet(stripe);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stores the ordinal of a busy instance, which clears the busy bit, and
+    // wakes threads waiting on its stripe.
+    private void release(int id, int ordinal)
+    {
+        ordinals.set(id, ordinal);
+        int stripe = id & (LOCK_STRIPES - 1);
+        if (waiters.get(stripe) > 0)
+        {
+            Object lock = locks[stripe];
+            synchronized (lock)
+            {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns true if an instance is in an end state.
+     */
+    public boolean isEndState(int id)
+    {
+        return getState(id).isEnd();
+    }
+
+    /**
+     * Adds a listener that is notified of state changes in every instance.
+     * Listeners that implement {@link InstanceStateChangeListener} receive
+     * the id of the instance; others receive only its entity, which may be
+     * null. Listeners may be added or removed while events are processed
+     * without waiting for them.
+     */
+    public void addListener(StateChangeListener<ET> listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Adds a state change listener that is notified asynchronously through a
+     * bounded buffer, so that it does not delay event processing. Changes are
+     * delivered in order. The returned wrapper or the listener itself may be
+     * passed to {@link #removeListener(StateChangeListener)}.
+     *
+     * @param listener Listener to notify
+     * @param capacity Maximum number of notifications waiting for delivery
+     * @param policy What to do with changes when the buffer is full
+     * @return The asynchronous wrapper that was added
+     */
+    public AsyncStateChangeListener<ET> addListener(
+            StateChangeListener<ET> listener, int capacity,
+            ListenerOverflowPolicy policy)
+    {
+        AsyncStateChangeListener<ET> async = new AsyncStateChangeListener<ET>(
+                listener, capacity, policy);
+        addListener(async);
+        return async;
+    }
+
+    /**
+     * Removes a state change listener if it exists. An asynchronous listener
+     * may be removed by passing the listener it wraps.
+     *
+     * @return True if the listener was removed; false if it could not be found
+     */
+    public boolean removeListener(
+            StateChangeListener<ET> listener)
+    {
+        return listeners.remove(listener);
+    }
+
+    /**
+     * Returns the journal that records state changes or null if there is
+     * none.
+     */
+    public TransitionJournal getJournal()
+    {
+        return journal;
+    }
+
+    /**
+     * Records each subsequent change of state in a journal, using instance ids
+     * as journal ids, or stops recording if the journal is null. The same
+     * rules apply as for {@link StateMachine#setJournal(TransitionJournal, long)}.
+     */
+    public void setJournal(TransitionJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Applies an event to a single instance, thereby triggering its next
+     * state.
+     *
+     * @param id Instance id
+     * @param event An event
+     * @throws TransitionNotFoundException Thrown if an appropriate transition
+     *             cannot be found
+     * @throws TransitionRollbackException Thrown if the transition is rolled
+     *             back cleanly by action code
+     * @throws FiniteStateException Thrown if a generic error occurs
+     */
+    public void applyEvent(int id, Event<?> event) throws FiniteStateException
+    {
+        if (processEvent(id, event) == EventDisposition.UNMATCHED)
+        {
+            throw new TransitionNotFoundException(
+                    "No matching exit transition found", getState(id), event,
+                    entities.get(id));
+        }
+    }
+
+    /**
+     * Applies an event to a single instance like
+     * {@link #applyEvent(int, Event)} but reports events that no transition
+     * accepts with a status instead of an exception.
+     *
+     * @param id Instance id
+     * @param event An event
+     * @return Whether the event was applied, ignored, or not matched
+     * @throws TransitionRollbackException Thrown if the transition is rolled
+     *             back cleanly by action code
+     * @throws FiniteStateException Thrown if a generic error occurs
+     */
+    public EventDisposition tryApplyEvent(int id, Event<?> event)
+            throws FiniteStateException
+    {
+        return processEvent(id, event);
+    }
+
+    // Applies an event to an instance while it is marked busy.
+    private EventDisposition processEvent(int id, Event<?> event)
+            throws FiniteStateException
+    {
+        ET entity = entities.get(id);
+        int ordinal = acquire(id);
+        int releasedOrdinal = ordinal;
+        try
+        {
+            State<ET> state = map.getState(ordinal);
+            DispatchTable<ET> table = map.getDispatchTable(ordinal, state,
+                    event, entity);
+            int index = table.match(event, entity);
+            if (index == DispatchTable.IGNORED)
+                return EventDisposition.IGNORED;
+            else if (index < 0)
+                return EventDisposition.UNMATCHED;
+            Transition<ET, ?> transition = table.getTransition(index);
+            int nextOrdinal = table.getOutputOrdinal(index);
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Executing state transition: instance={} transition={}",
+                        id, transition.getName());
+            }
+
+            TransitionFailureException deferredException = null;
+            try
+            {
+                TransitionExecutor.runActions(table, index, event, entity,
+                        null);
+            }
+            catch (TransitionFailureException e)
+            {
+                nextOrdinal = TransitionExecutor.enterErrorState(map,
+                        transition, event, entity, e, null);
+                deferredException = e;
+            }
+
+            // If we changed state, record the new state and notify listeners.
+            if (nextOrdinal != ordinal)
+            {
+                TransitionJournal currentJournal = journal;
+                if (currentJournal != null)
+                {
+                    try
+                    {
+                        currentJournal.append(id, ordinal, transition
+                                .getName(), nextOrdinal);
+                    }
+                    catch (IOException e)
+                    {
+                        throw new FiniteStateException(
+                                "Unable to journal state transition: instance="
+                                        + id + " transition="
+                                        + transition.getName(), e);
+                    }
+                }
+                // Publish the new state before notifying listeners but keep
+                // the instance busy until they return.
+                ordinals.set(id, nextOrdinal | BUSY);
+                releasedOrdinal = nextOrdinal;
+                State<ET> nextState = map.getState(nextOrdinal);
+                StateChangeListener<ET>[] snapshot = listeners.getListeners();
+                for (int i = 0; i < snapshot.length; i++)
+                {
+                    AsyncStateChangeListener.notifyListener(snapshot[i], this, id,
+                            entity, state, nextState);
+                }
+            }
+
+            if (deferredException != null)
+                throw deferredException;
+            return EventDisposition.APPLIED;
+        }
+        finally
+        {
+            release(id, releasedOrdinal);
+        }
+    }
+}
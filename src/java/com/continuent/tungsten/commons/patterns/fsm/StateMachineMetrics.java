@@ -0,0 +1,426 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.lang.management.ManagementFactory;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects statistics on the behavior of state machines that share a state
+ * transition map: how often each transition fires, how often each state is
+ * entered and how long machines stay there, and how long entry, exit, and
+ * transition actions take to execute. Counters are striped so that recording
+ * is cheap when many threads deliver events at once, and recording does not
+ * allocate.
+ * <p>
+ * Metrics are disabled by default. To enable them, create an instance for a
+ * built map and pass it to {@link StateMachine#setMetrics(StateMachineMetrics)}
+ * on one or more state machines using that map. The same figures may be
+ * published through JMX using {@link #registerMBean(String)}.
+ *
+ * <pre><code>
+ *  StateMachineMetrics metrics = new StateMachineMetrics(map);
+ *  sm.setMetrics(metrics);
+ *  metrics.registerMBean("replicator");
+ * </code></pre>
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateMachineMetrics implements StateMachineMetricsMXBean
+{
+    private final StateTransitionMap<?>                            map;
+
+    // Statistics are created up front for every state and transition so that
+    // lookups never modify the maps.
+    private final StateMap<?, StateStats>                        stateStats;
+    private final IdentityHashMap<Transition<?, ?>, TransitionStats> transitionStats = new IdentityHashMap<Transition<?, ?>, TransitionStats>();
+
+    private ObjectName                                             objectName;
+
+    // Statistics for a single state. Action histograms exist only if the
+    // state has the corresponding action.
+    private static final class StateStats
+    {
+        final State<?>         state;
+        final LongAdder        entries = new LongAdder();
+        final LatencyHistogram dwellTime = new LatencyHistogram();
+        final LatencyHistogram entryActions;
+        final LatencyHistogram exitActions;
+
+        StateStats(State<?> state)
+        {
+            this.state = state;
+            this.entryActions = (state.getEntryAction() == null)
+                    ? null
+                    : new LatencyHistogram();
+            this.exitActions = (state.getExitAction() == null)
+                    ? null
+                    : new LatencyHistogram();
+        }
+    }
+
+    // Statistics for a single transition.
+    private static final class TransitionStats
+    {
+        final Transition<?, ?> transition;
+        final LongAdder        fired = new LongAdder();
+        final LatencyHistogram actions;
+
+        TransitionStats(Transition<?, ?> transition)
+        {
+            this.transition = transition;
+            this.actions = (transition.getAction() == null)
+                    ? null
+                    : new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Creates metrics for the states and transitions of a map.
+     *
+     * @param map A state transition map, which must already be built
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public StateMachineMetrics(StateTransitionMap<?> map)
+            throws FiniteStateException
+    {
+        this.map = map;
+        this.stateStats = newStateMap(map);
+        collect(map);
+    }
+
+    // Creates an empty table of per-state statistics indexed by ordinal.
+    private static <ET extends Entity> StateMap<ET, StateStats> newStateMap(
+            StateTransitionMap<ET> map) throws FiniteStateException
+    {
+        return new StateMap<ET, StateStats>(map);
+    }
+
+    // Creates statistics for every state and every transition reachable from
+    // the dispatch tables.
+    private <ET extends Entity> void collect(StateTransitionMap<ET> map)
+            throws FiniteStateException
+    {
+        int stateCount = map.getStateCount();
+        for (int ordinal = 0; ordinal < stateCount; ordinal++)
+        {
+            State<ET> state = map.getState(ordinal);
+            stateStats.put(state, new StateStats(state));
+
+            DispatchTable<ET> table = map.getDispatchTable(ordinal, state,
+                    null, null);
+            for (int i = 0; i < table.size(); i++)
+            {
+                Transition<ET, ?> transition = table.getTransition(i);
+                if (!transitionStats.containsKey(transition))
+                    transitionStats.put(transition, new TransitionStats(
+                            transition));
+            }
+        }
+    }
+
+    /**
+     * Returns the map for which metrics are collected.
+     */
+    public StateTransitionMap<?> getMap()
+    {
+        return map;
+    }
+
+    /**
+     * Returns the number of times a transition has fired.
+     */
+    public long getTransitionCount(Transition<?, ?> transition)
+    {
+        TransitionStats stats = transitionStats.get(transition);
+        return (stats == null) ? 0 : stats.fired.sum();
+    }
+
+    /**
+     * Returns execution times of a transition's action or null if the
+     * transition has no action.
+     */
+    public LatencyHistogram getTransitionActionLatency(
+            Transition<?, ?> transition)
+    {
+        TransitionStats stats = transitionStats.get(transition);
+        return (stats == null) ? null : stats.actions;
+    }
+
+    /**
+     * Returns the number of times a state has been entered.
+     */
+    public long getStateEntryCount(State<?> state)
+    {
+        StateStats stats = stateStats.get(state);
+        return (stats == null) ? 0 : stats.entries.sum();
+    }
+
+    /**
+     * Returns the times state machines remained in a state before leaving
+     * it or null if the state is not part of the map.
+     */
+    public LatencyHistogram getDwellTime(State<?> state)
+    {
+        StateStats stats = stateStats.get(state);
+        return (stats == null) ? null : stats.dwellTime;
+    }
+
+    /**
+     * Returns execution times of a state's entry action or null if the state
+     * has no entry action.
+     */
+    public LatencyHistogram getEntryActionLatency(State<?> state)
+    {
+        StateStats stats = stateStats.get(state);
+        return (stats == null) ? null : stats.entryActions;
+    }
+
+    /**
+     * Returns execution times of a state's exit action or null if the state
+     * has no exit action.
+     */
+    public LatencyHistogram getExitActionLatency(State<?> state)
+    {
+        StateStats stats = stateStats.get(state);
+        return (stats == null) ? null : stats.exitActions;
+    }
+
+    /** Records that a transition has fired. */
+    void transitionFired(Transition<?, ?> transition)
+    {
+        TransitionStats stats = transitionStats.get(transition);
+        if (stats != null)
+            stats.fired.increment();
+    }
+
+    /** Records the execution time of a transition action. */
+    void transitionAction(Transition<?, ?> transition, long nanos)
+    {
+        TransitionStats stats = transitionStats.get(transition);
+        if (stats != null && stats.actions != null)
+            stats.actions.record(nanos);
+    }
+
+    /** Records that a state has been entered. */
+    void stateEntered(State<?> state)
+    {
+        StateStats stats = stateStats.get(state);
+        if (stats != null)
+            stats.entries.increment();
+    }
+
+    /** Records the time spent in a state that has just been left. */
+    void stateExited(State<?> state, long nanos)
+    {
+        StateStats stats = stateStats.get(state);
+        if (stats != null)
+            stats.dwellTime.record(nanos);
+    }
+
+    /** Records the execution time of an entry action. */
+    void entryAction(State<?> state, long nanos)
+    {
+        StateStats stats = stateStats.get(state);
+        if (stats != null && stats.entryActions != null)
+            stats.entryActions.record(nanos);
+    }
+
+    /** Records the execution time of an exit action. */
+    void exitAction(State<?> state, long nanos)
+    {
+        StateStats stats = stateStats.get(state);
+        if (stats != null && stats.exitActions != null)
+            stats.exitActions.record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.continuent.tungsten.commons.patterns.fsm.StateMachineMetricsMXBean#getTransitionCounts()
+     */
+    public Map<String, Long> getTransitionCounts()
+    {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (TransitionStats stats : transitionStats.values())
+        {
+            String key = transitionKey(stats.transition);
+            Long previous = counts.get(key);
+            long count = stats.fired.sum();
+            counts.put(key, (previous == null) ? count : previous + count);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the key under which a transition is reported, which combines
+     * the input state, transition name, and output state, since transition
+     * names need not be unique or even present.
+     */
+    static String transitionKey(Transition<?, ?> transition)
+    {
+        return transition.getInput().getName() + ":" + transition.getName()
+                + "->" + transition.getOutput().getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.continuent.tungsten.commons.patterns.fsm.StateMachineMetricsMXBean#getStateEntryCounts()
+     */
+    public Map<String, Long> getStateEntryCounts()
+    {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (StateStats stats : stateStats.values())
+            counts.put(stats.state.getName(), stats.entries.sum());
+        return counts;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.continuent.tungsten.commons.patterns.fsm.StateMachineMetricsMXBean#getDwellTimeNanos(double)
+     */
+    public Map<String, Long> getDwellTimeNanos(double percentile)
+    {
+        Map<String, Long> times = new TreeMap<String, Long>();
+        for (StateStats stats : stateStats.values())
+            times.put(stats.state.getName(), stats.dwellTime
+                    .getValueAtPercentile(percentile));
+        return times;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.continuent.tungsten.commons.patterns.fsm.StateMachineMetricsMXBean#getActionLatencyNanos(double)
+     */
+    public Map<String, Long> getActionLatencyNanos(double percentile)
+    {
+        Map<String, Long> times = new TreeMap<String, Long>();
+        for (TransitionStats stats : transitionStats.values())
+        {
+            if (stats.actions != null)
+            {
+                String key = transitionKey(stats.transition);
+                Long previous = times.get(key);
+                long time = stats.actions.getValueAtPercentile(percentile);
+                times.put(key, (previous == null) ? time : Math.max(previous,
+                        time));
+            }
+        }
+        for (StateStats stats : stateStats.values())
+        {
+            if (stats.entryActions != null)
+                times.put(stats.state.getName() + ".entry", stats.entryActions
+                        .getValueAtPercentile(percentile));
+            if (stats.exitActions != null)
+                times.put(stats.state.getName() + ".exit", stats.exitActions
+                        .getValueAtPercentile(percentile));
+        }
+        return times;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see com.continuent.tungsten.commons.patterns.fsm.StateMachineMetricsMXBean#reset()
+     */
+    public void reset()
+    {
+        for (TransitionStats stats : transitionStats.values())
+        {
+            stats.fired.reset();
+            if (stats.actions != null)
+                stats.actions.reset();
+        }
+        for (StateStats stats : stateStats.values())
+        {
+            stats.entries.reset();
+            stats.dwellTime.reset();
+            if (stats.entryActions != null)
+                stats.entryActions.reset();
+            if (stats.exitActions != null)
+                stats.exitActions.reset();
+        }
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name Name that distinguishes these metrics from others
+     * @return The object name under which the metrics were registered
+     * @throws FiniteStateException Thrown if registration fails
+     */
+    public synchronized ObjectName registerMBean(String name)
+            throws FiniteStateException
+    {
+        try
+        {
+            ObjectName newName = new ObjectName(
+                    "com.continuent.tungsten.commons.patterns.fsm:type=StateMachineMetrics,name="
+                            + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    newName);
+            objectName = newName;
+            return newName;
+        }
+        catch (JMException e)
+        {
+            throw new FiniteStateException(
+                    "Unable to register state machine metrics: name=" + name,
+                    e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server if they were
+     * registered.
+     *
+     * @throws FiniteStateException Thrown if the metrics cannot be removed
+     */
+    public synchronized void unregisterMBean() throws FiniteStateException
+    {
+        if (objectName == null)
+            return;
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+            objectName = null;
+        }
+        catch (JMException e)
+        {
+            throw new FiniteStateException(
+                    "Unable to unregister state machine metrics: name="
+                            + objectName, e);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.Map;
+
+/**
+ * Management interface for {@link StateMachineMetrics}. States are identified
+ * by their fully qualified names and transitions by their names. Latencies are
+ * reported in nanoseconds.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public interface StateMachineMetricsMXBean
+{
+    /**
+     * Returns the number of times each transition has fired, keyed by input
+     * state, transition name, and output state in the form
+     * <code>input:name-&gt;output</code>. Counts of transitions with the same
+     * key are added together.
+     */
+    public Map<String, Long> getTransitionCounts();
+
+    /** Returns the number of times each state has been entered. */
+    public Map<String, Long> getStateEntryCounts();
+
+    /**
+     * Returns the time spent in each state at the given percentile, for
+     * example 50 for the median.
+     */
+    public Map<String, Long> getDwellTimeNanos(double percentile);
+
+    /**
+     * Returns the execution time of each action at the given percentile.
+     * Transition actions are keyed as in {@link #getTransitionCounts()},
+     * reporting the highest time if several share a key, and entry and exit
+     * actions by state name followed by ".entry" or ".exit".
+     */
+    public Map<String, Long> getActionLatencyNanos(double percentile);
+
+    /** Clears all counters and histograms. */
+    public void reset();
+}
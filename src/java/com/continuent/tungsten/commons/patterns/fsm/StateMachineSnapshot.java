@@ -0,0 +1,318 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves and restores the current states of a population of state machines
+ * that share a state transition map. A snapshot stores one state ordinal per
+ * state machine, packed into one, two, or four bytes depending on the number
+ * of states in the map, together with the fingerprint of the map (see
+ * {@link StateTransitionMap#getFingerprint()}) and a checksum. Snapshots are
+ * only restored with a map whose fingerprint matches.
+ * <p>
+ * Snapshots are written to a temporary file that replaces the target file
+ * once it is complete, so a failure while writing leaves any earlier snapshot
+ * intact. Each state is read once, so a snapshot of state machines that are
+ * processing events is consistent for each machine but not across machines.
+ * <p>
+ * The following example saves a list of state machines and restores them.
+ *
+ * <pre><code>
+ *  StateMachineSnapshot.write(file, map, machines);
+ *  List&lt;State&gt; states = StateMachineSnapshot.read(file, map);
+ *  for (State state : states)
+ *      machines.add(new StateMachine(map, entity, state));
+ * </code></pre>
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public final class StateMachineSnapshot
+{
+    // Header: magic number, version, map fingerprint, instance count, and
+    // bytes per ordinal. The ordinals follow, then a CRC32 of all preceding
+    // bytes.
+    private static final int MAGIC       = 0x46534D53;
+    private static final int VERSION     = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Supplies the ordinal of each state machine being saved.
+    private interface OrdinalSource
+    {
+        int getOrdinal(int index) throws FiniteStateException;
+    }
+
+    private StateMachineSnapshot()
+    {
+    }
+
+    /**
+     * Saves the current states of a list of state machines.
+     *
+     * @param file File to write
+     * @param map Map used by all state machines, which must be built
+     * @param machines State machines in the order they are to be restored
+     * @throws IOException Thrown if the snapshot cannot be written
+     * @throws FiniteStateException Thrown if a state machine is in a state
+     *             that is not part of the map
+     */
+    public static <ET extends Entity> void write(File file,
+            final StateTransitionMap<ET> map,
+            final List<? extends StateMachine<ET>> machines)
+            throws IOException, FiniteStateException
+    {
+        write(file, map, machines.size(), new OrdinalSource()
+        {
+            public int getOrdinal(int index) throws FiniteStateException
+            {
+                State<ET> state = machines.get(index).getState();
+                int ordinal = map.getOrdinal(state);
+                if (ordinal < 0)
+                    throw new FiniteStateException(
+                            "State is not part of the state transition map: "
+                                    + state);
+                return ordinal;
+            }
+        });
+    }
+
+    /**
+     * Saves the current states of all instances of an engine.
+     *
+     * @param file File to write
+     * @param engine Engine whose instances are saved
+     * @throws IOException Thrown if the snapshot cannot be written
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public static <ET extends Entity> void write(File file,
+            final StateMachineEngine<ET> engine) throws IOException,
+            FiniteStateException
+    {
+        write(file, engine.getMap(), engine.getCapacity(), new OrdinalSource()
+        {
+            public int getOrdinal(int index)
+            {
+                return engine.getOrdinal(index);
+            }
+        });
+    }
+
+    /**
+     * Reads a snapshot and returns the saved states in order.
+     *
+     * @param file File to read
+     * @param map Map used by the state machines, which must be built
+     * @return The state of each saved state machine
+     * @throws IOException Thrown if the snapshot cannot be read or is damaged
+     * @throws FiniteStateException Thrown if the snapshot was taken with a
+     *             different map
+     */
+    public static <ET extends Entity> List<State<ET>> read(File file,
+            StateTransitionMap<ET> map) throws IOException,
+            FiniteStateException
+    {
+        ByteBuffer buffer = open(file, map);
+        int count = buffer.getInt();
+        int width = buffer.get();
+        List<State<ET>> states = new ArrayList<State<ET>>(count);
+        for (int i = 0; i < count; i++)
+            states.add(map.getState(readOrdinal(buffer, width, map)));
+        return states;
+    }
+
+    /**
+     * Reads a snapshot into the instances of an engine, which must have at
+     * least as many instances as the snapshot. Instances beyond those in the
+     * snapshot are left unchanged.
+     *
+     * @param file File to read
+     * @param engine Engine whose instances are restored
+     * @return The number of instances restored
+     * @throws IOException Thrown if the snapshot cannot be read or is damaged
+     * @throws FiniteStateException Thrown if the snapshot was taken with a
+     *             different map or has more instances than the engine
+     */
+    public static <ET extends Entity> int read(File file,
+            StateMachineEngine<ET> engine) throws IOException,
+            FiniteStateException
+    {
+        ByteBuffer buffer = open(file, engine.getMap());
+        int count = buffer.getInt();
+        int width = buffer.get();
+        if (count > engine.getCapacity())
+            throw new FiniteStateException(
+                    "Snapshot has more instances than engine capacity: instances="
+                            + count + " capacity=" + engine.getCapacity());
+        for (int i = 0; i < count; i++)
+            engine.setOrdinal(i, readOrdinal(buffer, width, engine.getMap()));
+        return count;
+    }
+
+    // Writes a snapshot through a temporary file.
+    private static void write(File file, StateTransitionMap<?> map,
+            int count, OrdinalSource source) throws IOException,
+            FiniteStateException
+    {
+        long fingerprint = map.getFingerprint();
+        int width = widthOf(map.getStateCount());
+        File temp = new File(file.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(fingerprint);
+            buffer.putInt(count);
+            buffer.put((byte) width);
+            for (int i = 0; i < count; i++)
+            {
+                if (buffer.remaining() < width)
+                    flush(channel, buffer, crc);
+                int ordinal = source.getOrdinal(i);
+                if (width == 1)
+                    buffer.put((byte) ordinal);
+                else if (width == 2)
+                    buffer.putShort((short) ordinal);
+                else
+                    buffer.putInt(ordinal);
+            }
+            flush(channel, buffer, crc);
+
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Writes buffered bytes and adds them to the checksum.
+    private static void flush(FileChannel channel, ByteBuffer buffer,
+            CRC32 crc) throws IOException
+    {
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    // Maps a snapshot, checks its header and checksum, and returns a buffer
+    // positioned at the instance count.
+    private static ByteBuffer open(File file, StateTransitionMap<?> map)
+            throws IOException, FiniteStateException
+    {
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try
+        {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel
+                    .size());
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        if (buffer.limit() < HEADER_SIZE + 4 || buffer.getInt() != MAGIC)
+            throw new IOException("File is not a state machine snapshot: "
+                    + file);
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported snapshot version: file="
+                    + file + " version=" + version);
+        if (buffer.getLong() != map.getFingerprint())
+            throw new FiniteStateException(
+                    "Snapshot was taken with a different state transition map: "
+                            + file);
+
+        int count = buffer.getInt();
+        int width = buffer.get();
+        if (count < 0 || width != widthOf(map.getStateCount())
+                || buffer.limit() != HEADER_SIZE + (long) count * width + 4)
+            throw new IOException("Snapshot is truncated or damaged: " + file);
+
+        ByteBuffer contents = buffer.duplicate();
+        contents.position(0);
+        contents.limit(buffer.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(contents);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4))
+            throw new IOException("Snapshot checksum does not match: " + file);
+
+        buffer.position(HEADER_SIZE - 5);
+        return buffer;
+    }
+
+    // Reads and checks one ordinal.
+    private static int readOrdinal(ByteBuffer buffer, int width,
+            StateTransitionMap<?> map) throws IOException,
+            FiniteStateException
+    {
+        int ordinal;
+        if (width == 1)
+            ordinal = buffer.get() & 0xFF;
+        else if (width == 2)
+            ordinal = buffer.getShort() & 0xFFFF;
+        else
+            ordinal = buffer.getInt();
+        if (ordinal < 0 || ordinal >= map.getStateCount())
+            throw new IOException("Snapshot contains an invalid state ordinal: "
+                    + ordinal);
+        return ordinal;
+    }
+
+    // Returns the number of bytes needed to store any ordinal of a map.
+    private static int widthOf(int stateCount)
+    {
+        if (stateCount <= 0x100)
+            return 1;
+        else if (stateCount <= 0x10000)
+            return 2;
+        else
+            return 4;
+    }
+}
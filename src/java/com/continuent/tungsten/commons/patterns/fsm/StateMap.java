@@ -0,0 +1,167 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the states of a built state transition map to values, in the manner of
+ * {@link java.util.EnumMap}. Values are stored in an array indexed by state
+ * ordinal, so lookups do not hash and per-state side tables are cheap.
+ * States that are not part of the map have no value. Null values are not
+ * permitted.
+ * <p>
+ * This class is not synchronized. A map that is filled in before being shared
+ * may be read by any number of threads.
+ *
+ * @param <ET> The entity type of the state transition map
+ * @param <V> The type of values
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateMap<ET extends Entity, V>
+{
+    private final StateTransitionMap<ET> map;
+    private final Object[]               values;
+    private int                          size;
+
+    /**
+     * Creates an empty map for the states of a state transition map.
+     *
+     * @param map A state transition map, which must already be built
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public StateMap(StateTransitionMap<ET> map) throws FiniteStateException
+    {
+        this.map = map;
+        this.values = new Object[map.getStateCount()];
+    }
+
+    /** Returns the state transition map whose states are keys. */
+    public StateTransitionMap<ET> getMap()
+    {
+        return map;
+    }
+
+    /** Returns the value for a state or null if there is none. */
+    @SuppressWarnings("unchecked")
+    public V get(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        return (ordinal < 0) ? null : (V) values[ordinal];
+    }
+
+    /**
+     * Sets the value for a state.
+     *
+     * @return The previous value or null if there was none
+     * @throws IllegalArgumentException Thrown if the state is not part of the
+     *             map
+     */
+    @SuppressWarnings("unchecked")
+    public V put(State<?> state, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("Null values are not permitted");
+        int ordinal = map.ordinalOf(state);
+        if (ordinal < 0)
+            throw new IllegalArgumentException(
+                    "State is not part of the state transition map: " + state);
+        V previous = (V) values[ordinal];
+        values[ordinal] = value;
+        if (previous == null)
+            size++;
+        return previous;
+    }
+
+    /**
+     * Removes the value for a state.
+     *
+     * @return The removed value or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        if (ordinal < 0)
+            return null;
+        V previous = (V) values[ordinal];
+        values[ordinal] = null;
+        if (previous != null)
+            size--;
+        return previous;
+    }
+
+    /** Returns true if the state has a value. */
+    public boolean containsKey(State<?> state)
+    {
+        return get(state) != null;
+    }
+
+    /** Returns the number of states that have values. */
+    public int size()
+    {
+        return size;
+    }
+
+    /** Returns true if no state has a value. */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** Removes all values. */
+    public void clear()
+    {
+        for (int i = 0; i < values.length; i++)
+            values[i] = null;
+        size = 0;
+    }
+
+    /** Returns the states that have values in ordinal order. */
+    public List<State<ET>> keys()
+    {
+        List<State<ET>> keys = new ArrayList<State<ET>>(size);
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null)
+                keys.add(map.getState(i));
+        }
+        return keys;
+    }
+
+    /** Returns the values in ordinal order of their states. */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        List<V> list = new ArrayList<V>(size);
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null)
+                list.add((V) values[i]);
+        }
+        return list;
+    }
+}
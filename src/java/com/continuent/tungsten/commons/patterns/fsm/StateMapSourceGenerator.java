@@ -0,0 +1,393 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates Java source for a class that rebuilds a state transition map
+ * with plain constructor calls and
+ * {@link StateTransitionMap#buildWithoutValidation()}. Checking in the
+ * generated class removes map validation from startup and avoids reflective
+ * or data-driven construction, which suits ahead-of-time compilation such as
+ * GraalVM native images.
+ * <p>
+ * The generated class is not a static dispatcher. Its build() method replays
+ * addState() and addTransition() for every state and transition, so regex
+ * compilation, dispatch table construction, and fingerprinting still happen
+ * at startup; only validation is skipped.
+ * <p>
+ * States, transitions, error states, ignored events, and timeouts are
+ * reproduced in the same order, so the generated map has the same
+ * fingerprint as the original. {@link RegexGuard}, {@link EventTypeGuard},
+ * {@link PositiveGuard}, and {@link TimeoutGuard} guards are generated; other
+ * guards and all actions are supplied by name through the generated
+ * onGuard(), onEntry(), onExit(), and onTransition() methods before the map
+ * is built. Transitions are supplied by name, so every transition must have
+ * a name that no other transition of the map uses. The following example
+ * writes a map to a source file.
+ *
+ * <pre><code>
+ *  String source = StateMapSourceGenerator.generate(map,
+ *          "com.example.fsm", "ReplicatorMap");
+ *  Files.write(path, source.getBytes("UTF-8"));
+ * </code></pre>
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public final class StateMapSourceGenerator
+{
+    private StateMapSourceGenerator()
+    {
+    }
+
+    /**
+     * Generates the source of a class that builds a copy of a map.
+     *
+     * @param map A built map
+     * @param packageName Package of the generated class or null for the
+     *            unnamed package
+     * @param className Simple name of the generated class
+     * @return Java source of the class
+     * @throws FiniteStateException Thrown if the map is not built, has
+     *             transitions without a name or with the same name, or
+     *             contains timeout events or event types that cannot be
+     *             expressed in source
+     */
+    public static String generate(StateTransitionMap<?> map,
+            String packageName, String className) throws FiniteStateException
+    {
+        return generateSource(map, packageName, className);
+    }
+
+    // Generates the source using the entity type of the map.
+    private static <ET extends Entity> String generateSource(
+            StateTransitionMap<ET> map, String packageName, String className)
+            throws FiniteStateException
+    {
+        int stateCount = map.getStateCount();
+        checkTransitionNames(map);
+        List<Transition<ET, ?>> transitions = new ArrayList<Transition<ET, ?>>();
+        for (int i = 0; i < stateCount; i++)
+            transitions.addAll(map.getDeclaredTransitions(i));
+        String self = className + "<ET>";
+
+        StringBuilder sb = new StringBuilder();
+        if (packageName != null && packageName.length() > 0)
+            sb.append("package ").append(packageName).append(";\n\n");
+        sb.append("import java.util.concurrent.TimeUnit;\n\n");
+        for (String imported : new String[]{"Action", "Entity",
+                "EventTypeGuard", "FiniteStateException", "Guard",
+                "PositiveGuard", "RegexGuard", "State", "StateTimeout",
+                "StateTransitionMap", "StateType", "StringEvent",
+                "TimeoutGuard", "Transition"})
+        {
+            sb.append("import ").append(
+                    StateMapSourceGenerator.class.getPackage().getName())
+                    .append('.').append(imported).append(";\n");
+        }
+        sb.append("\n");
+        sb.append("/**\n");
+        sb.append(" * Builds a state transition map with fingerprint ").append(
+                String.format("0x%016x", map.getFingerprint())).append(".\n");
+        sb.append(" * Generated by ").append(
+                StateMapSourceGenerator.class.getSimpleName()).append(
+                "; do not edit.\n");
+        sb.append(" *\n");
+        sb.append(" * @param <ET> The entity type of the map\n");
+        sb.append(" */\n");
+        sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+        sb.append("public final class ").append(className).append(
+                "<ET extends Entity>\n{\n");
+
+        // Names of states and transitions by index.
+        sb.append("    private static final String[] STATES = {");
+        for (int i = 0; i < stateCount; i++)
+        {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(literal(map.getState(i).getName()));
+        }
+        sb.append("};\n\n");
+        sb.append("    private static final String[] TRANSITIONS = {");
+        for (int i = 0; i < transitions.size(); i++)
+        {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(literal(transitions.get(i).getName()));
+        }
+        sb.append("};\n\n");
+
+        sb.append("    private final Action<ET>[] entryActions = new Action[")
+                .append(stateCount).append("];\n");
+        sb.append("    private final Action<ET>[] exitActions = new Action[")
+                .append(stateCount).append("];\n");
+        sb.append("    private final Action<ET>[] transitionActions = new Action[")
+                .append(transitions.size()).append("];\n");
+        sb.append("    private final Guard<ET, ?>[] guards = new Guard[")
+                .append(transitions.size()).append("];\n\n");
+
+        appendSetter(sb, self, "onEntry", "state", "STATES", "Action<ET>",
+                "entryActions", "Sets the action performed on entering a state.");
+        appendSetter(sb, self, "onExit", "state", "STATES", "Action<ET>",
+                "exitActions", "Sets the action performed on leaving a state.");
+        appendSetter(sb, self, "onTransition", "transition", "TRANSITIONS",
+                "Action<ET>", "transitionActions",
+                "Sets the action performed by a transition.");
+        appendSetter(sb, self, "onGuard", "transition", "TRANSITIONS",
+                "Guard<ET, ?>", "guards",
+                "Sets the guard of a transition whose guard is not generated.");
+
+        sb.append("    /**\n");
+        sb.append("     * Adds the states and transitions to a new map and builds it without\n");
+        sb.append("     * validating it again.\n");
+        sb.append("     *\n");
+        sb.append("     * @throws FiniteStateException Thrown if a guard has not been supplied\n");
+        sb.append("     */\n");
+        sb.append("    public StateTransitionMap<ET> build() throws FiniteStateException\n");
+        sb.append("    {\n");
+        sb.append("        StateTransitionMap<ET> map = new StateTransitionMap<ET>();\n");
+        sb.append("        State<ET>[] states = new State[").append(stateCount)
+                .append("];\n");
+        for (int i = 0; i < stateCount; i++)
+        {
+            State<ET> state = map.getState(i);
+            sb.append("        states[").append(i).append(
+                    "] = map.addState(").append(literal(state.getBaseName()))
+                    .append(", StateType.").append(state.getType().name())
+                    .append(", ");
+            int parent = map.ordinalOf(state.getParent());
+            sb.append((parent < 0) ? "null" : "states[" + parent + "]");
+            sb.append(", entryActions[").append(i).append("], exitActions[")
+                    .append(i).append("]);\n");
+        }
+        State<ET> errorState = map.getErrorState();
+        if (errorState != null)
+            sb.append("        map.setErrorState(states[").append(
+                    map.ordinalOf(errorState)).append("]);\n");
+
+        // Timeouts in slot order, so that timeout transitions can refer to
+        // them.
+        int timeoutCount = map.getTimeoutCount();
+        if (timeoutCount > 0)
+            sb.append("        StateTimeout<ET>[] timeouts = new StateTimeout[")
+                    .append(timeoutCount).append("];\n");
+        for (int i = 0; i < timeoutCount; i++)
+        {
+            StateTimeout<ET> timeout = map.getTimeout(i);
+            sb.append("        timeouts[").append(i).append(
+                    "] = map.addTimeout(states[").append(
+                    map.ordinalOf(timeout.getState())).append("], ").append(
+                    timeout.getTimeout(TimeUnit.NANOSECONDS))
+                    .append("L, TimeUnit.NANOSECONDS, ").append(
+                            timeoutEvent(timeout)).append(");\n");
+        }
+
+        for (int i = 0; i < stateCount; i++)
+        {
+            for (Class<?> type : map.getDeclaredIgnoredTypes(i))
+                sb.append("        map.addIgnoredEvent(states[").append(i)
+                        .append("], (Class) ").append(className(type)).append(
+                                ".class);\n");
+        }
+
+        for (int i = 0; i < transitions.size(); i++)
+        {
+            Transition<ET, ?> transition = transitions.get(i);
+            sb.append("        map.addTransition(new Transition(TRANSITIONS[")
+                    .append(i).append("], ").append(guard(transition, i))
+                    .append(", states[").append(
+                            map.ordinalOf(transition.getInput())).append(
+                            "], transitionActions[").append(i).append(
+                            "], states[").append(
+                            map.ordinalOf(transition.getOutput())).append(
+                            "]));\n");
+        }
+        sb.append("        map.buildWithoutValidation();\n");
+        sb.append("        return map;\n");
+        sb.append("    }\n\n");
+
+        sb.append("    // Returns a guard supplied by the application.\n");
+        sb.append("    private Guard<ET, ?> supplied(int transition) throws FiniteStateException\n");
+        sb.append("    {\n");
+        sb.append("        if (guards[transition] == null)\n");
+        sb.append("            throw new FiniteStateException(\"No guard supplied for transition: \"\n");
+        sb.append("                    + TRANSITIONS[transition]);\n");
+        sb.append("        return guards[transition];\n");
+        sb.append("    }\n\n");
+
+        sb.append("    // Returns the index of a name or throws an exception if it is unknown.\n");
+        sb.append("    private static int indexOf(String[] names, String name) throws FiniteStateException\n");
+        sb.append("    {\n");
+        sb.append("        for (int i = 0; i < names.length; i++)\n");
+        sb.append("        {\n");
+        sb.append("            if (names[i].equals(name))\n");
+        sb.append("                return i;\n");
+        sb.append("        }\n");
+        sb.append("        throw new FiniteStateException(\"Unknown name: \" + name);\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Ensures that every transition of a map has a name that no other
+     * transition uses, which generated classes rely on to look transitions
+     * up by name. Code generators, including the annotation processor, call
+     * this so that they accept the same maps.
+     *
+     * @param map A built map
+     * @throws FiniteStateException Thrown if the map is not built or has
+     *             transitions without a name or with the same name
+     */
+    public static void checkTransitionNames(StateTransitionMap<?> map)
+            throws FiniteStateException
+    {
+        Set<String> names = new HashSet<String>();
+        int stateCount = map.getStateCount();
+        for (int i = 0; i < stateCount; i++)
+        {
+            for (Transition<?, ?> transition : map.getDeclaredTransitions(i))
+            {
+                String name = transition.getName();
+                if (name == null)
+                    throw new FiniteStateException(
+                            "Transition has no name: input="
+                                    + transition.getInput().getName()
+                                    + " output="
+                                    + transition.getOutput().getName());
+                if (!names.add(name))
+                    throw new FiniteStateException(
+                            "Duplicate transition name: " + name);
+            }
+        }
+    }
+
+    // Appends a method that stores a value by state or transition name.
+    private static void appendSetter(StringBuilder sb, String self,
+            String method, String param, String names, String type,
+            String array, String comment)
+    {
+        sb.append("    /**\n");
+        sb.append("     * ").append(comment).append("\n");
+        sb.append("     *\n");
+        sb.append("     * @throws FiniteStateException Thrown if there is no such ")
+                .append(param).append("\n");
+        sb.append("     */\n");
+        sb.append("    public ").append(self).append(' ').append(method)
+                .append("(String ").append(param).append(", ").append(type)
+                .append(" value)\n");
+        sb.append("            throws FiniteStateException\n");
+        sb.append("    {\n");
+        sb.append("        ").append(array).append("[indexOf(").append(names)
+                .append(", ").append(param).append(")] = value;\n");
+        sb.append("        return this;\n");
+        sb.append("    }\n\n");
+    }
+
+    // Returns an expression for the guard of a transition. Only the guard
+    // classes themselves are generated, since subclasses may override
+    // accept().
+    private static String guard(Transition<?, ?> transition, int index)
+            throws FiniteStateException
+    {
+        Guard<?, ?> guard = transition.getGuard();
+        Class<?> guardClass = (guard == null) ? null : guard.getClass();
+        if (guardClass == RegexGuard.class)
+        {
+            return "new RegexGuard<ET>("
+                    + literal(((RegexGuard<?>) guard).getPattern().pattern())
+                    + ")";
+        }
+        else if (guardClass == EventTypeGuard.class)
+        {
+            Class<?> type = ((EventTypeGuard<?>) guard).getType();
+            if (type.getCanonicalName() != null)
+                return "new EventTypeGuard<ET>((Class) " + className(type)
+                        + ".class)";
+        }
+        else if (guardClass == PositiveGuard.class)
+            return "new PositiveGuard<ET, Object>()";
+        else if (guardClass == TimeoutGuard.class)
+            return "new TimeoutGuard<ET>(timeouts["
+                    + ((TimeoutGuard<?>) guard).getTimeout().getSlot() + "])";
+        return "supplied(" + index + ")";
+    }
+
+    // Returns an expression for the event delivered by a timeout.
+    private static String timeoutEvent(StateTimeout<?> timeout)
+            throws FiniteStateException
+    {
+        Event<?> event = timeout.getEvent();
+        if (event instanceof TimeoutEvent && event.getData() == timeout)
+            return "null";
+        else if (event.getClass() == StringEvent.class)
+            return "new StringEvent(" + literal((String) event.getData())
+                    + ")";
+        throw new FiniteStateException(
+                "Cannot generate source for timeout event: state="
+                        + timeout.getState().getName() + " event="
+                        + event.getClass().getName());
+    }
+
+    // Returns the name by which source code refers to a class.
+    private static String className(Class<?> type) throws FiniteStateException
+    {
+        String name = type.getCanonicalName();
+        if (name == null)
+            throw new FiniteStateException(
+                    "Cannot generate source for anonymous or local class: "
+                            + type.getName());
+        return name;
+    }
+
+    // Returns a Java string literal, or null if the value is null.
+    private static String literal(String value)
+    {
+        if (value == null)
+            return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '\r')
+                sb.append("\\r");
+            else if (c == '\t')
+                sb.append("\\t");
+            else if (c < 0x20 || c > 0x7e)
+                sb.append(String.format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of states of a built state transition map, in the manner of
+ * {@link java.util.EnumSet}. Membership is stored as a bit per state
+ * ordinal, so tests do not hash. States that are not part of the map are
+ * never members.
+ * <p>
+ * This class is not synchronized. A set that is filled in before being shared
+ * may be read by any number of threads.
+ *
+ * @param <ET> The entity type of the state transition map
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateSet<ET extends Entity>
+{
+    private final StateTransitionMap<ET> map;
+    private final long[]                 bits;
+    private int                          size;
+
+    /**
+     * Creates an empty set for the states of a state transition map.
+     *
+     * @param map A state transition map, which must already be built
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public StateSet(StateTransitionMap<ET> map) throws FiniteStateException
+    {
+        this.map = map;
+        this.bits = new long[(map.getStateCount() + 63) >>> 6];
+    }
+
+    /** Returns the state transition map whose states are members. */
+    public StateTransitionMap<ET> getMap()
+    {
+        return map;
+    }
+
+    /** Returns true if the state is a member. */
+    public boolean contains(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        return ordinal >= 0 && contains(ordinal);
+    }
+
+    /** Returns true if the state with the given ordinal is a member. */
+    boolean contains(int ordinal)
+    {
+        return (bits[ordinal >>> 6] & (1L << ordinal)) != 0;
+    }
+
+    /**
+     * Adds a state.
+     *
+     * @return True if the state was not already a member
+     * @throws IllegalArgumentException Thrown if the state is not part of the
+     *             map
+     */
+    public boolean add(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        if (ordinal < 0)
+            throw new IllegalArgumentException(
+                    "State is not part of the state transition map: " + state);
+        if (contains(ordinal))
+            return false;
+        bits[ordinal >>> 6] |= 1L << ordinal;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a state.
+     *
+     * @return True if the state was a member
+     */
+    public boolean remove(State<?> state)
+    {
+        int ordinal = map.ordinalOf(state);
+        if (ordinal < 0 || !contains(ordinal))
+            return false;
+        bits[ordinal >>> 6] &= ~(1L << ordinal);
+        size--;
+        return true;
+    }
+
+    /** Returns the number of members. */
+    public int size()
+    {
+        return size;
+    }
+
+    /** Returns true if there are no members. */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** Removes all members. */
+    public void clear()
+    {
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = 0;
+        size = 0;
+    }
+
+    /** Returns the members in ordinal order. */
+    public List<State<ET>> toList()
+    {
+        List<State<ET>> list = new ArrayList<State<ET>>(size);
+        for (int i = 0; i < bits.length; i++)
+        {
+            long word = bits[i];
+            while (word != 0)
+            {
+                int bit = Long.numberOfTrailingZeros(word);
+                list.add(map.getState((i << 6) + bit));
+                word &= word - 1;
+            }
+        }
+        return list;
+    }
+}
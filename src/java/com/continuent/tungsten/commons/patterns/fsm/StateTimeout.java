@@ -0,0 +1,102 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Defines an event that a state machine delivers to itself when it remains in
+ * a state for longer than a given time. The timeout is armed whenever the
+ * machine enters the state through a transition, under the same rules as the
+ * state's entry action, and cancelled when the machine leaves the state,
+ * under the same rules as its exit action. Moving between substates of the
+ * state therefore does not restart the timeout.
+ * <p>
+ * Timeouts are declared with
+ * {@link StateTransitionMap#addTimeout(State, long, TimeUnit, Event)} or
+ * {@link StateTransitionMap#addTimeoutTransition(String, State, long, TimeUnit, Action, State)}
+ * and run on a {@link HashedWheelTimer}.
+ *
+ * @param <ET> The entity type of the state transition map
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class StateTimeout<ET extends Entity>
+{
+    private final State<ET> state;
+    private final long      timeoutNanos;
+    private final Event<?>  event;
+    private final int       slot;
+
+    /**
+     * Creates a new timeout. If no event is given, the timeout delivers a
+     * {@link TimeoutEvent} whose data is this timeout.
+     *
+     * @param state State in which the timeout is armed
+     * @param timeoutNanos Time in nanoseconds after which the event is
+     *            delivered
+     * @param event Event to deliver or null
+     * @param slot Index of this timeout within its map
+     */
+    StateTimeout(State<ET> state, long timeoutNanos, Event<?> event, int slot)
+    {
+        this.state = state;
+        this.timeoutNanos = timeoutNanos;
+        this.event = (event == null) ? new TimeoutEvent(this) : event;
+        this.slot = slot;
+    }
+
+    /** Returns the state in which the timeout is armed. */
+    public State<ET> getState()
+    {
+        return state;
+    }
+
+    /** Returns the time after which the event is delivered. */
+    public long getTimeout(TimeUnit unit)
+    {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the event delivered when the timeout expires. */
+    public Event<?> getEvent()
+    {
+        return event;
+    }
+
+    /** Returns the index of this timeout within its map. */
+    int getSlot()
+    {
+        return slot;
+    }
+
+    /**
+     * Prints the state and timeout.
+     */
+    public String toString()
+    {
+        return "StateTimeout: state=" + state.getName() + " timeout="
+                + getTimeout(TimeUnit.MILLISECONDS) + "ms";
+    }
+}
@@ -43,6 +43,11 @@ import java.util.concurrent.LinkedBlockingQueue;
  *   }
  * </code></pre>
  * 
+ * Each latch occupies a thread while it waits. Callers that wait for many
+ * state machines at once should use {@link StateMachine#stateFuture(State)}
+ * or {@link StateMachine#awaitState(State, long, java.util.concurrent.TimeUnit)}
+ * instead, which return futures completed by the state machine itself.
+ * 
  * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
  * @version 1.0
  */
@@ -149,14 +154,12 @@ public class StateTransitionLatch<ET extends Entity>
     {
         try
         {
-            // WARNING: Must synchronize adding listener and setting
-            // initial state or you can miss a notification from the state
-            // machine.
-            synchronized (stateMachine)
-            {
-                stateMachine.addListener(this);
-                this.stateQueue.add(stateMachine.getState());
-            }
+            // Register before reading the initial state. The machine sets
+            // its state before notifying listeners, so any change we are not
+            // notified of is visible in the state we read. Registration does
+            // not lock the state machine.
+            stateMachine.addListener(this);
+            this.stateQueue.add(stateMachine.getState());
 
             // Run until we finish or somebody interrupts us.
             while (!done && !Thread.interrupted())
@@ -22,10 +22,17 @@
 
 package com.continuent.tungsten.commons.patterns.fsm;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the map of states and transitions composing a finite state machine.
+ * States and transitions are added first and then checked and compiled by
+ * {@link #build()}. Once built, the map can no longer be changed and may be
+ * shared freely between threads and state machines.
  *
  * @param <ET> The entity type of the FSM whose transition map this object
  *            defines
@@ -35,11 +42,29 @@ import java.util.HashMap;
  */
 public class StateTransitionMap<ET extends Entity>
 {
+    private static final int[]                    NO_TIMEOUTS   = new int[0];
+
     private State<ET>                             startState;
     private State<ET>                             errorState;
-    private HashMap<State<ET>, TransitionMatcher<ET>> transitionMap = new HashMap<State<ET>, TransitionMatcher<ET>>();
+
+    // States and their transition matchers indexed by state ordinal, which
+    // is assigned in the order states are added, and an index of ordinals by
+    // fully qualified state name.
+    private ArrayList<State<ET>>              stateList     = new ArrayList<State<ET>>();
+    private ArrayList<TransitionMatcher<ET>>  matchers      = new ArrayList<TransitionMatcher<ET>>();
+    private HashMap<String, Integer>          nameIndex     = new HashMap<String, Integer>();
     private boolean                           initialized;
 
+    // Timeouts in the order they were added. The index of each is its slot.
+    private ArrayList<StateTimeout<ET>>       timeouts      = new ArrayList<StateTimeout<ET>>();
+
+    // Compiled dispatch tables indexed by state ordinal. These are generated
+    // by build(), after which the map cannot change.
+    private State<ET>[]                       states;
+    private DispatchTable<ET>[]               dispatchTables;
+    private int[]                             parentOrdinals;
+    private long                              fingerprint;
+
     /** Creates a new instance. */
     public StateTransitionMap()
     {
@@ -64,7 +89,7 @@ public class StateTransitionMap<ET extends Entity>
      */
     public void setErrorState(State<ET> state) throws FiniteStateException
     {
-        if (transitionMap.get(state) == null)
+        if (ordinalOf(state) < 0)
             throw new FiniteStateException(
                     "Unknown state--error states must be the state transition map: "
                             + state);
@@ -90,7 +115,7 @@ public class StateTransitionMap<ET extends Entity>
     public State<ET> addState(State<ET> state) throws FiniteStateException
     {
         // Check for error conditions.
-        if (transitionMap.get(state) != null)
+        if (ordinalOf(state) >= 0)
             throw new FiniteStateException("State is already present in map: "
                     + state);
 
@@ -101,8 +126,15 @@ public class StateTransitionMap<ET extends Entity>
                             + startState.getName() + " new=" + state.getName());
         }
 
-        // Update the map.
-        transitionMap.put(state, new TransitionMatcher<ET>());
+        checkNotBuilt();
+
+        // Update the map, assigning the next ordinal to the new state.
+        int ordinal = stateList.size();
+        stateList.add(state);
+        matchers.add(new TransitionMatcher<ET>());
+        if (!nameIndex.containsKey(state.getName()))
+            nameIndex.put(state.getName(), ordinal);
+        state.setOrdinal(this, ordinal);
         if (state.isStart())
         {
             this.startState = state;
@@ -143,18 +175,14 @@ public class StateTransitionMap<ET extends Entity>
 
     /**
      * Returns a state definition from the map or null if the state cannot 
-     * be found. 
+     * be found. If several states share the name, returns the first one added.
      * 
      * @param name The fully qualified state name
      */
     public State<ET> getStateByName(String name)
     {
-        for (State<ET> state: this.transitionMap.keySet())
-        {
-            if (state.getName().equals(name))
-                return state;
-        }
-        return null;
+        Integer ordinal = nameIndex.get(name);
+        return (ordinal == null) ? null : stateList.get(ordinal);
     }
 
     /**
@@ -167,17 +195,18 @@ public class StateTransitionMap<ET extends Entity>
             throws FiniteStateException
     {
         // Check for errors.
-        TransitionMatcher<ET> matcher = transitionMap.get(transition.getInput());
-        if (matcher == null)
+        int inputOrdinal = ordinalOf(transition.getInput());
+        if (inputOrdinal < 0)
             throw new FiniteStateException(
                     "Cannot find input state for transition: "
                             + transition.getName());
-        if (transitionMap.get(transition.getOutput()) == null)
+        if (ordinalOf(transition.getOutput()) < 0)
             throw new FiniteStateException(
                     "Cannot find output state for transition: "
                             + transition.getName());
 
-        matcher.addTransition(transition);
+        checkNotBuilt();
+        matchers.get(inputOrdinal).addTransition(transition);
         return transition;
     }
 
@@ -230,15 +259,103 @@ public class StateTransitionMap<ET extends Entity>
     }
 
     /**
-     * Validates the state machine for use. This must be called prior to any use
-     * of the state machine.
+     * Declares that a state ignores events of a given type, including
+     * subclasses. Ignored events are discarded by
+     * {@link StateMachine#applyEvent(Event)} without evaluating any guard or
+     * firing any action, and the state does not change. The declaration also
+     * applies to substates of the state and takes precedence over any
+     * transition that would otherwise accept the event.
+     *
+     * @param state State that ignores the events
+     * @param eventType Class of the events to ignore
+     * @throws FiniteStateException Thrown if the state is not in the map or the
+     *             map has been built
+     */
+    public void addIgnoredEvent(State<ET> state,
+            Class<? extends Event<?>> eventType) throws FiniteStateException
+    {
+        int ordinal = ordinalOf(state);
+        if (ordinal < 0)
+            throw new FiniteStateException(
+                    "Cannot find state for ignored event: " + state);
+        checkNotBuilt();
+        matchers.get(ordinal).addIgnoredType(eventType);
+    }
+
+    /**
+     * Adds a timeout that delivers an event to a state machine once it has
+     * been in a state for a given time. The event is processed like any other
+     * event, so a transition must accept it. See {@link StateTimeout} for the
+     * rules that arm and cancel the timeout.
+     *
+     * @param state State in which the timeout is armed
+     * @param timeout Time after which the event is delivered
+     * @param unit Unit of the timeout
+     * @param event Event to deliver or null to deliver a {@link TimeoutEvent}
+     * @return The new timeout
+     * @throws FiniteStateException Thrown if the state is not in the map, the
+     *             timeout is not positive, or the map has been built
+     */
+    public StateTimeout<ET> addTimeout(State<ET> state, long timeout,
+            TimeUnit unit, Event<?> event) throws FiniteStateException
+    {
+        if (ordinalOf(state) < 0)
+            throw new FiniteStateException(
+                    "Cannot find state for timeout: " + state);
+        if (timeout <= 0)
+            throw new FiniteStateException("Timeout must be positive: state="
+                    + state.getName() + " timeout=" + timeout);
+        checkNotBuilt();
+
+        StateTimeout<ET> stateTimeout = new StateTimeout<ET>(state, unit
+                .toNanos(timeout), event, timeouts.size());
+        timeouts.add(stateTimeout);
+        return stateTimeout;
+    }
+
+    /**
+     * Adds a transition that is taken when a state machine has been in the
+     * input state for a given time. This adds a timeout on the input state
+     * and a transition guarded by a {@link TimeoutGuard} that accepts its
+     * event. Entry, exit, and transition actions fire as for any other
+     * transition, and a {@link TransitionFailureException} moves the machine
+     * to the error state.
+     *
+     * @param name Transition name
+     * @param input Input state
+     * @param timeout Time after which the transition is taken
+     * @param unit Unit of the timeout
+     * @param action An action to take when the transition is triggered
+     * @param output Output state
+     */
+    public Transition<ET, StateTimeout<?>> addTimeoutTransition(String name,
+            State<ET> input, long timeout, TimeUnit unit, Action<ET> action,
+            State<ET> output) throws FiniteStateException
+    {
+        if (ordinalOf(output) < 0)
+            throw new FiniteStateException(
+                    "Cannot find output state for transition: " + name);
+        StateTimeout<ET> stateTimeout = addTimeout(input, timeout, unit, null);
+        return addTransition(new Transition<ET, StateTimeout<?>>(name,
+                new TimeoutGuard<ET>(stateTimeout), input, action, output));
+    }
+
+    /**
+     * Validates the state machine for use and compiles the dispatch tables used
+     * to look up transitions. This must be called once all states and
+     * transitions have been added and prior to any use of the state machine.
+     * A built map cannot be changed, so calling this method again has no
+     * effect.
      * 
      * @throws FiniteStateException
      */
     public void build() throws FiniteStateException
     {
+        if (initialized)
+            return;
+
         // Check to ensure state graph is not empty.
-        if (this.transitionMap.size() == 0)
+        if (this.stateList.size() == 0)
             throw new FiniteStateException("State machine contains no states");
 
         // Ensure we have a starting state.
@@ -247,7 +364,7 @@ public class StateTransitionMap<ET extends Entity>
 
         // Ensure that we have at least one ending state.
         boolean foundEnd = false;
-        for (State state : transitionMap.keySet())
+        for (State state : stateList)
         {
             if (state.isEnd())
             {
@@ -260,8 +377,10 @@ public class StateTransitionMap<ET extends Entity>
 
         // Ensure that every non-starting state other than the error state has
         // at least one transition either directly into it or to a substate.
-        HashMap<State, Transition> inBoundTransitions = new HashMap<State, Transition>();
-        for (TransitionMatcher<ET> matcher : transitionMap.values())
+        // States compare equal by name, so key on identity to keep distinct
+        // states that share a name apart.
+        IdentityHashMap<State, Transition> inBoundTransitions = new IdentityHashMap<State, Transition>();
+        for (TransitionMatcher<ET> matcher : matchers)
         {
             for (Transition transition : matcher.getTransitions())
             {
@@ -280,7 +399,7 @@ public class StateTransitionMap<ET extends Entity>
             }
         }
 
-        for (State state : transitionMap.keySet())
+        for (State state : stateList)
         {
             if (!state.isStart() && inBoundTransitions.get(state) == null
                     && state != errorState)
@@ -293,8 +412,8 @@ public class StateTransitionMap<ET extends Entity>
 
         // Outbound #1: Ensure that every non-ending state has at least one
         // transition out of it or out of a substate.
-        HashMap<State, Transition> outBoundTransitions = new HashMap<State, Transition>();
-        for (TransitionMatcher<ET> matcher : transitionMap.values())
+        IdentityHashMap<State, Transition> outBoundTransitions = new IdentityHashMap<State, Transition>();
+        for (TransitionMatcher<ET> matcher : matchers)
         {
             for (Transition transition : matcher.getTransitions())
             {
@@ -316,7 +435,7 @@ public class StateTransitionMap<ET extends Entity>
 
         // Outbound #2: Add non-ending states whose parents have outbound
         // states.
-        for (State state : transitionMap.keySet())
+        for (State state : stateList)
         {
             if (!state.isEnd() && outBoundTransitions.get(state) == null)
             {
@@ -337,7 +456,7 @@ public class StateTransitionMap<ET extends Entity>
         }
 
         // Check for dead ends.
-        for (State state : transitionMap.keySet())
+        for (State state : stateList)
         {
             if (!state.isEnd() && outBoundTransitions.get(state) == null)
             {
@@ -347,55 +466,387 @@ public class StateTransitionMap<ET extends Entity>
             }
         }
 
+        buildWithoutValidation();
+    }
+
+    /**
+     * Compiles the dispatch tables like {@link #build()} but skips the checks
+     * for start, end, unreachable, and dead-end states. This is intended for
+     * maps whose structure has already been validated, for example when the
+     * map is generated at compile time, and saves the validation cost at
+     * startup. Maps that have not been validated may misbehave. Like
+     * {@link #build()}, calling this method on a built map has no effect.
+     * 
+     * @throws FiniteStateException Thrown if the map contains no states
+     */
+    public void buildWithoutValidation() throws FiniteStateException
+    {
+        if (initialized)
+            return;
+        if (this.stateList.size() == 0)
+            throw new FiniteStateException("State machine contains no states");
+
+        // Compile dispatch tables and freeze transitions, which may no longer
+        // change.
+        compile();
+        for (TransitionMatcher<ET> matcher : matchers)
+            matcher.freeze();
+
         // Now ready for use!
         initialized = true;
     }
 
     /**
-     * Computes the next transition given a particular input state and a message
-     * delivered to that state.
-     * 
-     * @param inputState
-     * @param event
-     * @param entity
-     * @return Next transition matching the event
-     * @throws TransitionNotFoundException Thrown if no transition matches or if
-     *             the map has not been properly initialized by a call to
-     *             {@link #build()}
+     * Builds a dispatch table for each state that flattens the transitions of
+     * the state and its enclosing states into a single array.
      */
-    public Transition<ET, ?> nextTransition(State<ET> inputState, Event<?> event,
-            ET entity) throws FiniteStateException
+    @SuppressWarnings("unchecked")
+    private void compile()
     {
-        if (!initialized)
-            throw new FiniteStateException(
-                    "State map not yet initialized through call to build() method");
+        int size = stateList.size();
+        State<ET>[] newStates = (State<ET>[]) stateList
+                .toArray(new State<?>[size]);
+        DispatchTable<ET>[] newTables =
+                (DispatchTable<ET>[]) new DispatchTable<?>[size];
+        int[] newParents = new int[size];
+        for (int ordinal = 0; ordinal < size; ordinal++)
+        {
+            State<ET> state = newStates[ordinal];
+            newParents[ordinal] = ordinalOf(state.getParent());
 
-        State<ET> matchingState = inputState;
-        boolean noMatcher = true;
-        Transition<ET, ?> transition = null;
+            // Collect transitions from the state outwards to the top-most
+            // enclosing state so that inner transitions take precedence.
+            List<Transition<ET, ?>> flattened = new ArrayList<Transition<ET, ?>>();
+            for (State<ET> s = state; s != null; s = s.getParent())
+            {
+                int enclosing = ordinalOf(s);
+                if (enclosing >= 0)
+                    flattened.addAll(matchers.get(enclosing).getTransitions());
+            }
+
+            Transition<ET, ?>[] transitions = (Transition<ET, ?>[]) flattened
+                    .toArray(new Transition<?, ?>[flattened.size()]);
+
+            // Enclosing states ignore events on behalf of their substates.
+            List<Class<?>> ignored = new ArrayList<Class<?>>();
+            for (State<ET> s = state; s != null; s = s.getParent())
+            {
+                int enclosing = ordinalOf(s);
+                if (enclosing >= 0)
+                    ignored.addAll(matchers.get(enclosing).getIgnoredTypes());
+            }
+            Class<?>[] ignoredTypes = ignored.isEmpty() ? null : ignored
+                    .toArray(new Class<?>[ignored.size()]);
+            int[] outputOrdinals = new int[transitions.length];
+            int[][] cancelTimeouts = new int[transitions.length][];
+            int[][] armTimeouts = new int[transitions.length][];
+            for (int i = 0; i < transitions.length; i++)
+            {
+                State<ET> output = transitions[i].getOutput();
+                outputOrdinals[i] = ordinalOf(output);
+                cancelTimeouts[i] = getTimeoutsToCancel(state, output);
+                armTimeouts[i] = getTimeoutsToArm(state, output);
+            }
 
-        // Walk the state hierarchy looking for a transition that accepts this
-        // event.
-        while (matchingState != null)
+            newTables[ordinal] = new DispatchTable<ET>(state, transitions,
+                    outputOrdinals, cancelTimeouts, armTimeouts, ignoredTypes);
+        }
+
+        states = newStates;
+        dispatchTables = newTables;
+        parentOrdinals = newParents;
+        fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Computes a 64-bit FNV-1a hash of the structure of the map: state names,
+     * types, parents, and ordinals, the start state, and the name and output
+     * of each transition in evaluation order. Guards and actions are not
+     * included.
+     */
+    private long computeFingerprint()
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < states.length; i++)
         {
-            TransitionMatcher<ET> matcher = transitionMap.get(matchingState);
-            if (matcher != null)
+            State<ET> state = states[i];
+            hash = fingerprint(hash, state.getName());
+            hash = fingerprint(hash, state.getType().ordinal());
+            hash = fingerprint(hash, (state.getParent() == null)
+                    ? -1
+                    : ordinalOf(state.getParent()));
+            for (Transition<ET, ?> transition : matchers.get(i)
+                    .getTransitions())
             {
-                noMatcher = false;
-                transition = matcher.matchTransition(event, entity);
-                if (transition != null)
-                    break;
+                hash = fingerprint(hash, transition.getName());
+                hash = fingerprint(hash, ordinalOf(transition.getOutput()));
             }
-            matchingState = matchingState.getParent();
         }
+        hash = fingerprint(hash, ordinalOf(startState));
+        return hash;
+    }
+
+    // Adds a string to a fingerprint.
+    private static long fingerprint(long hash, String value)
+    {
+        if (value == null)
+            return fingerprint(hash, -1);
+        hash = fingerprint(hash, value.length());
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Adds an integer to a fingerprint.
+    private static long fingerprint(long hash, int value)
+    {
+        for (int shift = 0; shift < 32; shift += 8)
+        {
+            hash ^= (value >>> shift) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a fingerprint of the structure of the map as of the last call
+     * to {@link #build()}. Maps built from the same states and transitions in
+     * the same order have the same fingerprint, so it can be used to check
+     * that saved state ordinals still apply. Guards and actions do not affect
+     * the fingerprint.
+     *
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    public long getFingerprint() throws FiniteStateException
+    {
+        checkInitialized();
+        return fingerprint;
+    }
+
+    /**
+     * Returns the ordinal assigned to a state when the map was built or -1 if
+     * the state is not part of this map.
+     *
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    int getOrdinal(State<ET> state) throws FiniteStateException
+    {
+        checkInitialized();
+        return ordinalOf(state);
+    }
+
+    /**
+     * Returns the ordinal of a state or -1 if the state is not part of this
+     * map. Only the state instance added to the map is part of it, not other
+     * states with the same name. States remember the ordinal assigned by the first map to which
+     * they are added, so for that map this does not require a lookup.
+     */
+    int ordinalOf(State<?> state)
+    {
+        if (state == null)
+            return -1;
+        int ordinal = state.getOrdinal(this);
+        if (ordinal >= 0)
+            return ordinal;
+        Integer indexed = nameIndex.get(state.getName());
+        if (indexed == null || stateList.get(indexed.intValue()) != state)
+            return -1;
+        return indexed.intValue();
+    }
+
+    /** Returns the number of timeouts in the map. */
+    int getTimeoutCount()
+    {
+        return timeouts.size();
+    }
+
+    /** Returns the timeout with the given slot. */
+    StateTimeout<ET> getTimeout(int slot)
+    {
+        return timeouts.get(slot);
+    }
+
+    /**
+     * Returns the slots of timeouts on the states that are left when moving
+     * from one state to another, innermost state first. These are the states
+     * whose exit actions would fire.
+     */
+    int[] getTimeoutsToCancel(State<ET> from, State<ET> to)
+    {
+        if (timeouts.isEmpty() || from == to)
+            return NO_TIMEOUTS;
+        List<Integer> slots = new ArrayList<Integer>();
+        State<ET> leastCommonParent = from.getLeastCommonParent(to);
+        for (State<ET> s = from; s != null && s != leastCommonParent; s = s
+                .getParent())
+            addTimeoutSlots(s, slots);
+        return toSlotArray(slots);
+    }
+
+    /**
+     * Returns the slots of timeouts on the states that are entered when moving
+     * from one state to another, outermost state first. These are the states
+     * whose entry actions would fire.
+     */
+    int[] getTimeoutsToArm(State<ET> from, State<ET> to)
+    {
+        if (timeouts.isEmpty() || from == to)
+            return NO_TIMEOUTS;
+        List<Integer> slots = new ArrayList<Integer>();
+        State<ET> leastCommonParent = from.getLeastCommonParent(to);
+        boolean entered = (leastCommonParent == null);
+        for (State<ET> s : to.getHierarchy())
+        {
+            if (entered)
+                addTimeoutSlots(s, slots);
+            else if (s == leastCommonParent)
+                entered = true;
+        }
+        return toSlotArray(slots);
+    }
+
+    /**
+     * Returns the slots of timeouts to arm when a state machine starts in a
+     * state, which are those of the state and every enclosing state,
+     * outermost state first.
+     */
+    int[] getTimeoutsToArm(State<ET> state)
+    {
+        if (timeouts.isEmpty())
+            return NO_TIMEOUTS;
+        List<Integer> slots = new ArrayList<Integer>();
+        for (State<ET> s : state.getHierarchy())
+            addTimeoutSlots(s, slots);
+        return toSlotArray(slots);
+    }
+
+    // Adds the slots of timeouts on a state.
+    private void addTimeoutSlots(State<ET> state, List<Integer> slots)
+    {
+        for (StateTimeout<ET> timeout : timeouts)
+        {
+            if (timeout.getState() == state)
+                slots.add(timeout.getSlot());
+        }
+    }
+
+    private static int[] toSlotArray(List<Integer> slots)
+    {
+        if (slots.isEmpty())
+            return NO_TIMEOUTS;
+        int[] array = new int[slots.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = slots.get(i);
+        return array;
+    }
+
+    /**
+     * Returns true if the state with the given ordinal is the state with the
+     * ancestor ordinal or one of its substates. The map must be built.
+     */
+    boolean isWithin(int ordinal, int ancestor)
+    {
+        for (int o = ordinal; o >= 0; o = parentOrdinals[o])
+        {
+            if (o == ancestor)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the state with the given ordinal.
+     */
+    State<ET> getState(int ordinal)
+    {
+        return states[ordinal];
+    }
 
-        // Could not find any transitions from this state.
-        if (noMatcher)
+    /**
+     * Returns the transitions declared on the state with the given ordinal,
+     * excluding those of enclosing states, in the order they are matched.
+     */
+    List<Transition<ET, ?>> getDeclaredTransitions(int ordinal)
+    {
+        return matchers.get(ordinal).getTransitions();
+    }
+
+    /**
+     * Returns the event types declared as ignored by the state with the given
+     * ordinal, excluding those of enclosing states.
+     */
+    List<Class<?>> getDeclaredIgnoredTypes(int ordinal)
+    {
+        return matchers.get(ordinal).getIgnoredTypes();
+    }
+
+    /**
+     * Returns the number of states in a built map.
+     *
+     * @throws FiniteStateException Thrown if the map has not been built
+     */
+    int getStateCount() throws FiniteStateException
+    {
+        checkInitialized();
+        return states.length;
+    }
+
+    /**
+     * Returns the dispatch table for a state given its ordinal.
+     *
+     * @param ordinal Ordinal returned by {@link #getOrdinal(State)}
+     * @param inputState The state, used for error reporting
+     * @param event Event being processed, used for error reporting
+     * @param entity Entity being processed, used for error reporting
+     * @throws TransitionNotFoundException Thrown if the state is not in the map
+     */
+    DispatchTable<ET> getDispatchTable(int ordinal, State<ET> inputState,
+            Event<?> event, ET entity) throws FiniteStateException
+    {
+        checkInitialized();
+        if (ordinal < 0)
         {
             throw new TransitionNotFoundException(
                     "No exit transitions from state", inputState, event, entity);
         }
+        return dispatchTables[ordinal];
+    }
+
+    // Ensures the map has not been built, since built maps are immutable.
+    private void checkNotBuilt() throws FiniteStateException
+    {
+        if (initialized)
+            throw new FiniteStateException(
+                    "State map cannot be changed after call to build() method");
+    }
 
+    // Ensures the map has been built.
+    private void checkInitialized() throws FiniteStateException
+    {
+        if (!initialized)
+            throw new FiniteStateException(
+                    "State map not yet initialized through call to build() method");
+    }
+
+    /**
+     * Computes the next transition given a particular input state and a message
+     * delivered to that state.
+     * 
+     * @param inputState
+     * @param event
+     * @param entity
+     * @return Next transition matching the event
+     * @throws TransitionNotFoundException Thrown if no transition matches or if
+     *             the map has not been properly initialized by a call to
+     *             {@link #build()}
+     */
+    public Transition<ET, ?> nextTransition(State<ET> inputState, Event<?> event,
+            ET entity) throws FiniteStateException
+    {
+        Transition<ET, ?> transition = findTransition(inputState, event, entity);
         if (transition == null)
         {
             throw new TransitionNotFoundException(
@@ -405,6 +856,44 @@ public class StateTransitionMap<ET extends Entity>
         return transition;
     }
 
+    /**
+     * Computes the next transition given a particular input state and a message
+     * delivered to that state without throwing an exception if there is none,
+     * which suits events that most states legitimately do not handle.
+     * 
+     * @param inputState
+     * @param event
+     * @param entity
+     * @return Next transition matching the event or null if no transition
+     *         matches, the state ignores the event, or the state is not in the
+     *         map
+     * @throws FiniteStateException Thrown if the map has not been properly
+     *             initialized by a call to {@link #build()}
+     */
+    public Transition<ET, ?> findTransition(State<ET> inputState,
+            Event<?> event, ET entity) throws FiniteStateException
+    {
+        int ordinal = getOrdinal(inputState);
+        if (ordinal < 0)
+            return null;
+        int index = dispatchTables[ordinal].match(event, entity);
+        return (index < 0) ? null : dispatchTables[ordinal].getTransition(index);
+    }
+
+    /**
+     * Returns true if a state ignores an event, in which case the event is
+     * discarded without looking for a transition.
+     * 
+     * @throws FiniteStateException Thrown if the map has not been properly
+     *             initialized by a call to {@link #build()}
+     */
+    public boolean isIgnored(State<ET> inputState, Event<?> event)
+            throws FiniteStateException
+    {
+        int ordinal = getOrdinal(inputState);
+        return ordinal >= 0 && dispatchTables[ordinal].isIgnored(event);
+    }
+
     /**
      * Computes the next transition that may be chained to a previous transition
      * as the result of changes which cause a given guard's accept to fire. In
@@ -421,42 +910,6 @@ public class StateTransitionMap<ET extends Entity>
     public Transition<ET, ?> nextChainedTransition(State<ET> inputState, Event<?> event,
             ET entity) throws FiniteStateException
     {
-        if (!initialized)
-            throw new FiniteStateException(
-                    "State map not yet initialized through call to build() method");
-
-        State matchingState = inputState;
-        boolean noMatcher = true;
-        Transition<ET, ?> transition = null;
-
-        // Walk the state hierarchy looking for a transition that accepts this
-        // event.
-        while (matchingState != null)
-        {
-            TransitionMatcher<ET> matcher = transitionMap.get(matchingState);
-            if (matcher != null)
-            {
-                noMatcher = false;
-                transition = matcher.matchTransition(event, entity);
-                if (transition != null)
-                    break;
-            }
-            matchingState = matchingState.getParent();
-        }
-
-        // Could not find any transitions from this state.
-        if (noMatcher)
-        {
-            throw new TransitionNotFoundException(
-                    "No exit transitions from state", inputState, event, entity);
-        }
-
-        if (transition == null)
-        {
-            throw new TransitionNotFoundException(
-                    "No matching exit transition found", inputState, event,
-                    entity);
-        }
-        return transition;
+        return nextTransition(inputState, event, entity);
     }
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Holds futures waiting for a {@link StateMachine} to reach a state. The
+ * machine calls {@link #stateChanged(int, State)} after each change of state,
+ * which completes the futures whose state has been reached. Waiting costs no
+ * thread. A waiter matches its state and all substates of it, which is
+ * decided from state ordinals rather than names.
+ * <p>
+ * Waiters are kept in an array that is copied on write, so a machine without
+ * waiters pays a single volatile read per change of state. Futures remove
+ * themselves when completed for any reason, including cancellation and
+ * timeout. Timeouts are scheduled on a {@link HashedWheelTimer}, which
+ * hands expired futures to the common fork-join pool so that code depending
+ * on them does not run on the timer thread.
+ *
+ * @param <ET> The entity type for which the state machine is defined
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class StateWaiters<ET extends Entity>
+{
+    private final StateTransitionMap<ET>        map;
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<Waiter<ET>[]> waiters = new AtomicReference<Waiter<ET>[]>(
+                                                                (Waiter<ET>[]) new Waiter<?>[0]);
+
+    /** A future waiting for a state. */
+    private static final class Waiter<ET extends Entity>
+    {
+        final int                          ordinal;
+        final boolean                      endOnError;
+        final CompletableFuture<State<ET>> future;
+
+        Waiter(int ordinal, boolean endOnError,
+                CompletableFuture<State<ET>> future)
+        {
+            this.ordinal = ordinal;
+            this.endOnError = endOnError;
+            this.future = future;
+        }
+    }
+
+    StateWaiters(StateTransitionMap<ET> map)
+    {
+        this.map = map;
+    }
+
+    /**
+     * Registers a future that completes with the state reached when the
+     * machine enters the expected state or one of its substates, or the error
+     * state if endOnError is set. The caller must check the current state
+     * after registering.
+     *
+     * @param expected State to wait for
+     * @param endOnError If true, also complete on entering the error state
+     * @param timeout Time to wait or 0 to wait indefinitely
+     * @param unit Unit of the timeout
+     * @param timer Timer on which the timeout is scheduled
+     * @return A future that completes exceptionally with a
+     *         {@link TimeoutException} when the timeout expires or with a
+     *         {@link FiniteStateException} if the state is not part of a built
+     *         map
+     */
+    CompletableFuture<State<ET>> add(final State<ET> expected,
+            boolean endOnError, long timeout, TimeUnit unit,
+            HashedWheelTimer timer)
+    {
+        final CompletableFuture<State<ET>> future = new CompletableFuture<State<ET>>();
+        int ordinal;
+        try
+        {
+            ordinal = map.getOrdinal(expected);
+        }
+        catch (FiniteStateException e)
+        {
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (ordinal < 0)
+        {
+            future.completeExceptionally(new FiniteStateException(
+                    "State is not part of the state transition map: "
+                            + expected));
+            return future;
+        }
+
+        final Waiter<ET> waiter = new Waiter<ET>(ordinal, endOnError, future);
+        insert(waiter);
+        final HashedWheelTimer.Timeout expiry;
+        if (timeout > 0)
+        {
+            final Runnable expire = new Runnable()
+            {
+                public void run()
+                {
+                    future.completeExceptionally(new TimeoutException(
+                            "Timed out waiting for state: "
+                                    + expected.getName()));
+                }
+            };
+            expiry = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    ForkJoinPool.commonPool().execute(expire);
+                }
+            }, timeout, unit);
+        }
+        else
+            expiry = null;
+
+        future.whenComplete(new BiConsumer<State<ET>, Throwable>()
+        {
+            public void accept(State<ET> state, Throwable t)
+            {
+                delete(waiter);
+                if (expiry != null)
+                    expiry.cancel();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Completes the futures of waiters whose state has been reached.
+     *
+     * @param ordinal Ordinal of the new state
+     * @param state The new state
+     */
+    void stateChanged(int ordinal, State<ET> state)
+    {
+        Waiter<ET>[] current = waiters.get();
+        if (current.length == 0)
+            return;
+
+        boolean error = (state == map.getErrorState());
+        for (int i = 0; i < current.length; i++)
+        {
+            Waiter<ET> waiter = current[i];
+            if (map.isWithin(ordinal, waiter.ordinal)
+                    || (error && waiter.endOnError))
+                waiter.future.complete(state);
+        }
+    }
+
+    // Adds a waiter to the array.
+    private void insert(Waiter<ET> waiter)
+    {
+        while (true)
+        {
+            Waiter<ET>[] current = waiters.get();
+            Waiter<ET>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = waiter;
+            if (waiters.compareAndSet(current, updated))
+                return;
+        }
+    }
+
+    // Removes a waiter from the array if it is still present.
+    private void delete(Waiter<ET> waiter)
+    {
+        while (true)
+        {
+            Waiter<ET>[] current = waiters.get();
+            int index = -1;
+            for (int i = 0; i < current.length; i++)
+            {
+                if (current[i] == waiter)
+                {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0)
+                return;
+
+            Waiter<ET>[] updated = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, updated, index,
+                    current.length - index - 1);
+            if (waiters.compareAndSet(current, updated))
+                return;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes the actions of a state transition. This holds the action semantics
+ * shared by {@link StateMachine} and {@link StateMachineEngine}; callers are
+ * responsible for finding the transition, recording the new state, and
+ * notifying listeners.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+final class TransitionExecutor
+{
+    // Log under the state machine category so existing log settings apply.
+    private static Logger logger = LoggerFactory.getLogger(StateMachine.class);
+
+    private TransitionExecutor()
+    {
+    }
+
+    /**
+     * Fires exit actions of the states being left, the transition action, and
+     * entry actions of the states being entered. Entry and exit actions fire
+     * only below the least common parent of the input and output states and
+     * do not fire at all if the state does not change. The states concerned
+     * are precomputed in the dispatch table.
+     *
+     * @param table Dispatch table of the current state
+     * @param index Index of the transition being taken in the table
+     * @param event Event that triggered the transition
+     * @param entity Entity whose state is changing
+     * @param metrics Metrics that record action execution times or null
+     * @throws TransitionRollbackException Thrown if an action rolls back the
+     *             transition
+     * @throws TransitionFailureException Thrown if an action fails and the
+     *             machine must move to the error state
+     */
+    static <ET extends Entity> void runActions(DispatchTable<ET> table,
+            int index, Event<?> event, ET entity, StateMachineMetrics metrics)
+            throws TransitionRollbackException, TransitionFailureException
+    {
+        State<ET> state = table.getState();
+        Transition<ET, ?> transition = table.getTransition(index);
+        int actionType = -1;
+        try
+        {
+            // Fire exit actions up to the state below the least common parent.
+            State<ET>[] exitStates = table.getExitChain(index);
+            for (int i = 0; i < exitStates.length; i++)
+            {
+                State<ET> exitState = exitStates[i];
+                actionType = Action.EXIT_ACTION;
+                logger.debug("Executing exit action for state: {}",
+                        exitState.getName());
+                long start = (metrics == null) ? 0 : System.nanoTime();
+                exitState.getExitAction().doAction(event, entity, transition,
+                        actionType);
+                if (metrics != null)
+                    metrics.exitAction(exitState, System.nanoTime() - start);
+            }
+
+            // Fire transition action if it exists.
+            if (transition.getAction() != null)
+            {
+                Action<ET> transitionAction = transition.getAction();
+                actionType = Action.TRANSITION_ACTION;
+                logger.debug("Executing action for transition: {}",
+                        transition.getName());
+                long start = (metrics == null) ? 0 : System.nanoTime();
+                transitionAction
+                        .doAction(event, entity, transition, actionType);
+                if (metrics != null)
+                    metrics.transitionAction(transition, System.nanoTime()
+                            - start);
+            }
+
+            // Fire entry actions from the state below the least common parent
+            // to the next state itself.
+            State<ET>[] entryStates = table.getEntryChain(index);
+            for (int i = 0; i < entryStates.length; i++)
+            {
+                State<ET> entryState = entryStates[i];
+                actionType = Action.ENTER_ACTION;
+                logger.debug("Executing entry action for state: {}",
+                        entryState.getName());
+                long start = (metrics == null) ? 0 : System.nanoTime();
+                entryState.getEntryAction().doAction(event, entity,
+                        transition, actionType);
+                if (metrics != null)
+                    metrics.entryAction(entryState, System.nanoTime() - start);
+            }
+        }
+        catch (TransitionRollbackException e)
+        {
+            // Log and rethrow a rollback exception.
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Transition rolled back: state={} transition={} actionType={}",
+                        new Object[] {state.getName(), transition.getName(), actionType});
+            }
+            throw e;
+        }
+        catch (TransitionFailureException e)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug("Transition failed: state={} transition={}  actionType={}",
+                        new Object[] {state.getName(), transition.getName(), actionType});
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Fires the entry action of the error state after a transition fails.
+     *
+     * @param map Map that defines the error state
+     * @param transition Transition that failed
+     * @param event Event that triggered the transition
+     * @param entity Entity whose state is changing
+     * @param e Exception raised by the failed action
+     * @param metrics Metrics that record action execution times or null
+     * @return The ordinal of the error state, which the caller must enter
+     * @throws FiniteStateException Thrown if there is no error state or its
+     *             entry action fails
+     */
+    static <ET extends Entity> int enterErrorState(StateTransitionMap<ET> map,
+            Transition<ET, ?> transition, Event<?> event, ET entity,
+            TransitionFailureException e, StateMachineMetrics metrics)
+            throws FiniteStateException
+    {
+        State<ET> errorState = map.getErrorState();
+
+        // Make sure we have an error state!
+        if (errorState == null)
+        {
+            String msg = "Attempt to throw TransitionFailureException when no error state exists";
+            logger.error(msg, e);
+            throw new FiniteStateException(msg, e);
+        }
+
+        // Now transition to it or try to at least.
+        try
+        {
+            Action<ET> errorStateEntryAction = errorState.getEntryAction();
+            if (errorStateEntryAction != null)
+            {
+                logger.debug("Executing entry action for error state: {}",
+                                 errorState.getName());
+                long start = (metrics == null) ? 0 : System.nanoTime();
+                errorStateEntryAction.doAction(event, entity, transition,
+                        Action.ENTER_ACTION);
+                if (metrics != null)
+                    metrics.entryAction(errorState, System.nanoTime() - start);
+            }
+            return map.getOrdinal(errorState);
+        }
+        catch (Throwable t)
+        {
+            // This bad. Nothing to do but throw an generic exception.
+            throw new FiniteStateException(
+                    "Transition to error state failed", t);
+        }
+    }
+}
@@ -0,0 +1,688 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records state transitions in a write-ahead log so that the current states of
+ * state machines can be recovered after a crash. Each record holds the
+ * instance id of a state machine, the ordinals of the states it left and
+ * entered, the name of the transition, and a timestamp. Records are appended
+ * to memory-mapped segment files in a directory; a new segment is started
+ * when the current one is full.
+ * <p>
+ * How often records are forced to disk is set by a
+ * {@link JournalDurability}. With {@link JournalDurability#BATCHED} and
+ * {@link JournalDurability#PERIODIC} a background thread performs the flush,
+ * so state machines never wait for more than one flush at a time and
+ * transitions made concurrently share the cost.
+ * <p>
+ * At startup, {@link #recover(StateTransitionMap)} reads all segments and
+ * returns the last state entered by each instance. Each record carries a
+ * checksum; a record that is incomplete or damaged, for example because the
+ * process failed while writing it, ends the segment in which it occurs. State
+ * ordinals depend on the order in which states are added to the map, so the
+ * map used for recovery must be built the same way as the map in use when the
+ * records were written.
+ * <p>
+ * Segments are kept until they are truncated. {@link #checkpoint()} starts a
+ * new segment and returns its index; once the states of all instances as of
+ * the checkpoint have been saved, for example with a
+ * {@link StateMachineSnapshot}, {@link #truncate(int)} deletes the segments
+ * before it. Recovery then reads only the remaining segments, whose states
+ * are applied on top of the saved ones.
+ * <p>
+ * The following example journals a state machine and recovers it.
+ *
+ * <pre><code>
+ *  TransitionJournal journal = new TransitionJournal(dir, JournalDurability.BATCHED);
+ *  State recovered = journal.recover(map).get(42L);
+ *  StateMachine sm = new StateMachine(map, entity, recovered);
+ *  sm.setJournal(journal, 42);
+ * </code></pre>
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public class TransitionJournal implements Closeable
+{
+    private static Logger                   logger                 = LoggerFactory.getLogger(TransitionJournal.class);
+
+    /** Default size of a segment file in bytes. */
+    public static final int                 DEFAULT_SEGMENT_SIZE   = 64 * 1024 * 1024;
+
+    /** Default flush interval in milliseconds for periodic durability. */
+    public static final long                DEFAULT_FLUSH_INTERVAL = 100;
+
+    private static final String             SEGMENT_PREFIX         = "transitions-";
+    private static final String             SEGMENT_SUFFIX         = ".journal";
+    private static final Charset            UTF8                   = Charset.forName("UTF-8");
+
+    // Each record consists of the length of the rest of the record, a CRC32
+    // checksum of the payload, and the payload: instance id, from ordinal,
+    // to ordinal, timestamp, name length, and name. A zero length marks the
+    // end of the records in a segment.
+    private static final int                PAYLOAD_HEADER_SIZE    = 8 + 4 + 4 + 8 + 2;
+    private static final int                MAX_NAME_LENGTH        = 0xFFFF;
+
+    private final File                      directory;
+    private final JournalDurability         durability;
+    private final int                       segmentSize;
+    private final long                      flushInterval;
+
+    // Current segment and buffers used to build records. Guarded by this.
+    private int                             segmentIndex;
+    private FileChannel                     channel;
+    private MappedByteBuffer                segment;
+    private final byte[]                    payload                = new byte[PAYLOAD_HEADER_SIZE
+                                                                           + MAX_NAME_LENGTH];
+    private final ByteBuffer                payloadBuffer          = ByteBuffer.wrap(payload);
+    private final CRC32                     crc                    = new CRC32();
+    private long                            appended;
+    private boolean                         closed;
+
+    // Encoded transition names.
+    private final ConcurrentHashMap<String, byte[]> names          = new ConcurrentHashMap<String, byte[]>();
+
+    // Number of records known to be on disk and flush requests. Guarded by
+    // syncLock.
+    private final Object                    syncLock               = new Object();
+    private long                            synced;
+    private boolean                         syncRequested;
+    private boolean                         stopping;
+    private volatile IOException            syncError;
+    private final Thread                    flusher;
+
+    /**
+     * Opens a journal with default segment size and flush interval.
+     *
+     * @param directory Directory that holds segment files, which is created
+     *            if it does not exist
+     * @param durability When records are forced to disk
+     * @throws IOException Thrown if the journal cannot be opened
+     */
+    public TransitionJournal(File directory, JournalDurability durability)
+            throws IOException
+    {
+        this(directory, durability, DEFAULT_SEGMENT_SIZE,
+                DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Opens a journal. New records are appended after the last valid record
+     * of the last existing segment.
+     *
+     * @param directory Directory that holds segment files, which is created
+     *            if it does not exist
+     * @param durability When records are forced to disk
+     * @param segmentSize Size of each segment file in bytes
+     * @param flushInterval Milliseconds between flushes for periodic
+     *            durability
+     * @throws IOException Thrown if the journal cannot be opened
+     */
+    public TransitionJournal(File directory, JournalDurability durability,
+            int segmentSize, long flushInterval) throws IOException
+    {
+        if (segmentSize < 4 + 4 + PAYLOAD_HEADER_SIZE)
+            throw new IllegalArgumentException("Segment size is too small: "
+                    + segmentSize);
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentSize = segmentSize;
+        this.flushInterval = flushInterval;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create journal directory: "
+                    + directory);
+
+        // Continue writing the last segment if there is one.
+        int[] indexes = listSegments();
+        if (indexes.length == 0)
+            openSegment(0);
+        else
+        {
+            openSegment(indexes[indexes.length - 1]);
+            try
+            {
+                segment.position(scan(segment, null, null));
+            }
+            catch (FiniteStateException e)
+            {
+                // Records are only checked when recovering.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        if (durability == JournalDurability.PER_EVENT)
+            flusher = null;
+        else
+        {
+            flusher = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    flushLoop();
+                }
+            }, "fsm-journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /** Returns the directory that holds segment files. */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /** Returns the durability of this journal. */
+    public JournalDurability getDurability()
+    {
+        return durability;
+    }
+
+    /**
+     * Appends a transition record and, depending on durability, waits until
+     * it is on disk.
+     *
+     * @param instanceId Id of the state machine instance
+     * @param fromOrdinal Ordinal of the state that was left
+     * @param transitionName Name of the transition taken
+     * @param toOrdinal Ordinal of the state that was entered
+     * @throws IOException Thrown if the record cannot be written or flushed
+     */
+    public void append(long instanceId, int fromOrdinal,
+            String transitionName, int toOrdinal) throws IOException
+    {
+        if (syncError != null)
+            throw new IOException("Journal flush failed: " + directory,
+                    syncError);
+        byte[] name = encode(transitionName);
+        long sequence;
+        synchronized (this)
+        {
+            if (closed)
+                throw new IOException("Journal is closed: " + directory);
+
+            // Build the payload and its checksum.
+            int payloadLength = PAYLOAD_HEADER_SIZE + name.length;
+            payloadBuffer.clear();
+            payloadBuffer.putLong(instanceId);
+            payloadBuffer.putInt(fromOrdinal);
+            payloadBuffer.putInt(toOrdinal);
+            payloadBuffer.putLong(System.currentTimeMillis());
+            payloadBuffer.putShort((short) name.length);
+            payloadBuffer.put(name);
+            crc.reset();
+            crc.update(payload, 0, payloadLength);
+
+            if (segment.remaining() < 8 + payloadLength)
+                roll(8 + payloadLength);
+            segment.putInt(4 + payloadLength);
+            segment.putInt((int) crc.getValue());
+            segment.put(payload, 0, payloadLength);
+            sequence = ++appended;
+
+            if (durability == JournalDurability.PER_EVENT)
+            {
+                segment.force();
+                synchronized (syncLock)
+                {
+                    synced = sequence;
+                }
+                return;
+            }
+        }
+
+        if (durability == JournalDurability.BATCHED)
+            awaitSync(sequence);
+    }
+
+    /**
+     * Forces all records appended so far to disk.
+     *
+     * @throws IOException Thrown if the flush fails
+     */
+    public void sync() throws IOException
+    {
+        long target;
+        MappedByteBuffer buffer;
+        synchronized (this)
+        {
+            target = appended;
+            buffer = segment;
+        }
+        synchronized (syncLock)
+        {
+            if (synced >= target)
+                return;
+        }
+
+        // Segments are forced when they are closed, so only the current
+        // segment can hold records that are not yet on disk.
+        buffer.force();
+        synchronized (syncLock)
+        {
+            if (target > synced)
+                synced = target;
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Reads all segments and returns the state most recently entered by each
+     * instance.
+     *
+     * @param map The map used by the journaled state machines, which must be
+     *            built
+     * @return A map from instance id to state
+     * @throws IOException Thrown if segments cannot be read
+     * @throws FiniteStateException Thrown if the records do not match the map
+     */
+    public synchronized <ET extends Entity> Map<Long, State<ET>> recover(
+            StateTransitionMap<ET> map) throws IOException,
+            FiniteStateException
+    {
+        Map<Long, State<ET>> states = new HashMap<Long, State<ET>>();
+        for (int index : listSegments())
+        {
+            RandomAccessFile file = new RandomAccessFile(segmentFile(index),
+                    "r");
+            try
+            {
+                FileChannel readChannel = file.getChannel();
+                ByteBuffer buffer = readChannel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                scan(buffer, map, states);
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        return states;
+    }
+
+    /**
+     * Starts a new segment, unless the current one is empty, and returns its
+     * index. Records appended after this method returns are written to that
+     * segment or later ones, so the index may be passed to
+     * {@link #truncate(int)} once the states of all instances have been saved.
+     * The saved states must include every transition journaled before the
+     * checkpoint, so they should be taken after this method returns and after
+     * transitions in progress at that time have completed.
+     *
+     * @return The checkpoint position
+     * @throws IOException Thrown if the journal is closed or a new segment
+     *             cannot be started
+     */
+    public synchronized int checkpoint() throws IOException
+    {
+        if (closed)
+            throw new IOException("Journal is closed: " + directory);
+        if (segment.position() > 0)
+            roll(0);
+        return segmentIndex;
+    }
+
+    /**
+     * Deletes the segments that precede a checkpoint. Their records are no
+     * longer recovered, so the states they describe must have been saved.
+     *
+     * @param checkpoint Position returned by {@link #checkpoint()}
+     * @return The number of segments deleted
+     * @throws IOException Thrown if a segment cannot be deleted
+     */
+    public synchronized int truncate(int checkpoint) throws IOException
+    {
+        if (checkpoint > segmentIndex)
+            throw new IllegalArgumentException(
+                    "Checkpoint is beyond the current segment: checkpoint="
+                            + checkpoint + " segment=" + segmentIndex);
+        int deleted = 0;
+        for (int index : listSegments())
+        {
+            if (index >= checkpoint)
+                break;
+            File file = segmentFile(index);
+            if (!file.delete())
+                throw new IOException("Unable to delete journal segment: "
+                        + file);
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Flushes outstanding records and closes the journal. Further appends
+     * fail.
+     *
+     * @throws IOException Thrown if the final flush fails
+     */
+    public void close() throws IOException
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            closed = true;
+        }
+
+        // Flush before stopping the flusher so that callers waiting for a
+        // flush are released.
+        try
+        {
+            sync();
+        }
+        catch (IOException e)
+        {
+            synchronized (syncLock)
+            {
+                syncError = e;
+                syncLock.notifyAll();
+            }
+            throw e;
+        }
+        finally
+        {
+            if (flusher != null)
+            {
+                synchronized (syncLock)
+                {
+                    stopping = true;
+                    syncLock.notifyAll();
+                }
+                try
+                {
+                    flusher.join();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this)
+            {
+                channel.close();
+            }
+        }
+    }
+
+    // Waits until a record has been flushed by the flusher thread.
+    private void awaitSync(long sequence) throws IOException
+    {
+        synchronized (syncLock)
+        {
+            syncRequested = true;
+            syncLock.notifyAll();
+            while (synced < sequence)
+            {
+                if (syncError != null)
+                    throw new IOException("Journal flush failed: "
+                            + directory, syncError);
+                try
+                {
+                    syncLock.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while waiting for journal flush");
+                }
+            }
+        }
+    }
+
+    // Flushes records on request or at a fixed interval until the journal is
+    // closed. Requests that arrive during a flush are served together by the
+    // next one.
+    private void flushLoop()
+    {
+        while (true)
+        {
+            synchronized (syncLock)
+            {
+                try
+                {
+                    if (durability == JournalDurability.PERIODIC)
+                    {
+                        if (!stopping)
+                            syncLock.wait(flushInterval);
+                    }
+                    else
+                    {
+                        while (!syncRequested && !stopping)
+                            syncLock.wait();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                if (stopping)
+                    return;
+                syncRequested = false;
+            }
+
+            try
+            {
+                sync();
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to flush transition journal: "
+                        + directory, e);
+                synchronized (syncLock)
+                {
+                    syncError = e;
+                    syncLock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    // Returns the encoded form of a transition name.
+    private byte[] encode(String transitionName) throws IOException
+    {
+        String key = (transitionName == null) ? "" : transitionName;
+        byte[] name = names.get(key);
+        if (name == null)
+        {
+            name = key.getBytes(UTF8);
+            if (name.length > MAX_NAME_LENGTH)
+                throw new IOException("Transition name is too long: " + key);
+            names.putIfAbsent(key, name);
+        }
+        return name;
+    }
+
+    // Forces the current segment and starts a new one.
+    private void roll(int recordSize) throws IOException
+    {
+        if (recordSize > segmentSize)
+            throw new IOException("Journal record is larger than segment size: record size="
+                    + recordSize + " segment size=" + segmentSize);
+        segment.force();
+        channel.close();
+        openSegment(segmentIndex + 1);
+    }
+
+    // Opens or creates a segment file and maps it for writing.
+    private void openSegment(int index) throws IOException
+    {
+        File file = segmentFile(index);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            long size = Math.max(raf.length(), segmentSize);
+            raf.setLength(size);
+            channel = raf.getChannel();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segmentIndex = index;
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            throw e;
+        }
+    }
+
+    // Returns the file name for a segment.
+    private File segmentFile(int index)
+    {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX,
+                index, SEGMENT_SUFFIX));
+    }
+
+    // Returns the indexes of existing segments in ascending order.
+    private int[] listSegments() throws IOException
+    {
+        String[] files = directory.list();
+        if (files == null)
+            throw new IOException("Unable to list journal directory: "
+                    + directory);
+        int[] indexes = new int[files.length];
+        int count = 0;
+        for (String file : files)
+        {
+            if (file.startsWith(SEGMENT_PREFIX) && file.endsWith(SEGMENT_SUFFIX))
+            {
+                try
+                {
+                    indexes[count] = Integer.parseInt(file.substring(
+                            SEGMENT_PREFIX.length(), file.length()
+                                    - SEGMENT_SUFFIX.length()));
+                    count++;
+                }
+                catch (NumberFormatException e)
+                {
+                    // Not a segment.
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(indexes, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Reads valid records from the start of a segment and returns the
+     * position following the last one. If a map is supplied, records are
+     * checked against it and the state entered by each instance is stored.
+     */
+    private static <ET extends Entity> int scan(ByteBuffer segment,
+            StateTransitionMap<ET> map, Map<Long, State<ET>> states)
+            throws FiniteStateException
+    {
+        ByteBuffer buffer = segment.duplicate();
+        buffer.position(0);
+        CRC32 checksum = new CRC32();
+        byte[] payload = new byte[PAYLOAD_HEADER_SIZE + MAX_NAME_LENGTH];
+        int position = 0;
+        while (buffer.remaining() >= 8)
+        {
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            int payloadLength = length - 4;
+            if (payloadLength < PAYLOAD_HEADER_SIZE
+                    || payloadLength > payload.length
+                    || payloadLength > buffer.remaining())
+                break;
+            buffer.get(payload, 0, payloadLength);
+            checksum.reset();
+            checksum.update(payload, 0, payloadLength);
+            if ((int) checksum.getValue() != expectedCrc)
+                break;
+
+            ByteBuffer record = ByteBuffer.wrap(payload, 0, payloadLength);
+            long instanceId = record.getLong();
+            int fromOrdinal = record.getInt();
+            int toOrdinal = record.getInt();
+            record.getLong();
+            int nameLength = record.getShort() & 0xFFFF;
+            if (nameLength != payloadLength - PAYLOAD_HEADER_SIZE)
+                break;
+            if (map != null)
+            {
+                String name = new String(payload, PAYLOAD_HEADER_SIZE,
+                        nameLength, UTF8);
+                states.put(instanceId, checkRecord(map, fromOrdinal, name,
+                        toOrdinal));
+            }
+            position = buffer.position();
+        }
+        return position;
+    }
+
+    // Confirms that a record describes a transition of the map and returns
+    // the state that was entered.
+    private static <ET extends Entity> State<ET> checkRecord(
+            StateTransitionMap<ET> map, int fromOrdinal, String name,
+            int toOrdinal) throws FiniteStateException
+    {
+        int count = map.getStateCount();
+        if (fromOrdinal >= 0 && fromOrdinal < count && toOrdinal >= 0
+                && toOrdinal < count)
+        {
+            State<ET> toState = map.getState(toOrdinal);
+            if (toState == map.getErrorState())
+                return toState;
+
+            State<ET> fromState = map.getState(fromOrdinal);
+            DispatchTable<ET> table = map.getDispatchTable(fromOrdinal,
+                    fromState, null, null);
+            for (int i = 0; i < table.size(); i++)
+            {
+                String transitionName = table.getTransition(i).getName();
+                if (table.getOutputOrdinal(i) == toOrdinal
+                        && name.equals((transitionName == null)
+                                ? ""
+                                : transitionName))
+                    return toState;
+            }
+        }
+        throw new FiniteStateException(
+                "Journal record does not match state transition map: from="
+                        + fromOrdinal + " transition=" + name + " to="
+                        + toOrdinal);
+    }
+}
@@ -22,38 +22,104 @@
 
 package com.continuent.tungsten.commons.patterns.fsm;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Vector;
 
 /**
- * Matches transitions against a particular event.
+ * Matches transitions against a particular event. Transitions are held in an
+ * array that is evaluated by index. The matcher is frozen when the map that
+ * owns it is built, after which transitions can no longer be added.
  * 
  * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
  * @version 1.0
  */
 public class TransitionMatcher<ET extends Entity>
 {
-    Vector<Transition<ET, ?>> transitions = new Vector<Transition<ET, ?>>();
+    private static final Transition<?, ?>[] EMPTY = new Transition<?, ?>[0];
+
+    @SuppressWarnings("unchecked")
+    private Transition<ET, ?>[] transitions  = (Transition<ET, ?>[]) EMPTY;
+    private Class<?>[]          ignoredTypes = new Class<?>[0];
+    private volatile boolean    frozen;
 
     public TransitionMatcher()
     {
     }
 
+    /**
+     * Adds a transition to the end of the list of transitions.
+     * 
+     * @throws IllegalStateException Thrown if the matcher has been frozen
+     */
     public void addTransition(Transition<ET, ?> transition)
     {
-        transitions.add(transition);
+        if (frozen)
+            throw new IllegalStateException(
+                    "Transitions cannot be added after the state transition map is built: "
+                            + transition.getName());
+        Transition<ET, ?>[] newTransitions = Arrays.copyOf(transitions,
+                transitions.length + 1);
+        newTransitions[transitions.length] = transition;
+        transitions = newTransitions;
+    }
+
+    /**
+     * Adds an event type that is ignored rather than matched against
+     * transitions.
+     * 
+     * @throws IllegalStateException Thrown if the matcher has been frozen
+     */
+    public void addIgnoredType(Class<?> eventType)
+    {
+        if (frozen)
+            throw new IllegalStateException(
+                    "Ignored events cannot be added after the state transition map is built: "
+                            + eventType.getName());
+        Class<?>[] newTypes = Arrays.copyOf(ignoredTypes,
+                ignoredTypes.length + 1);
+        newTypes[ignoredTypes.length] = eventType;
+        ignoredTypes = newTypes;
+    }
+
+    /**
+     * Returns a read-only list of ignored event types.
+     */
+    public List<Class<?>> getIgnoredTypes()
+    {
+        return Collections.unmodifiableList(Arrays.asList(ignoredTypes));
     }
 
+    /**
+     * Returns a read-only list of transitions in the order they are matched.
+     */
     public List<Transition<ET, ?>> getTransitions()
     {
-        return transitions;
+        return Collections.unmodifiableList(Arrays.asList(transitions));
+    }
+
+    /**
+     * Returns true if the matcher is frozen.
+     */
+    public boolean isFrozen()
+    {
+        return frozen;
+    }
+
+    /**
+     * Prevents further changes to the matcher.
+     */
+    void freeze()
+    {
+        frozen = true;
     }
 
     public <T> Transition<ET, T> matchTransition(Event<T> event, ET entity)
     {
-        for (Transition<ET, ?> transition : transitions)
+        Transition<ET, ?>[] current = transitions;
+        for (int i = 0; i < current.length; i++)
         {
-            @SuppressWarnings("unchecked") Transition<ET, T> unsafeCast = (Transition<ET, T>) transition;
+            @SuppressWarnings("unchecked") Transition<ET, T> unsafeCast = (Transition<ET, T>) current[i];
             if (unsafeCast.accept(event, entity))
             {
                 return unsafeCast;
@@ -61,4 +127,4 @@ public class TransitionMatcher<ET extends Entity>
         }
         return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,113 @@
+/**
+ * Tungsten Scale-Out Stack
+ * Copyright (C) 2007-2009 Continuent Inc.
+ * Contact: tungsten@continuent.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of version 2 of the GNU General Public License as
+ * published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA
+ *
+ * Initial developer(s): Robert Hodges
+ * Contributor(s):
+ */
+
+package com.continuent.tungsten.commons.patterns.fsm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes state machine event processing on virtual threads, one thread per
+ * task, when the JVM supports them (Java 21 and later). On older JVMs tasks
+ * run on a cached pool of daemon platform threads instead, which preserves
+ * behavior but not scalability. The virtual thread executor is obtained
+ * reflectively so that this library still runs on older JVMs.
+ * <p>
+ * Use {@link StateMachine#setVirtualThreadsEnabled(boolean)} to process a
+ * state machine's submitted events with the shared instance.
+ *
+ * @author <a href="mailto:robert.hodges@continuent.com">Robert Hodges</a>
+ * @version 1.0
+ */
+public final class VirtualThreadExecutor implements Executor
+{
+    private static Logger                      logger   = LoggerFactory.getLogger(VirtualThreadExecutor.class);
+    private static final VirtualThreadExecutor instance = new VirtualThreadExecutor();
+
+    private final ExecutorService              delegate;
+    private final boolean                      virtual;
+
+    private VirtualThreadExecutor()
+    {
+        ExecutorService executor = null;
+        try
+        {
+            executor = (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (Exception e)
+        {
+            logger.info("Virtual threads are not available; state machine events will run on platform threads");
+        }
+
+        if (executor == null)
+        {
+            executor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "fsm-event-"
+                            + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            virtual = false;
+        }
+        else
+            virtual = true;
+        delegate = executor;
+    }
+
+    /**
+     * Returns the shared executor instance.
+     */
+    public static VirtualThreadExecutor getInstance()
+    {
+        return instance;
+    }
+
+    /**
+     * Returns true if tasks run on virtual threads.
+     */
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+
+    /**
+     * Runs a task on a new virtual thread or a pooled platform thread.
+     */
+    @Override
+    public void execute(Runnable command)
+    {
+        delegate.execute(command);
+    }
+}
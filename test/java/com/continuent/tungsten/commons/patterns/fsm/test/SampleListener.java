@@ -21,21 +21,24 @@
  */
 package com.continuent.tungsten.commons.patterns.fsm.test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.continuent.tungsten.commons.patterns.fsm.Entity;
 import com.continuent.tungsten.commons.patterns.fsm.State;
 import com.continuent.tungsten.commons.patterns.fsm.StateChangeListener;
 
 public class SampleListener implements StateChangeListener
 {
-    int changes = 0;
+    // Engines may notify from several threads at once.
+    private final AtomicInteger changes = new AtomicInteger();
 
     public void stateChanged(Entity entity, State oldState, State newState)
     {
-        changes++;
+        changes.incrementAndGet();
     }
     
     public int getChanges()
     {
-        return changes;
+        return changes.get();
     }
 }
\ No newline at end of file
@@ -22,34 +22,82 @@
 
 package com.continuent.tungsten.commons.patterns.fsm.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import javax.tools.ToolProvider;
+
 import junit.framework.TestCase;
 
+import org.slf4j.LoggerFactory;
+
 import com.continuent.tungsten.commons.patterns.fsm.Action;
+import com.continuent.tungsten.commons.patterns.fsm.AsyncStateChangeListener;
 import com.continuent.tungsten.commons.patterns.fsm.Entity;
 import com.continuent.tungsten.commons.patterns.fsm.EntityAdapter;
 import com.continuent.tungsten.commons.patterns.fsm.Event;
+import com.continuent.tungsten.commons.patterns.fsm.EventBatchResult;
+import com.continuent.tungsten.commons.patterns.fsm.EventDisposition;
 import com.continuent.tungsten.commons.patterns.fsm.EventTypeGuard;
 import com.continuent.tungsten.commons.patterns.fsm.FiniteStateException;
 import com.continuent.tungsten.commons.patterns.fsm.Guard;
+import com.continuent.tungsten.commons.patterns.fsm.HashedWheelTimer;
+import com.continuent.tungsten.commons.patterns.fsm.JournalDurability;
+import com.continuent.tungsten.commons.patterns.fsm.LatencyHistogram;
+import com.continuent.tungsten.commons.patterns.fsm.InstanceStateChangeListener;
+import com.continuent.tungsten.commons.patterns.fsm.ListenerOverflowPolicy;
 import com.continuent.tungsten.commons.patterns.fsm.NegationGuard;
 import com.continuent.tungsten.commons.patterns.fsm.PositiveGuard;
 import com.continuent.tungsten.commons.patterns.fsm.RegexGuard;
 import com.continuent.tungsten.commons.patterns.fsm.State;
+import com.continuent.tungsten.commons.patterns.fsm.StateChangeListener;
 import com.continuent.tungsten.commons.patterns.fsm.StateMachine;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachineEngine;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachineMetrics;
+import com.continuent.tungsten.commons.patterns.fsm.StateMachineSnapshot;
+import com.continuent.tungsten.commons.patterns.fsm.StateMapSourceGenerator;
+import com.continuent.tungsten.commons.patterns.fsm.StateMap;
+import com.continuent.tungsten.commons.patterns.fsm.StateSet;
 import com.continuent.tungsten.commons.patterns.fsm.StateTransitionLatch;
 import com.continuent.tungsten.commons.patterns.fsm.StateTransitionMap;
 import com.continuent.tungsten.commons.patterns.fsm.StateType;
 import com.continuent.tungsten.commons.patterns.fsm.StringEvent;
 import com.continuent.tungsten.commons.patterns.fsm.Transition;
+import com.continuent.tungsten.commons.patterns.fsm.TransitionJournal;
+import com.continuent.tungsten.commons.patterns.fsm.TransitionMatcher;
 import com.continuent.tungsten.commons.patterns.fsm.TransitionFailureException;
 import com.continuent.tungsten.commons.patterns.fsm.TransitionNotFoundException;
 import com.continuent.tungsten.commons.patterns.fsm.TransitionRollbackException;
+import com.continuent.tungsten.commons.patterns.fsm.VirtualThreadExecutor;
 
 /**
  * Implements unit test for state machines. Cases cover basic machine behavior
@@ -367,6 +415,35 @@ public class StateMachineTest extends TestCase
         assertEquals("Is end state", true, sm.isEndState());
     }
 
+    /**
+     * Confirm that states sharing a name are still checked separately when
+     * the map is built and that lookup by name finds the first one added.
+     */
+    public void testSameNamedStates() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = new State("START", StateType.START);
+        State end1 = new State("END", StateType.END);
+        State end2 = new State("END", StateType.END);
+        map.addState(start);
+        map.addState(end1);
+        map.addState(end2);
+        map.addTransition(new Transition("t1", new PositiveGuard(), start,
+                null, end1));
+
+        // The second END state has no inbound transition of its own.
+        try
+        {
+            map.build();
+            fail("Built map with unreachable state sharing a name");
+        }
+        catch (FiniteStateException e)
+        {
+        }
+        assertSame("First state added wins lookup", end1, map
+                .getStateByName("END"));
+    }
+
     /**
      * Confirm that a state machine throws a TransitionNotFoundException if it
      * enters a state and cannot find a matching transition when a message is
@@ -1301,6 +1378,2336 @@ public class StateMachineTest extends TestCase
         assertFalse("Latch should not have found error", latch4.isError());
     }
 
+    /**
+     * Confirm that transitions defined on a sub-state take precedence over
+     * those of enclosing states and that a map must be rebuilt after new
+     * transitions are added.
+     */
+    public void testCompiledDispatchOrder() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State outer = map.addState("OUTER", StateType.ACTIVE, null);
+        State inner = map.addState("INNER", StateType.ACTIVE, outer);
+        State end1 = map.addState("END1", StateType.END, null);
+        State end2 = map.addState("END2", StateType.END, null);
+
+        map.addTransition("START-INNER", "go", start, null, inner);
+        map.addTransition("OUTER-END1", ".*", outer, null, end1);
+        map.addTransition("INNER-END2", "go", inner, null, end2);
+        map.build();
+
+        // The inner transition wins even though the outer one was added first.
+        StateMachine sm1 = new StateMachine(map, new EntityAdapter(null));
+        sm1.applyEvent(new StringEvent("go"));
+        assertEquals("Moved to inner", inner, sm1.getState());
+        sm1.applyEvent(new StringEvent("go"));
+        assertEquals("Inner transition taken", end2, sm1.getState());
+
+        // Enclosing state transitions apply when inner ones do not match.
+        StateMachine sm2 = new StateMachine(map, new EntityAdapter(null));
+        sm2.applyEvent(new StringEvent("go"));
+        sm2.applyEvent(new StringEvent("other"));
+        assertEquals("Outer transition taken", end1, sm2.getState());
+
+        // Built maps cannot change and remain usable.
+        try
+        {
+            map.addTransition("START-END1", "stop", start, null, end1);
+            throw new Exception("Able to change map after build");
+        }
+        catch (FiniteStateException e)
+        {
+            // OK.
+        }
+        StateMachine sm3 = new StateMachine(map, new EntityAdapter(null));
+        sm3.applyEvent(new StringEvent("go"));
+        assertEquals("Map still usable", inner, sm3.getState());
+    }
+
+    /**
+     * Confirm that typed transitions select only matching event classes,
+     * including subclasses, and that evaluation order is preserved when typed
+     * and untyped transitions are mixed.
+     */
+    public void testEventTypeDispatch() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State outer = map.addState("OUTER", StateType.ACTIVE, null);
+        State inner = map.addState("INNER", StateType.ACTIVE, outer);
+        State stringEnd = map.addState("STRING-END", StateType.END, null);
+        State sampleEnd = map.addState("SAMPLE-END", StateType.END, null);
+        State anyEnd = map.addState("ANY-END", StateType.END, null);
+
+        map.addTransition("START-INNER", "go", start, null, inner);
+        map.addTransition("INNER-STRING", StringEvent.class, inner, null,
+                stringEnd);
+        map.addTransition("OUTER-SAMPLE", SampleEvent.class, outer, null,
+                sampleEnd);
+        map.addTransition("OUTER-ANY", new PositiveGuard(), outer, null,
+                anyEnd);
+        map.addTransition("OUTER-EVENT", Event.class, outer, null, stringEnd);
+        map.build();
+
+        // String events match the inner typed transition first.
+        StateMachine sm1 = new StateMachine(map, new EntityAdapter(null));
+        sm1.applyEvent(new StringEvent("go"));
+        sm1.applyEvent(new StringEvent("x"));
+        assertEquals("String transition", stringEnd, sm1.getState());
+
+        // Sample events skip the string transition and match on the parent.
+        StateMachine sm2 = new StateMachine(map, new EntityAdapter(null));
+        sm2.applyEvent(new StringEvent("go"));
+        sm2.applyEvent(new SampleEvent());
+        assertEquals("Sample transition", sampleEnd, sm2.getState());
+
+        // Subclasses of a typed event are accepted as well.
+        StateMachine sm3 = new StateMachine(map, new EntityAdapter(null));
+        sm3.applyEvent(new StringEvent("go"));
+        sm3.applyEvent(new SampleEvent()
+        {
+        });
+        assertEquals("Sample subclass transition", sampleEnd, sm3.getState());
+
+        // Other events fall through to the untyped transition, which precedes
+        // the generic typed one.
+        StateMachine sm4 = new StateMachine(map, new EntityAdapter(null));
+        sm4.applyEvent(new StringEvent("go"));
+        sm4.applyEvent(new Event(null));
+        assertEquals("Untyped transition", anyEnd, sm4.getState());
+    }
+
+    /**
+     * Confirm that string events select the first matching transition when
+     * literal expressions, regular expressions with groups, and other guards
+     * are mixed on the same state.
+     */
+    public void testRegexDispatch() throws Exception
+    {
+        // Guard that accepts events whose data is "custom".
+        Guard customGuard = new Guard()
+        {
+            public boolean accept(Event message, Entity entity, State state)
+            {
+                return "custom".equals(message.getData());
+            }
+        };
+
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State online = map.addState("ONLINE", StateType.END, null);
+        State grouped = map.addState("GROUPED", StateType.END, null);
+        State custom = map.addState("CUSTOM", StateType.END, null);
+        State literal = map.addState("LITERAL", StateType.END, null);
+        State any = map.addState("ANY", StateType.END, null);
+
+        map.addTransition("START-ONLINE", "online", start, null, online);
+        map.addTransition("START-GROUPED", "(on|off)(line)+x", start, null,
+                grouped);
+        map.addTransition("START-CUSTOM", customGuard, start, null, custom);
+        map.addTransition("START-LITERAL", "offline", start, null, literal);
+        map.addTransition("START-ANY", "(?i)OFF.*|custom", start, null, any);
+        map.build();
+
+        String[] data = {"online", "offlinex", "custom", "offline", "OFFLINE",
+                "shutdown"};
+        State[] expected = {online, grouped, custom, literal, any, null};
+        for (int i = 0; i < data.length; i++)
+        {
+            StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+            try
+            {
+                sm.applyEvent(new StringEvent(data[i]));
+                assertEquals("Transition for " + data[i], expected[i],
+                        sm.getState());
+            }
+            catch (TransitionNotFoundException e)
+            {
+                assertNull("No transition for " + data[i], expected[i]);
+            }
+        }
+
+        // Null data matches no expression.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        try
+        {
+            sm.applyEvent(new StringEvent(null));
+            throw new Exception("Null data matched a transition");
+        }
+        catch (TransitionNotFoundException e)
+        {
+            // OK.
+        }
+    }
+
+    /**
+     * Confirm that in lock-free mode events from many threads are each
+     * processed exactly once, exceptions reach the caller that delivered the
+     * event, and actions may deliver events to their own state machine.
+     */
+    public void testLockFreeMode() throws Exception
+    {
+        // Build a map that toggles between two states on "ping" and counts
+        // transitions. Entering PONG on a "chain" event delivers a further
+        // event from within the action.
+        final int[] count = new int[1];
+        final StateMachine[] holder = new StateMachine[1];
+        Action countAction = new Action()
+        {
+            public void doAction(Event ev, Entity e, Transition t,
+                    int actionType)
+            {
+                count[0]++;
+            }
+        };
+        Action chainAction = new Action()
+        {
+            public void doAction(Event ev, Entity e, Transition t,
+                    int actionType) throws TransitionRollbackException
+            {
+                try
+                {
+                    holder[0].applyEvent(new StringEvent("ping"));
+                }
+                catch (FiniteStateException f)
+                {
+                    throw new TransitionRollbackException("nested", ev, e, t,
+                            actionType, f);
+                }
+            }
+        };
+
+        StateTransitionMap map = new StateTransitionMap();
+        State ping = map.addState("PING", StateType.START, null);
+        State pong = map.addState("PONG", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("PING-PONG", "ping", ping, countAction, pong);
+        map.addTransition("PONG-PING", "ping", pong, countAction, ping);
+        map.addTransition("PING-CHAIN", "chain", ping, chainAction, pong);
+        map.addTransition("PONG-END", "end", pong, null, end);
+        map.build();
+
+        final StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        sm.setLockFreeEnabled(true);
+        holder[0] = sm;
+
+        // Deliver events from several threads.
+        final int threads = 8;
+        final int perThread = 2000;
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        Future<?>[] results = new Future<?>[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            results[i] = exec.submit(new java.util.concurrent.Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    for (int j = 0; j < perThread; j++)
+                        sm.applyEvent(new StringEvent("ping"));
+                    return null;
+                }
+            });
+        }
+        for (Future<?> result : results)
+            result.get(60, TimeUnit.SECONDS);
+        exec.shutdown();
+        assertEquals("All events processed", threads * perThread, count[0]);
+        assertEquals("Even number of toggles", ping, sm.getState());
+
+        // An action may deliver an event to its own machine. The nested event
+        // is processed immediately, before the outer transition completes.
+        sm.applyEvent(new StringEvent("chain"));
+        assertEquals("Outer transition completed", pong, sm.getState());
+        assertEquals("Nested transition counted", threads * perThread + 1,
+                count[0]);
+
+        // Exceptions are returned to the caller.
+        try
+        {
+            sm.applyEvent(new StringEvent("bogus"));
+            throw new Exception("No exception for unmatched event");
+        }
+        catch (TransitionNotFoundException e)
+        {
+            // OK.
+        }
+    }
+
+    /**
+     * Confirm that submitted events are processed asynchronously in
+     * submission order and that futures report the resulting state or the
+     * exception that processing raised.
+     */
+    public void testSubmit() throws Exception
+    {
+        // The entry action for MIDDLE blocks until released, which shows that
+        // submit() does not wait for actions to run.
+        final CountDownLatch release = new CountDownLatch(1);
+        Action blockingAction = new Action()
+        {
+            public void doAction(Event ev, Entity e, Transition t,
+                    int actionType)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State middle = map.addState("MIDDLE", StateType.ACTIVE, null,
+                blockingAction, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-MIDDLE", "next", start, null, middle);
+        map.addTransition("MIDDLE-END", "next", middle, null, end);
+        map.build();
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        sm.setEventExecutor(exec);
+
+        CompletableFuture<State> f1 = sm.submit(new StringEvent("next"));
+        CompletableFuture<State> f2 = sm.submit(new StringEvent("next"));
+        CompletableFuture<State> f3 = sm.submit(new StringEvent("next"));
+        assertFalse("First event still blocked", f1.isDone());
+        assertFalse("Second event waits for first", f2.isDone());
+
+        release.countDown();
+        assertEquals("First event result", middle, f1.get(10, TimeUnit.SECONDS));
+        assertEquals("Second event result", end, f2.get(10, TimeUnit.SECONDS));
+        try
+        {
+            f3.get(10, TimeUnit.SECONDS);
+            throw new Exception("Unmatched event did not fail");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue("Transition not found",
+                    e.getCause() instanceof TransitionNotFoundException);
+        }
+        assertEquals("Final state", end, sm.getState());
+        exec.shutdown();
+    }
+
+    /**
+     * Confirm that a state machine engine tracks the state of many instances
+     * independently, including rollback and error state handling, when
+     * events are delivered from multiple threads.
+     */
+    public void testStateMachineEngine() throws Exception
+    {
+        // Construct and build the map.
+        StateTransitionMap map = new StateTransitionMap();
+        SampleAction sampleAction = new SampleAction();
+        SampleAction errorAction = new SampleAction();
+        State start = map.addState("START", StateType.START, null);
+        State test = map.addState("TEST", StateType.ACTIVE, null);
+        State error = map.addState("ERROR", StateType.ACTIVE, null,
+                errorAction, null);
+        State end = map.addState("END", StateType.END, null);
+        map.setErrorState(error);
+        map.addTransition("START-TO-TEST", "START-TO-TEST", start,
+                sampleAction, test);
+        map.addTransition("ERROR-TO-TEST", "ERROR-TO-TEST", error, null, test);
+        map.addTransition("TEST-TO-END", "TEST-TO-END", test, sampleAction,
+                end);
+        map.build();
+
+        final int capacity = 100000;
+        final StateMachineEngine engine = new StateMachineEngine(map, capacity);
+        SampleListener listener = new SampleListener();
+        engine.addListener(listener);
+        assertEquals("Capacity", capacity, engine.getCapacity());
+        assertEquals("Initial state", start, engine.getState(capacity - 1));
+
+        // Move every even instance to TEST using several threads.
+        final int threads = 4;
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        Future<?>[] results = new Future<?>[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int offset = t * 2;
+            results[t] = exec.submit(new java.util.concurrent.Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    for (int id = offset; id < capacity; id += threads * 2)
+                        engine.applyEvent(id, new StringEvent("START-TO-TEST"));
+                    return null;
+                }
+            });
+        }
+        for (Future<?> result : results)
+            result.get(60, TimeUnit.SECONDS);
+        exec.shutdown();
+
+        for (int id = 0; id < capacity; id++)
+        {
+            State expected = (id % 2 == 0) ? test : start;
+            assertEquals("State of instance " + id, expected, engine
+                    .getState(id));
+        }
+        assertEquals("Listener calls", capacity / 2, listener.getChanges());
+
+        // Rollback leaves the instance in place; failure enters the error
+        // state and reports the failure to the caller.
+        EntityAdapter entity = new EntityAdapter(null);
+        engine.setEntity(0, entity);
+        sampleAction.setRollback();
+        try
+        {
+            engine.applyEvent(0, new StringEvent("TEST-TO-END"));
+            throw new Exception("Rollback not reported");
+        }
+        catch (TransitionRollbackException e)
+        {
+            assertEquals("Entity passed to action", entity, e.getEntity());
+        }
+        assertEquals("Still in test", test, engine.getState(0));
+
+        sampleAction.setFailure();
+        try
+        {
+            engine.applyEvent(0, new StringEvent("TEST-TO-END"));
+            throw new Exception("Failure not reported");
+        }
+        catch (TransitionFailureException e)
+        {
+        }
+        assertEquals("In error state", error, engine.getState(0));
+        assertEquals("Error entry action fired", 1, errorAction.getCount());
+
+        sampleAction.setSucceed();
+        engine.applyEvent(0, new StringEvent("ERROR-TO-TEST"));
+        engine.applyEvent(0, new StringEvent("TEST-TO-END"));
+        assertTrue("Instance ended", engine.isEndState(0));
+        assertFalse("Other instance unaffected", engine.isEndState(2));
+    }
+
+    /**
+     * Confirm that events submitted with virtual threads enabled run without
+     * holding the monitor and keep rollback and error state semantics.
+     */
+    public void testVirtualThreads() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        SampleAction sampleAction = new SampleAction();
+        State start = map.addState("START", StateType.START, null);
+        State test = map.addState("TEST", StateType.ACTIVE, null);
+        State error = map.addState("ERROR", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.setErrorState(error);
+        map.addTransition("START-TO-TEST", "START-TO-TEST", start,
+                sampleAction, test);
+        map.addTransition("ERROR-TO-END", "ERROR-TO-END", error, null, end);
+        map.addTransition("TEST-TO-END", "TEST-TO-END", test, sampleAction,
+                end);
+        map.build();
+
+        // Record whether actions hold the monitor and what thread runs them.
+        final StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        final boolean[] holdsLock = new boolean[1];
+        final Thread[] actionThread = new Thread[1];
+        sm.addListener(new SampleListener()
+        {
+            public void stateChanged(Entity entity, State oldState,
+                    State newState)
+            {
+                holdsLock[0] = Thread.holdsLock(sm);
+                actionThread[0] = Thread.currentThread();
+            }
+        });
+        sm.setVirtualThreadsEnabled(true);
+        assertTrue("Virtual threads enabled", sm.isVirtualThreadsEnabled());
+        assertTrue("Lock-free mode enabled", sm.isLockFreeEnabled());
+
+        // Roll back, then succeed, then fail into the error state.
+        sampleAction.setRollback();
+        try
+        {
+            sm.submit(new StringEvent("START-TO-TEST")).get(10,
+                    TimeUnit.SECONDS);
+            throw new Exception("Rollback not reported");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue("Rollback",
+                    e.getCause() instanceof TransitionRollbackException);
+        }
+        sampleAction.setSucceed();
+        assertEquals("Moved to test", test, sm.submit(
+                new StringEvent("START-TO-TEST")).get(10, TimeUnit.SECONDS));
+        assertFalse("Monitor not held", holdsLock[0]);
+        assertNotSame("Processed on executor thread", Thread.currentThread(),
+                actionThread[0]);
+        if (!VirtualThreadExecutor.getInstance().isVirtual())
+            assertTrue("Fallback thread", actionThread[0].getName()
+                    .startsWith("fsm-event-"));
+
+        sampleAction.setFailure();
+        try
+        {
+            sm.submit(new StringEvent("TEST-TO-END")).get(10,
+                    TimeUnit.SECONDS);
+            throw new Exception("Failure not reported");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue("Failure",
+                    e.getCause() instanceof TransitionFailureException);
+        }
+        assertEquals("In error state", error, sm.getState());
+
+        sm.setVirtualThreadsEnabled(false);
+        assertFalse("Virtual threads disabled", sm.isVirtualThreadsEnabled());
+    }
+
+    /**
+     * Confirm that applying events in steady state on the calling thread does
+     * not allocate memory when debug logging is off, including regex guards,
+     * entry and exit actions, and listeners. The test fails if allocation
+     * cannot be measured, so that it never passes without checking.
+     */
+    public void testAllocationFree() throws Exception
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        assertFalse("Debug logging must be off to measure allocation",
+                LoggerFactory.getLogger(StateMachine.class).isDebugEnabled());
+        assertTrue("JVM cannot report thread allocation",
+                bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assertTrue("JVM cannot report thread allocation", threadBean
+                .isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        // Action and listener that count invocations.
+        final int[] counts = new int[2];
+        Action countAction = new Action()
+        {
+            public void doAction(Event message, Entity entity,
+                    Transition transition, int actionType)
+            {
+                counts[0]++;
+            }
+        };
+
+        // Toggle between two substates using a combined regex and a guard
+        // subclass that matches on its own.
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State parent = map.addState("PARENT", StateType.ACTIVE, null);
+        State ping = map.addState("PING", StateType.ACTIVE, parent,
+                countAction, countAction);
+        State pong = map.addState("PONG", StateType.ACTIVE, parent,
+                countAction, countAction);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-PING", "start", start, null, ping);
+        map.addTransition("PING-PONG", "p[io]ng", ping, countAction, pong);
+        map.addTransition("PONG-PING", new RegexGuard("p[io]ng")
+        {
+        }, pong, countAction, ping);
+        map.addTransition("PARENT-END", "end", parent, null, end);
+        map.build();
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        sm.addListener(new SampleListener()
+        {
+            public void stateChanged(Entity entity, State oldState,
+                    State newState)
+            {
+                counts[1]++;
+            }
+        });
+        sm.applyEvent(new StringEvent("start"));
+
+        // Warm up, then measure.
+        StringEvent event = new StringEvent("ping");
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 20000; i++)
+            sm.applyEvent(event);
+        int events = 100000;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < events; i++)
+            sm.applyEvent(event);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId)
+                - before;
+
+        assertEquals("Listener invoked per event", events + 20001, counts[1]);
+        assertTrue("Allocated bytes per event: " + (double) allocated / events,
+                allocated < events);
+        assertEquals("Still toggling", ping, sm.getState());
+    }
+
+    /**
+     * Confirm that metrics count transitions and state entries, record dwell
+     * and action times, and can be published through JMX.
+     */
+    public void testMetrics() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        SampleAction sampleAction = new SampleAction();
+        State start = map.addState("START", StateType.START, null);
+        State ping = map.addState("PING", StateType.ACTIVE, null,
+                sampleAction, sampleAction);
+        State pong = map.addState("PONG", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        Transition startPing = map.addTransition("START-PING", "start", start,
+                null, ping);
+        Transition pingPong = map.addTransition("PING-PONG", "go", ping,
+                sampleAction, pong);
+        Transition pongPing = map.addTransition("PONG-PING", "go", pong,
+                null, ping);
+        map.addTransition("PONG-END", "end", pong, null, end);
+        map.build();
+
+        // Metrics must belong to the same map.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        StateTransitionMap otherMap = new StateTransitionMap();
+        State otherStart = otherMap.addState("START", StateType.START, null);
+        State otherEnd = otherMap.addState("END", StateType.END, null);
+        otherMap.addTransition("START-END", "end", otherStart, null, otherEnd);
+        otherMap.build();
+        try
+        {
+            sm.setMetrics(new StateMachineMetrics(otherMap));
+            throw new Exception("Accepted metrics for a different map");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // OK.
+        }
+
+        StateMachineMetrics metrics = new StateMachineMetrics(map);
+        sm.setMetrics(metrics);
+        assertSame("Metrics set", metrics, sm.getMetrics());
+        sampleAction.setSucceed();
+        sm.applyEvent(new StringEvent("start"));
+        for (int i = 0; i < 9; i++)
+            sm.applyEvent(new StringEvent("go"));
+        sm.applyEvent(new StringEvent("end"));
+
+        assertEquals("START-PING", 1, metrics.getTransitionCount(startPing));
+        assertEquals("PING-PONG", 5, metrics.getTransitionCount(pingPong));
+        assertEquals("PONG-PING", 4, metrics.getTransitionCount(pongPing));
+        assertEquals("PING entries", 5, metrics.getStateEntryCount(ping));
+        assertEquals("END entries", 1, metrics.getStateEntryCount(end));
+        assertEquals("PING dwell", 5, metrics.getDwellTime(ping).getCount());
+        assertEquals("END dwell", 0, metrics.getDwellTime(end).getCount());
+        assertEquals("PING entry actions", 5, metrics.getEntryActionLatency(
+                ping).getCount());
+        assertEquals("PING exit actions", 5, metrics.getExitActionLatency(
+                ping).getCount());
+        assertEquals("PING-PONG actions", 5, metrics
+                .getTransitionActionLatency(pingPong).getCount());
+        assertNull("No action", metrics.getTransitionActionLatency(pongPing));
+        assertNull("No entry action", metrics.getEntryActionLatency(pong));
+
+        // Publish through JMX.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.registerMBean("testMetrics");
+        try
+        {
+            TabularData counts = (TabularData) server.getAttribute(name,
+                    "TransitionCounts");
+            assertEquals("Transition count through JMX", 5L, counts.get(
+                    new Object[]{"PING:PING-PONG->PONG"}).get("value"));
+        }
+        finally
+        {
+            metrics.unregisterMBean();
+        }
+
+        // Transitions without names are reported separately.
+        StateTransitionMap unnamedMap = new StateTransitionMap();
+        State unnamedStart = unnamedMap.addState("START", StateType.START,
+                null);
+        State unnamedEnd = unnamedMap.addState("END", StateType.END, null);
+        unnamedMap.addTransition(new Transition(new RegexGuard("loop"),
+                unnamedStart, null, unnamedStart));
+        unnamedMap.addTransition(new Transition(new RegexGuard("end"),
+                unnamedStart, null, unnamedEnd));
+        unnamedMap.build();
+        StateMachineMetrics unnamedMetrics = new StateMachineMetrics(
+                unnamedMap);
+        StateMachine unnamed = new StateMachine(unnamedMap, new EntityAdapter(
+                null));
+        unnamed.setMetrics(unnamedMetrics);
+        unnamed.applyEvent(new StringEvent("loop"));
+        unnamed.applyEvent(new StringEvent("loop"));
+        unnamed.applyEvent(new StringEvent("end"));
+        Map<String, Long> unnamedCounts = unnamedMetrics.getTransitionCounts();
+        assertEquals("Unnamed transitions", 2, unnamedCounts.size());
+        assertEquals("Loop count", 2L, unnamedCounts.get("START:none->START")
+                .longValue());
+        assertEquals("End count", 1L, unnamedCounts.get("START:none->END")
+                .longValue());
+        assertFalse("Unregistered", server.isRegistered(name));
+
+        metrics.reset();
+        assertEquals("Reset", 0, metrics.getTransitionCount(pingPong));
+        sm.setMetrics(null);
+        assertNull("Metrics disabled", sm.getMetrics());
+    }
+
+    /**
+     * Confirm that latency histograms report percentiles within their
+     * precision.
+     */
+    public void testLatencyHistogram() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("Empty", 0, histogram.getValueAtPercentile(50));
+        for (long i = 1; i <= 100000; i++)
+            histogram.record(i);
+
+        assertEquals("Count", 100000, histogram.getCount());
+        assertEquals("Max", 100000, histogram.getMax());
+        assertEquals("Mean", 50000.5, histogram.getMean(), 0.001);
+        long[] expected = {1, 50000, 99000, 100000};
+        double[] percentiles = {0, 50, 99, 100};
+        for (int i = 0; i < expected.length; i++)
+        {
+            long value = histogram.getValueAtPercentile(percentiles[i]);
+            assertTrue("Percentile " + percentiles[i] + ": " + value,
+                    value >= expected[i] && value <= expected[i] * 1.07);
+        }
+
+        histogram.reset();
+        assertEquals("Reset", 0, histogram.getCount());
+    }
+
+    /**
+     * Confirm that a transition journal records state changes across segments
+     * and recovers the latest state of each instance, ignoring a damaged
+     * final record and rejecting a map that does not match.
+     */
+    public void testTransitionJournal() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State ping = map.addState("PING", StateType.ACTIVE, null);
+        State pong = map.addState("PONG", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-PING", "start", start, null, ping);
+        map.addTransition("PING-PONG", "go", ping, null, pong);
+        map.addTransition("PONG-PING", "go", pong, null, ping);
+        map.addTransition("PONG-END", "end", pong, null, end);
+        map.build();
+
+        File dir = File.createTempFile("journal", null);
+        dir.delete();
+        try
+        {
+            // Journal two state machines and an engine instance using small
+            // segments.
+            TransitionJournal journal = new TransitionJournal(dir,
+                    JournalDurability.BATCHED, 128, 10);
+            StateMachine sm1 = new StateMachine(map, new EntityAdapter(null));
+            StateMachine sm2 = new StateMachine(map, new EntityAdapter(null));
+            sm1.setJournal(journal, 1);
+            sm2.setJournal(journal, 2);
+            StateMachineEngine engine = new StateMachineEngine(map, 10);
+            engine.setJournal(journal);
+            sm1.applyEvent(new StringEvent("start"));
+            sm2.applyEvent(new StringEvent("start"));
+            for (int i = 0; i < 3; i++)
+                sm1.applyEvent(new StringEvent("go"));
+            engine.applyEvent(7, new StringEvent("start"));
+            engine.applyEvent(7, new StringEvent("go"));
+            journal.close();
+            assertTrue("Segments rolled", dir.list().length > 1);
+
+            // Recover and resume.
+            journal = new TransitionJournal(dir, JournalDurability.PERIODIC,
+                    128, 10);
+            Map<Long, State> states = journal.recover(map);
+            assertEquals("Instances recovered", 3, states.size());
+            assertEquals("Instance 1", pong, states.get(1L));
+            assertEquals("Instance 2", ping, states.get(2L));
+            assertEquals("Instance 7", pong, states.get(7L));
+
+            StateMachine resumed = new StateMachine(map,
+                    new EntityAdapter(null), states.get(1L));
+            assertEquals("Resumed state", pong, resumed.getState());
+            resumed.setJournal(journal, 1);
+            resumed.applyEvent(new StringEvent("end"));
+            StateMachineEngine restored = new StateMachineEngine(map, 10);
+            restored.restoreState(7, states.get(7L));
+            assertEquals("Restored state", pong, restored.getState(7));
+            journal.close();
+
+            journal = new TransitionJournal(dir, JournalDurability.PER_EVENT,
+                    128, 10);
+            assertEquals("Instance 1 after resume", end, journal.recover(map)
+                    .get(1L));
+            journal.close();
+
+            // Damage the last record, which hides the last transition.
+            String[] files = dir.list();
+            Arrays.sort(files);
+            RandomAccessFile raf = new RandomAccessFile(new File(dir,
+                    files[files.length - 1]), "rw");
+            try
+            {
+                long last = raf.length() - 1;
+                raf.seek(last);
+                while (raf.read() == 0)
+                    raf.seek(--last);
+                raf.seek(last);
+                raf.write(0x7F);
+            }
+            finally
+            {
+                raf.close();
+            }
+            journal = new TransitionJournal(dir, JournalDurability.PER_EVENT,
+                    128, 10);
+            assertEquals("Damaged record ignored", pong, journal.recover(map)
+                    .get(1L));
+
+            // A map with different transitions does not match.
+            StateTransitionMap otherMap = new StateTransitionMap();
+            State otherStart = otherMap.addState("START", StateType.START,
+                    null);
+            State otherEnd = otherMap.addState("END", StateType.END, null);
+            otherMap.addTransition("START-END", "end", otherStart, null,
+                    otherEnd);
+            otherMap.build();
+            try
+            {
+                journal.recover(otherMap);
+                throw new Exception("Recovered with a different map");
+            }
+            catch (FiniteStateException e)
+            {
+                // OK.
+            }
+            journal.close();
+
+            // States must belong to the map.
+            try
+            {
+                new StateMachine(map, new EntityAdapter(null), otherEnd);
+                throw new Exception("Created machine with unknown state");
+            }
+            catch (FiniteStateException e)
+            {
+                // OK.
+            }
+        }
+        finally
+        {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Confirm that truncating a journal at a checkpoint deletes earlier
+     * segments and that recovery then reads only the remaining segments,
+     * which together with a snapshot taken at the checkpoint restore all
+     * instances.
+     */
+    public void testJournalCheckpoint() throws Exception
+    {
+        StateTransitionMap map = createChainMap(10);
+        File dir = File.createTempFile("journal", null);
+        dir.delete();
+        File snapshot = File.createTempFile("snapshot", null);
+        try
+        {
+            // Move four instances through enough records to fill several
+            // segments.
+            TransitionJournal journal = new TransitionJournal(dir,
+                    JournalDurability.PER_EVENT, 128, 10);
+            StateMachineEngine engine = new StateMachineEngine(map, 6);
+            engine.setJournal(journal);
+            for (int i = 0; i < 4; i++)
+            {
+                engine.applyEvent(i, new StringEvent("next"));
+                engine.applyEvent(i, new StringEvent("next"));
+            }
+            int segments = dir.list().length;
+            assertTrue("Segments rolled", segments > 2);
+
+            // Checkpoint, save the states, and continue.
+            int checkpoint = journal.checkpoint();
+            assertEquals("Empty segment is reused", checkpoint, journal
+                    .checkpoint());
+            StateMachineSnapshot.write(snapshot, engine);
+            engine.applyEvent(1, new StringEvent("next"));
+            engine.applyEvent(5, new StringEvent("next"));
+            try
+            {
+                journal.truncate(checkpoint + 1);
+                throw new Exception("Truncated beyond the current segment");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // OK.
+            }
+            assertEquals("Segments deleted", segments, journal
+                    .truncate(checkpoint));
+            assertEquals("Segments left", 1, dir.list().length);
+            journal.close();
+
+            // Recovery sees only transitions after the checkpoint.
+            journal = new TransitionJournal(dir, JournalDurability.PER_EVENT,
+                    128, 10);
+            Map<Long, State> states = journal.recover(map);
+            assertEquals("Instances recovered", 2, states.size());
+            assertEquals("Instance 1", "S3", states.get(1L).getName());
+            assertEquals("Instance 5", "S1", states.get(5L).getName());
+            journal.close();
+
+            // The snapshot supplies the rest.
+            StateMachineEngine restored = new StateMachineEngine(map, 6);
+            StateMachineSnapshot.read(snapshot, restored);
+            for (Map.Entry<Long, State> entry : states.entrySet())
+                restored.restoreState(entry.getKey().intValue(), entry
+                        .getValue());
+            for (int i = 0; i < 6; i++)
+                assertEquals("Instance " + i, engine.getState(i), restored
+                        .getState(i));
+        }
+        finally
+        {
+            for (File file : dir.listFiles())
+                file.delete();
+            dir.delete();
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Confirm that snapshots restore the states of state machines and engine
+     * instances and are rejected if the map differs or the file is damaged.
+     */
+    public void testSnapshot() throws Exception
+    {
+        // A map with enough states to need two bytes per ordinal.
+        StateTransitionMap map = createChainMap(300);
+        assertEquals("Same structure, same fingerprint", map.getFingerprint(),
+                createChainMap(300).getFingerprint());
+        assertFalse("Different structure", map.getFingerprint() == createChainMap(
+                299).getFingerprint());
+
+        File file = File.createTempFile("snapshot", null);
+        try
+        {
+            // Save and restore state machines.
+            List machines = new ArrayList();
+            for (int i = 0; i < 50; i++)
+            {
+                StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+                for (int j = 0; j < i; j++)
+                    sm.applyEvent(new StringEvent("next"));
+                machines.add(sm);
+            }
+            StateMachineSnapshot.write(file, map, machines);
+            List<State> states = StateMachineSnapshot.read(file, map);
+            assertEquals("Machines restored", 50, states.size());
+            for (int i = 0; i < 50; i++)
+                assertEquals("Machine " + i, ((StateMachine) machines.get(i)).getState(), states
+                        .get(i));
+
+            // Save and restore an engine.
+            StateMachineEngine engine = new StateMachineEngine(map, 1000);
+            for (int i = 0; i < 1000; i++)
+                engine.restoreState(i, map.getStateByName("S" + (i % 298 + 1)));
+            StateMachineSnapshot.write(file, engine);
+            StateMachineEngine restored = new StateMachineEngine(map, 1000);
+            assertEquals("Instances restored", 1000, StateMachineSnapshot.read(
+                    file, restored));
+            for (int i = 0; i < 1000; i++)
+                assertEquals("Instance " + i, engine.getState(i), restored
+                        .getState(i));
+            try
+            {
+                StateMachineSnapshot.read(file, new StateMachineEngine(map, 10));
+                throw new Exception("Restored into a smaller engine");
+            }
+            catch (FiniteStateException e)
+            {
+                // OK.
+            }
+
+            // Reject a different map.
+            try
+            {
+                StateMachineSnapshot.read(file, createChainMap(299));
+                throw new Exception("Restored with a different map");
+            }
+            catch (FiniteStateException e)
+            {
+                // OK.
+            }
+
+            // Reject a damaged file.
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.seek(100);
+                int b = raf.read();
+                raf.seek(100);
+                raf.write(b ^ 0xFF);
+            }
+            finally
+            {
+                raf.close();
+            }
+            try
+            {
+                StateMachineSnapshot.read(file, map);
+                throw new Exception("Restored a damaged snapshot");
+            }
+            catch (IOException e)
+            {
+                // OK.
+            }
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    // Creates a map in which "next" advances through a chain of states.
+    private StateTransitionMap createChainMap(int states) throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State previous = map.addState("START", StateType.START, null);
+        for (int i = 1; i < states - 1; i++)
+        {
+            State state = map.addState("S" + i, StateType.ACTIVE, null);
+            map.addTransition(previous.getName() + "-" + state.getName(),
+                    "next", previous, null, state);
+            previous = state;
+        }
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition(previous.getName() + "-END", "next", previous, null,
+                end);
+        map.build();
+        return map;
+    }
+
+    /**
+     * Confirm that a built map rejects new states and transitions, is not
+     * rebuilt, and that transition lists are read-only.
+     */
+    public void testFrozenMap() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-END", "end", start, null, end);
+        map.build();
+
+        try
+        {
+            map.addState("EXTRA", StateType.ACTIVE, null);
+            throw new Exception("Added state after build");
+        }
+        catch (FiniteStateException e)
+        {
+            // OK.
+        }
+        try
+        {
+            map.addTransition("START-END2", "end", start, null, end);
+            throw new Exception("Added transition after build");
+        }
+        catch (FiniteStateException e)
+        {
+            // OK.
+        }
+
+        // Building again keeps the existing dispatch tables.
+        long fingerprint = map.getFingerprint();
+        map.build();
+        map.buildWithoutValidation();
+        assertEquals("Same fingerprint", fingerprint, map.getFingerprint());
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        sm.applyEvent(new StringEvent("end"));
+        assertEquals("Rebuilt map dispatches", end, sm.getState());
+
+        // Transition lists are read-only.
+        TransitionMatcher matcher = new TransitionMatcher();
+        matcher.addTransition(new Transition("START-END", new PositiveGuard(),
+                start, null, end));
+        assertFalse("Not frozen", matcher.isFrozen());
+        try
+        {
+            matcher.getTransitions().clear();
+            throw new Exception("Changed transition list");
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // OK.
+        }
+        assertEquals("Transition kept", 1, matcher.getTransitions().size());
+    }
+
+    /**
+     * Confirm that states hash consistently with equals, that state maps and
+     * state sets index states by ordinal, and that a state shared by two maps
+     * is found in both.
+     */
+    public void testStateCollections() throws Exception
+    {
+        State a1 = new State("A", StateType.ACTIVE);
+        State a2 = new State("A", StateType.ACTIVE);
+        assertEquals("Equal states", a1, a2);
+        assertEquals("Equal hash codes", a1.hashCode(), a2.hashCode());
+
+        StateTransitionMap map = createChainMap(100);
+        StateTransitionMap other = new StateTransitionMap();
+        State start = map.getStartState();
+        State end = map.getStateByName("END");
+        other.addState(start);
+        other.addState("MIDDLE", StateType.ACTIVE, null);
+        other.addState(end);
+        other.addTransition("START-MIDDLE", "next", start, null, other
+                .getStateByName("MIDDLE"));
+        other.addTransition("MIDDLE-END", "next", other
+                .getStateByName("MIDDLE"), null, end);
+        other.build();
+        assertSame("Shared start state", start, other.getStartState());
+        assertSame("Shared end state", end, other.getStateByName("END"));
+
+        StateMap names = new StateMap(map);
+        assertTrue("Empty map", names.isEmpty());
+        assertNull("No previous value", names.put(start, "START"));
+        for (int i = 1; i < 99; i++)
+        {
+            State state = map.getStateByName("S" + i);
+            assertNull("No previous value", names.put(state, state.getName()));
+        }
+        assertNull("No previous value", names.put(end, "END"));
+        assertEquals("All states mapped", 100, names.size());
+        assertEquals("Lookup by state", "END", names.get(end));
+        assertFalse("Foreign state", names.containsKey(other
+                .getStateByName("MIDDLE")));
+        assertEquals("Removed", "START", names.remove(start));
+        assertNull("Removed state has no value", names.get(start));
+        assertEquals("Keys in ordinal order", map.getStateByName("S1"), names
+                .keys().get(0));
+        try
+        {
+            names.put(other.getStateByName("MIDDLE"), "MIDDLE");
+            throw new Exception("Mapped state from another map");
+        }
+        catch (IllegalArgumentException e)
+        {
+            // OK.
+        }
+        names.clear();
+        assertEquals("Cleared map", 0, names.size());
+
+        StateSet visited = new StateSet(other);
+        assertTrue("Added", visited.add(start));
+        assertFalse("Already present", visited.add(start));
+        assertTrue("Added end", visited.add(end));
+        assertTrue("Contains start", visited.contains(start));
+        assertFalse("Does not contain middle", visited.contains(other
+                .getStateByName("MIDDLE")));
+        assertFalse("Unknown state", visited.contains(map
+                .getStateByName("S50")));
+        assertEquals("Two members", 2, visited.size());
+        assertEquals("Members in ordinal order", Arrays.asList(start, end),
+                visited.toList());
+        assertTrue("Removed", visited.remove(start));
+        assertEquals("One member", 1, visited.size());
+
+        // Collections cannot be created for maps that are not built.
+        try
+        {
+            new StateSet(new StateTransitionMap());
+            throw new Exception("Created set for unbuilt map");
+        }
+        catch (FiniteStateException e)
+        {
+            // OK.
+        }
+    }
+
+    /**
+     * Confirm that entry and exit actions fire in order across a deep state
+     * hierarchy, including for transitions inherited from enclosing states.
+     */
+    public void testDeepHierarchyActions() throws Exception
+    {
+        List fired = new ArrayList();
+
+        // Build two branches of five nested states each beneath ROOT.
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State root = map.addState("ROOT", StateType.ACTIVE, null,
+                createRecorder("ROOT", fired), createRecorder("ROOT", fired));
+        State a = root;
+        State b = root;
+        for (int i = 1; i <= 5; i++)
+        {
+            a = map.addState("A" + i, StateType.ACTIVE, a, createRecorder("A"
+                    + i, fired), createRecorder("A" + i, fired));
+            b = map.addState("B" + i, StateType.ACTIVE, b, createRecorder("B"
+                    + i, fired), createRecorder("B" + i, fired));
+        }
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-A5", "in", start, createRecorder("START-A5",
+                fired), a);
+        map.addTransition("A3-B5", "across", a.getParent().getParent(),
+                createRecorder("A3-B5", fired), b);
+        map.addTransition("ROOT-END", "out", root, createRecorder("ROOT-END",
+                fired), end);
+        map.build();
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        sm.applyEvent(new StringEvent("in"));
+        assertEquals("Entry from outermost to innermost", Arrays.asList(
+                "START-A5", "enter ROOT", "enter A1", "enter A2", "enter A3",
+                "enter A4", "enter A5"), fired);
+
+        // A transition inherited from A3 exits A5 up to A1 but not ROOT.
+        fired.clear();
+        sm.applyEvent(new StringEvent("across"));
+        assertEquals("Current state", b, sm.getState());
+        assertEquals("Exit below common parent, then enter", Arrays.asList(
+                "exit A5", "exit A4", "exit A3", "exit A2", "exit A1", "A3-B5",
+                "enter B1", "enter B2", "enter B3", "enter B4", "enter B5"),
+                fired);
+
+        fired.clear();
+        sm.applyEvent(new StringEvent("out"));
+        assertEquals("Current state", end, sm.getState());
+        assertEquals("Exit from innermost to outermost", Arrays.asList(
+                "exit B5", "exit B4", "exit B3", "exit B2", "exit B1",
+                "exit ROOT", "ROOT-END"), fired);
+    }
+
+    // Creates an action that adds its type and name to a list when fired.
+    private Action createRecorder(final String name, final List fired)
+    {
+        return new Action()
+        {
+            public void doAction(Event ev, Entity e, Transition t,
+                    int actionType)
+            {
+                if (actionType == Action.ENTER_ACTION)
+                    fired.add("enter " + name);
+                else if (actionType == Action.EXIT_ACTION)
+                    fired.add("exit " + name);
+                else
+                    fired.add(name);
+            }
+        };
+    }
+
+    /**
+     * Confirm that a slow action delays only events for its own engine
+     * instance and that instance listeners receive instance ids.
+     */
+    public void testEngineInstanceIsolation() throws Exception
+    {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-END", "slow", start, new Action()
+        {
+            public void doAction(Event message, Entity entity,
+                    Transition transition, int actionType)
+            {
+                entered.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, end);
+        map.addTransition("START-END-FAST", "fast", start, null, end);
+        map.build();
+
+        final StateMachineEngine engine = new StateMachineEngine(map, 1024);
+        final List ids = new Vector();
+        engine.addListener(new InstanceStateChangeListener()
+        {
+            public void stateChanged(Entity entity, State oldState,
+                    State newState)
+            {
+                ids.add("no id");
+            }
+
+            public void stateChanged(int id, Entity entity, State oldState,
+                    State newState)
+            {
+                ids.add(id);
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<?> slow = executor.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    engine.applyEvent(0, new StringEvent("slow"));
+                    return null;
+                }
+            });
+            assertTrue("Slow action started", entered.await(10,
+                    TimeUnit.SECONDS));
+
+            // Instance 256 shares the wait stripe of instance 0.
+            engine.applyEvent(256, new StringEvent("fast"));
+            assertEquals("Other instance ended", end, engine.getState(256));
+            assertEquals("Busy instance readable", start, engine.getState(0));
+
+            // Events for the busy instance wait for the slow action.
+            Future<?> waiting = executor.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    return engine.tryApplyEvent(0, new StringEvent("fast"));
+                }
+            });
+            try
+            {
+                waiting.get(200, TimeUnit.MILLISECONDS);
+                throw new Exception("Event for busy instance did not wait");
+            }
+            catch (TimeoutException e)
+            {
+                // OK.
+            }
+            release.countDown();
+            slow.get(10, TimeUnit.SECONDS);
+            assertEquals("Waiting event applied after slow one",
+                    EventDisposition.UNMATCHED, waiting.get(10,
+                            TimeUnit.SECONDS));
+            assertEquals("Slow instance ended", end, engine.getState(0));
+            assertEquals("Instance ids", Arrays.asList(256, 0), ids);
+        }
+        finally
+        {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Confirm that asynchronous listeners receive changes in order without
+     * delaying event processing and apply their overflow policy when a
+     * listener falls behind.
+     */
+    public void testAsyncListeners() throws Exception
+    {
+        StateTransitionMap map = createChainMap(40);
+
+        // Drop oldest: the machine never waits and only the latest changes
+        // are delivered after the first.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        BlockingRecorder recorder = new BlockingRecorder();
+        AsyncStateChangeListener async = sm.addListener(recorder, 4,
+                ListenerOverflowPolicy.DROP_OLDEST);
+        sm.applyEvent(new StringEvent("next"));
+        assertTrue("Delivery started", recorder.entered.await(10,
+                TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++)
+            sm.applyEvent(new StringEvent("next"));
+        assertEquals("Pending changes", 4, async.getPendingCount());
+        assertEquals("Dropped changes", 6, async.getDroppedCount());
+        recorder.release.countDown();
+        waitForChanges(recorder, 5);
+        assertEquals("Delivered in order", Arrays.asList("START-S1",
+                "S7-S8", "S8-S9", "S9-S10", "S10-S11"), recorder.changes);
+        assertTrue("Removed by wrapped listener", sm.removeListener(recorder));
+
+        // Coalesce: later changes to the machine merge into its latest
+        // pending notification.
+        recorder = new BlockingRecorder();
+        async = sm.addListener(recorder, 2, ListenerOverflowPolicy.COALESCE);
+        sm.applyEvent(new StringEvent("next"));
+        assertTrue("Delivery started", recorder.entered.await(10,
+                TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++)
+            sm.applyEvent(new StringEvent("next"));
+        assertEquals("Coalesced changes", 8, async.getCoalescedCount());
+        assertEquals("Dropped changes", 0, async.getDroppedCount());
+        recorder.release.countDown();
+        waitForChanges(recorder, 3);
+        assertEquals("Coalesced in order", Arrays.asList("S11-S12",
+                "S12-S13", "S13-S22"), recorder.changes);
+        assertTrue("Removed by wrapper", sm.removeListener(async));
+
+        // Block: event processing waits for room in the buffer.
+        final StateMachine blocked = sm;
+        recorder = new BlockingRecorder();
+        async = sm.addListener(recorder, 1, ListenerOverflowPolicy.BLOCK);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<?> future = executor.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    for (int i = 0; i < 3; i++)
+                        blocked.applyEvent(new StringEvent("next"));
+                    return null;
+                }
+            });
+            assertTrue("Delivery started", recorder.entered.await(10,
+                    TimeUnit.SECONDS));
+            try
+            {
+                future.get(200, TimeUnit.MILLISECONDS);
+                throw new Exception("Event processing did not wait");
+            }
+            catch (TimeoutException e)
+            {
+                // OK.
+            }
+            recorder.release.countDown();
+            future.get(10, TimeUnit.SECONDS);
+            waitForChanges(recorder, 3);
+            assertEquals("Nothing lost", Arrays.asList("S22-S23", "S23-S24",
+                    "S24-S25"), recorder.changes);
+            assertEquals("Dropped changes", 0, async.getDroppedCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Confirm that asynchronous listeners coalesce changes by engine instance
+     * rather than entity and keep delivering after the wrapped listener
+     * throws an error.
+     */
+    public void testAsyncListenerSources() throws Exception
+    {
+        // Engine instances have no entities, so they must not be merged.
+        StateMachineEngine engine = new StateMachineEngine(createChainMap(10),
+                2);
+        BlockingRecorder recorder = new BlockingRecorder();
+        AsyncStateChangeListener async = engine.addListener(recorder, 2,
+                ListenerOverflowPolicy.COALESCE);
+        engine.applyEvent(0, new StringEvent("next"));
+        assertTrue("Delivery started", recorder.entered.await(10,
+                TimeUnit.SECONDS));
+        engine.applyEvent(0, new StringEvent("next"));
+        engine.applyEvent(1, new StringEvent("next"));
+        engine.applyEvent(0, new StringEvent("next"));
+        engine.applyEvent(1, new StringEvent("next"));
+        assertEquals("Coalesced changes", 2, async.getCoalescedCount());
+        recorder.release.countDown();
+        waitForChanges(recorder, 3);
+        assertEquals("Coalesced by instance", Arrays.asList("START-S1",
+                "S1-S3", "START-S2"), recorder.changes);
+
+        // An error in the listener ends the delivery task but not delivery.
+        final List changes = new Vector();
+        final Semaphore delivered = new Semaphore(0);
+        StateChangeListener failing = new SampleListener()
+        {
+            public void stateChanged(Entity entity, State oldState,
+                    State newState)
+            {
+                if (changes.isEmpty())
+                {
+                    changes.add("failed");
+                    delivered.release();
+                    throw new Error("Listener failure");
+                }
+                changes.add(oldState.getName() + "-" + newState.getName());
+                delivered.release();
+            }
+        };
+        Executor threads = new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                Thread thread = new Thread(task);
+                thread.setUncaughtExceptionHandler(
+                        new Thread.UncaughtExceptionHandler()
+                        {
+                            public void uncaughtException(Thread t,
+                                    Throwable e)
+                            {
+                                // Expected.
+                            }
+                        });
+                thread.start();
+            }
+        };
+        StateMachine sm = new StateMachine(createChainMap(10),
+                new EntityAdapter(null));
+        async = new AsyncStateChangeListener(failing, 4,
+                ListenerOverflowPolicy.DROP_OLDEST, threads);
+        sm.addListener(async);
+        sm.applyEvent(new StringEvent("next"));
+        assertTrue("First change delivered", delivered.tryAcquire(10,
+                TimeUnit.SECONDS));
+        sm.applyEvent(new StringEvent("next"));
+        assertTrue("Delivery resumed after error", delivered.tryAcquire(10,
+                TimeUnit.SECONDS));
+        assertEquals("Changes", Arrays.asList("failed", "S1-S2"), changes);
+    }
+
+    // Records changes as "old-new" names, holding up the first delivery until
+    // released.
+    static class BlockingRecorder implements StateChangeListener
+    {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List           changes = new Vector();
+        final Semaphore      delivered = new Semaphore(0);
+
+        public void stateChanged(Entity entity, State oldState, State newState)
+        {
+            entered.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            changes.add(oldState.getName() + "-" + newState.getName());
+            delivered.release();
+        }
+    }
+
+    // Waits for a new recorder to receive the given number of changes.
+    private void waitForChanges(BlockingRecorder recorder, int count)
+            throws Exception
+    {
+        assertTrue("Changes delivered", recorder.delivered.tryAcquire(count,
+                10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Confirm that listeners can be added and removed concurrently and while
+     * another thread holds the state machine monitor.
+     */
+    public void testListenerRegistration() throws Exception
+    {
+        final StateMachine sm = new StateMachine(createChainMap(10),
+                new EntityAdapter(null));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            // Registration does not wait for the monitor.
+            final CountDownLatch held = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            executor.submit(new Callable<Object>()
+            {
+                public Object call() throws Exception
+                {
+                    synchronized (sm)
+                    {
+                        held.countDown();
+                        release.await();
+                    }
+                    return null;
+                }
+            });
+            assertTrue("Monitor held", held.await(10, TimeUnit.SECONDS));
+            SampleListener listener = new SampleListener();
+            sm.addListener(listener);
+            assertTrue("Removed while monitor held", sm
+                    .removeListener(listener));
+            release.countDown();
+
+            // Concurrent registrations do not lose updates.
+            List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 4; t++)
+            {
+                futures.add(executor.submit(new Callable<Boolean>()
+                {
+                    public Boolean call() throws Exception
+                    {
+                        for (int i = 0; i < 1000; i++)
+                        {
+                            SampleListener l = new SampleListener();
+                            sm.addListener(l);
+                            if (!sm.removeListener(l))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures)
+                assertTrue("All listeners removed", future.get(10,
+                        TimeUnit.SECONDS));
+
+            sm.addListener(listener);
+            sm.applyEvent(new StringEvent("next"));
+            assertEquals("Single listener notified", 1, listener.getChanges());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Confirm that state futures complete when the machine reaches the
+     * expected state or a substate of it, the error state if requested, or
+     * the timeout.
+     */
+    public void testStateFutures() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State online = map.addState("ONLINE", StateType.ACTIVE, null);
+        State sync = map.addState("SYNC", StateType.ACTIVE, online);
+        State ready = map.addState("READY", StateType.ACTIVE, online);
+        State error = map.addState("ERROR", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.setErrorState(error);
+        map.addTransition("START-SYNC", "go", start, null, sync);
+        map.addTransition("SYNC-READY", "next", sync, null, ready);
+        map.addTransition("ONLINE-ERROR", "fail", online, null, error);
+        map.addTransition("ONLINE-END", "end", online, null, end);
+        map.addTransition("ERROR-END", "end", error, null, end);
+        map.build();
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        CompletableFuture parent = sm.stateFuture(online);
+        CompletableFuture substate = sm.stateFuture(ready);
+        CompletableFuture cancelled = sm.stateFuture(end);
+        CompletableFuture timed = sm.awaitState(end, 50,
+                TimeUnit.MILLISECONDS);
+        assertFalse("Not yet online", parent.isDone());
+        assertTrue("Cancelled", cancelled.cancel(true));
+        try
+        {
+            timed.get(10, TimeUnit.SECONDS);
+            throw new Exception("Wait did not time out");
+        }
+        catch (ExecutionException e)
+        {
+            assertTrue("Timed out", e.getCause() instanceof TimeoutException);
+        }
+
+        // Entering a substate completes waits for the enclosing state.
+        sm.applyEvent(new StringEvent("go"));
+        assertEquals("Online through substate", sync, parent.getNow(null));
+        assertFalse("Not yet ready", substate.isDone());
+        assertEquals("Already in state", sync, sm.stateFuture(online)
+                .getNow(null));
+        sm.applyEvent(new StringEvent("next"));
+        assertEquals("Ready", ready, substate.getNow(null));
+
+        // Entering the error state ends only waits that ask for it.
+        CompletableFuture endOnError = sm.stateFuture(end, true);
+        CompletableFuture endOnly = sm.stateFuture(end);
+        CompletableFuture awaited = sm.awaitState(end, 10, TimeUnit.SECONDS);
+        sm.applyEvent(new StringEvent("fail"));
+        assertEquals("Ended on error", error, endOnError.getNow(null));
+        assertEquals("Await ended on error", error, awaited.getNow(null));
+        assertFalse("Still waiting for end", endOnly.isDone());
+        sm.applyEvent(new StringEvent("end"));
+        assertEquals("Reached end", end, endOnly.get(10, TimeUnit.SECONDS));
+
+        // States that are not in the map cannot be awaited.
+        try
+        {
+            sm.stateFuture(new State("OTHER", StateType.ACTIVE)).getNow(null);
+            throw new Exception("Waited for unknown state");
+        }
+        catch (CompletionException e)
+        {
+            assertTrue("Unknown state",
+                    e.getCause() instanceof FiniteStateException);
+        }
+    }
+
+    /**
+     * Confirm that timeout transitions fire after a state has been occupied
+     * for the timeout, are not restarted by moves between substates, are
+     * cancelled when the state is left, and follow the error state path.
+     */
+    public void testTimeoutTransitions() throws Exception
+    {
+        SampleAction waitingExit = new SampleAction();
+        SampleAction timedOutEntry = new SampleAction();
+        SampleAction failing = new SampleAction();
+        failing.setFailure();
+
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State waiting = map.addState("WAITING", StateType.ACTIVE, null, null,
+                waitingExit);
+        State w1 = map.addState("W1", StateType.ACTIVE, waiting);
+        State w2 = map.addState("W2", StateType.ACTIVE, waiting);
+        State timedOut = map.addState("TIMEDOUT", StateType.ACTIVE, null,
+                timedOutEntry, null);
+        State error = map.addState("ERROR", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.setErrorState(error);
+        map.addTransition("START-W1", "go", start, null, w1);
+        map.addTransition("W1-W2", "next", w1, null, w2);
+        map.addTransition("WAITING-END", "done", waiting, null, end);
+        map.addTimeoutTransition("WAITING-TIMEDOUT", waiting, 200,
+                TimeUnit.MILLISECONDS, null, timedOut);
+        map.addTimeoutTransition("TIMEDOUT-END", timedOut, 20,
+                TimeUnit.MILLISECONDS, failing, end);
+        map.addTimeout(error, 20, TimeUnit.MILLISECONDS, new StringEvent(
+                "recover"));
+        map.addTransition("ERROR-END", "recover", error, null, end);
+        map.build();
+
+        HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS,
+                64);
+        HashedWheelTimer idle = new HashedWheelTimer(1, TimeUnit.HOURS, 8);
+        try
+        {
+            // Moving between substates does not restart the timeout. The
+            // timer is held until the move is done, and the move happens with
+            // a timer that never fires, so a restarted timeout would never
+            // expire. The failing timeout action then sends the machine to
+            // the error state, whose own timeout ends it.
+            StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+            CompletableFuture timedOutFuture = sm.stateFuture(timedOut);
+            CompletableFuture errorFuture = sm.stateFuture(error);
+            CountDownLatch hold = holdTimer(timer);
+            sm.setTimer(timer);
+            sm.applyEvent(new StringEvent("go"));
+            sm.setTimer(idle);
+            sm.applyEvent(new StringEvent("next"));
+            sm.setTimer(timer);
+            hold.countDown();
+            assertEquals("Timed out", timedOut, timedOutFuture.get(10,
+                    TimeUnit.SECONDS));
+            assertEquals("Exit action fired", 1, waitingExit.getCount());
+            assertEquals("Entry action fired", 1, timedOutEntry.getCount());
+            assertEquals("Failed timeout action", error, errorFuture.get(10,
+                    TimeUnit.SECONDS));
+            assertEquals("Error state timeout", end, sm.stateFuture(end).get(
+                    10, TimeUnit.SECONDS));
+
+            // Leaving the state cancels the timeout. Once a task scheduled
+            // after the timeout has run, an expiration would already be in
+            // the mailbox ahead of the probe event.
+            StateMachine cancelled = new StateMachine(map, new EntityAdapter(
+                    null));
+            cancelled.setTimer(timer);
+            cancelled.applyEvent(new StringEvent("go"));
+            cancelled.applyEvent(new StringEvent("done"));
+            final CountDownLatch passed = new CountDownLatch(1);
+            timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    passed.countDown();
+                }
+            }, 250, TimeUnit.MILLISECONDS);
+            assertTrue("Timer passed timeout", passed.await(10,
+                    TimeUnit.SECONDS));
+            try
+            {
+                cancelled.submit(new StringEvent("probe")).get(10,
+                        TimeUnit.SECONDS);
+            }
+            catch (ExecutionException e)
+            {
+                // Expected, there is no transition from the end state.
+            }
+            assertEquals("Still at end", end, cancelled.getState());
+            assertEquals("Exit action fired once more", 2, waitingExit
+                    .getCount());
+            assertEquals("No further timeout", 1, timedOutEntry.getCount());
+        }
+        finally
+        {
+            timer.stop();
+            idle.stop();
+        }
+    }
+
+    // Blocks the timer thread until the returned latch is released, so that
+    // no timeout scheduled meanwhile expires before then.
+    private CountDownLatch holdTimer(HashedWheelTimer timer)
+    {
+        final CountDownLatch hold = new CountDownLatch(1);
+        timer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    hold.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+        return hold;
+    }
+
+    /**
+     * Confirm that timeouts of the state in which a state machine starts are
+     * armed, both for new state machines and for those restored in a given
+     * state.
+     */
+    public void testInitialStateTimeouts() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State waiting = map.addState("WAITING", StateType.ACTIVE, null);
+        State w1 = map.addState("W1", StateType.ACTIVE, waiting);
+        State end = map.addState("END", StateType.END, null);
+        map.addTimeoutTransition("START-W1", start, 50,
+                TimeUnit.MILLISECONDS, null, w1);
+        map.addTimeoutTransition("WAITING-END", waiting, 50,
+                TimeUnit.MILLISECONDS, null, end);
+        map.build();
+
+        // A new machine times out of the start state and then out of the
+        // enclosing state of its substate.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        assertEquals("Start state timed out", end, sm.stateFuture(end).get(
+                10, TimeUnit.SECONDS));
+
+        // A restored machine arms the timeouts of enclosing states as well.
+        StateMachine restored = new StateMachine(map, new EntityAdapter(null),
+                w1);
+        assertEquals("Restored state timed out", end, restored.stateFuture(
+                end).get(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Confirm that the hashed wheel timer runs tasks after their delay,
+     * including delays longer than one turn of the wheel, and that cancelled
+     * tasks do not run.
+     */
+    public void testHashedWheelTimer() throws Exception
+    {
+        HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS,
+                8);
+        try
+        {
+            final CountDownLatch fired = new CountDownLatch(100);
+            final long[] firedAt = new long[100];
+            final long begin = System.nanoTime();
+            for (int i = 0; i < 100; i++)
+            {
+                final int index = i;
+                timer.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        firedAt[index] = System.nanoTime() - begin;
+                        fired.countDown();
+                    }
+                }, i, TimeUnit.MILLISECONDS);
+            }
+
+            final CountDownLatch cancelledRun = new CountDownLatch(1);
+            HashedWheelTimer.Timeout cancelled = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    cancelledRun.countDown();
+                }
+            }, 20, TimeUnit.MILLISECONDS);
+            assertTrue("Cancelled", cancelled.cancel());
+            assertFalse("Cannot cancel twice", cancelled.cancel());
+
+            assertTrue("All tasks ran", fired.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 100; i++)
+            {
+                assertTrue("Task ran after its delay: " + i, firedAt[i] >= i
+                        * 1000000L);
+            }
+            assertFalse("Cancelled task did not run", cancelledRun.await(50,
+                    TimeUnit.MILLISECONDS));
+            assertTrue("Cancelled", cancelled.isCancelled());
+        }
+        finally
+        {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Confirm that batches of events apply in order, stop at the first event
+     * that cannot be applied, and notify listeners once per change or once
+     * per batch when notifications are coalesced.
+     */
+    public void testBatchEvents() throws Exception
+    {
+        StateTransitionMap map = createChainMap(10);
+        State s3 = map.getStateByName("S3");
+        State s5 = map.getStateByName("S5");
+        Event[] events = new Event[10];
+        for (int i = 0; i < events.length; i++)
+            events[i] = new StringEvent("next");
+        events[8] = new StringEvent("bogus");
+
+        // Each change is reported when notifications are not coalesced.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        SampleListener listener = new SampleListener();
+        sm.addListener(listener);
+        EventBatchResult result = sm.applyEvents(events, 0, 3);
+        assertTrue("Complete", result.isComplete());
+        assertEquals("Processed", 3, result.getProcessed());
+        assertEquals("Result state", s3, result.getState());
+        assertEquals("Listener calls", 3, listener.getChanges());
+
+        // Coalesced batches report only the net change.
+        CompletableFuture reached = sm.stateFuture(s5);
+        result = sm.applyEvents(events, 3, 5, true);
+        assertEquals("Coalesced state", s5, sm.getState());
+        assertEquals("Coalesced listener calls", 4, listener.getChanges());
+        assertEquals("Waiter completed", s5, reached.getNow(null));
+        result = sm.applyEvents(events, 0, 0, true);
+        assertEquals("Empty batch", 0, result.getProcessed());
+        assertEquals("No change reported", 4, listener.getChanges());
+
+        // Processing stops at an event without a transition.
+        result = sm.applyEvents(events, 5, 10, true);
+        assertFalse("Incomplete", result.isComplete());
+        assertFalse("Not rolled back", result.isRolledBack());
+        assertFalse("Not failed", result.isFailed());
+        assertTrue("No transition",
+                result.getException() instanceof TransitionNotFoundException);
+        assertEquals("Processed before failure", 3, result.getProcessed());
+        assertEquals("State at failure", map.getStateByName("S8"), sm
+                .getState());
+        assertEquals("Net change reported", 5, listener.getChanges());
+
+        // Iterable batches work the same way, including in lock-free mode.
+        sm = new StateMachine(map, new EntityAdapter(null));
+        sm.setLockFreeEnabled(true);
+        listener = new SampleListener();
+        sm.addListener(listener);
+        List<Event> list = new ArrayList<Event>();
+        for (int i = 0; i < 9; i++)
+            list.add(new StringEvent("next"));
+        result = sm.applyEvents(list, true);
+        assertTrue("Iterable complete", result.isComplete());
+        assertEquals("Iterable processed", 9, result.getProcessed());
+        assertTrue("Reached end", sm.isEndState());
+        assertEquals("Iterable listener calls", 1, listener.getChanges());
+
+        try
+        {
+            sm.applyEvents(events, 5, 11);
+            throw new Exception("Accepted invalid range");
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+        }
+    }
+
+    /**
+     * Confirm that forward chaining follows transitions matched by the same
+     * event until none matches, and that cyclic chains stop at the chain
+     * depth limit.
+     */
+    public void testForwardChaining() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State recovery = map.addState("RECOVERY", StateType.ACTIVE, null);
+        State sync = map.addState("SYNC", StateType.ACTIVE, null);
+        State online = map.addState("ONLINE", StateType.ACTIVE, null);
+        State ping = map.addState("PING", StateType.ACTIVE, null);
+        State pong = map.addState("PONG", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-RECOVERY", "go", start, null, recovery);
+        map.addTransition("RECOVERY-SYNC", "go", recovery, null, sync);
+        map.addTransition("SYNC-ONLINE", "go", sync, null, online);
+        map.addTransition("ONLINE-PING", "loop", online, null, ping);
+        map.addTransition("PING-PONG", "loop", ping, null, pong);
+        map.addTransition("PONG-PING", "loop", pong, null, ping);
+        map.addTransition("ONLINE-END", "end", online, null, end);
+        map.addTransition("PING-END", "end", ping, null, end);
+        map.addTransition("PONG-END", "end", pong, null, end);
+        map.build();
+
+        // Chains run to completion without an error at the end of the chain.
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        SampleListener listener = new SampleListener();
+        sm.addListener(listener);
+        sm.setForwardChainEnabled(true);
+        sm.applyEvent(new StringEvent("go"));
+        assertEquals("Chained to end", online, sm.getState());
+        assertEquals("Each change reported", 3, listener.getChanges());
+
+        // The first transition still requires a match.
+        try
+        {
+            sm.applyEvent(new StringEvent("go"));
+            throw new Exception("Applied event without a transition");
+        }
+        catch (TransitionNotFoundException e)
+        {
+        }
+
+        // Cycles stop at the chain depth limit.
+        assertEquals("Default depth", StateMachine.DEFAULT_MAX_CHAIN_DEPTH, sm
+                .getMaxChainDepth());
+        sm.setMaxChainDepth(5);
+        try
+        {
+            sm.applyEvent(new StringEvent("loop"));
+            throw new Exception("Cyclic chain did not stop");
+        }
+        catch (TransitionNotFoundException e)
+        {
+            throw e;
+        }
+        catch (FiniteStateException e)
+        {
+        }
+        assertEquals("Stopped after chain limit", pong, sm.getState());
+        assertEquals("Chain limit changes", 9, listener.getChanges());
+
+        // The chain limit does not count toward the transition limit.
+        sm.setMaxTransitions(20);
+        sm.applyEvent(new StringEvent("end"));
+        assertTrue("Reached end", sm.isEndState());
+    }
+
+    /**
+     * Confirm that unmatched events can be applied without exceptions and that
+     * events ignored by a state or an enclosing state are discarded without
+     * evaluating guards.
+     */
+    public void testIgnoredEvents() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State online = map.addState("ONLINE", StateType.ACTIVE, null);
+        State ready = map.addState("READY", StateType.ACTIVE, online);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-READY", "go", start, null, ready);
+        Transition readyEnd = map.addTransition("READY-END", "end", ready,
+                null, end);
+        map.addTransition("READY-SAMPLE", new Guard()
+        {
+            public boolean accept(Event message, Entity entity, State state)
+            {
+                if (message instanceof SampleEvent)
+                    throw new IllegalStateException("Guard evaluated");
+                return false;
+            }
+        }, ready, null, end);
+        map.addIgnoredEvent(online, SampleEvent.class);
+        map.build();
+
+        assertNull("Unmatched", map.findTransition(start, new StringEvent(
+                "end"), null));
+        assertEquals("Matched", readyEnd, map.findTransition(ready,
+                new StringEvent("end"), null));
+        assertTrue("Ignored in substate", map.isIgnored(ready,
+                new SampleEvent()));
+        assertFalse("Not ignored elsewhere", map.isIgnored(start,
+                new SampleEvent()));
+        assertNull("Ignored events have no transition", map.findTransition(
+                ready, new SampleEvent(), null));
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        SampleListener listener = new SampleListener();
+        sm.addListener(listener);
+        assertEquals("Unmatched status", EventDisposition.UNMATCHED, sm
+                .tryApplyEvent(new StringEvent("end")));
+        assertEquals("Applied status", EventDisposition.APPLIED, sm
+                .tryApplyEvent(new StringEvent("go")));
+
+        // Ignored events never reach the guard, including subclasses.
+        assertEquals("Ignored status", EventDisposition.IGNORED, sm
+                .tryApplyEvent(new SampleEvent()));
+        sm.applyEvent(new SampleEvent()
+        {
+        });
+        assertEquals("State unchanged", ready, sm.getState());
+        assertEquals("Listener calls", 1, listener.getChanges());
+
+        // Lock-free machines report the same status.
+        sm.setLockFreeEnabled(true);
+        assertEquals("Lock-free ignored", EventDisposition.IGNORED, sm
+                .tryApplyEvent(new SampleEvent()));
+        assertEquals("Lock-free unmatched", EventDisposition.UNMATCHED, sm
+                .tryApplyEvent(new StringEvent("go")));
+        try
+        {
+            sm.applyEvent(new StringEvent("go"));
+            throw new Exception("Applied unmatched event");
+        }
+        catch (TransitionNotFoundException e)
+        {
+            assertEquals("Exception state", ready, e.getState());
+        }
+        sm.applyEvent(new StringEvent("end"));
+        assertTrue("Reached end", sm.isEndState());
+
+        // Engines discard ignored events as well.
+        StateMachineEngine engine = new StateMachineEngine(map, 2);
+        engine.applyEvent(0, new StringEvent("go"));
+        engine.applyEvent(0, new SampleEvent());
+        assertEquals("Engine ignored", EventDisposition.IGNORED, engine
+                .tryApplyEvent(0, new SampleEvent()));
+        assertEquals("Engine unmatched", EventDisposition.UNMATCHED, engine
+                .tryApplyEvent(1, new SampleEvent()));
+        assertEquals("Engine state", ready, engine.getState(0));
+    }
+
+    /**
+     * Confirm that typed and ignored events are still dispatched correctly
+     * once more event classes have been seen than a state caches.
+     */
+    public void testManyEventClasses() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition("START-END", "end", start, null, end);
+        map.addTransition("START-START", Event.class, start, null, start);
+        map.addIgnoredEvent(start, SampleEvent.class);
+        map.build();
+
+        // Copies of SampleEvent from other loaders are distinct classes that
+        // are not ignored.
+        InputStream in = SampleEvent.class
+                .getResourceAsStream("SampleEvent.class");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int length;
+        while ((length = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, length);
+        in.close();
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        for (int i = 0; i < 100; i++)
+        {
+            Class<?> copy = new CopyLoader(getClass().getClassLoader())
+                    .define(SampleEvent.class.getName(), bytes.toByteArray());
+            assertEquals("Typed transition " + i, EventDisposition.APPLIED, sm
+                    .tryApplyEvent((Event) copy.newInstance()));
+        }
+
+        // Classes seen after the cache is full are still ignored or matched.
+        assertEquals("Ignored", EventDisposition.IGNORED, sm
+                .tryApplyEvent(new SampleEvent()));
+        sm.applyEvent(new StringEvent("end"));
+        assertTrue("Reached end", sm.isEndState());
+    }
+
+    /**
+     * Confirm that transitions whose class overrides accept() decide for
+     * themselves even when their guards could be indexed.
+     */
+    public void testOverriddenTransitionAccept() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State wrong = map.addState("WRONG", StateType.END, null);
+        State right = map.addState("RIGHT", StateType.END, null);
+
+        // A regex transition that never accepts and a typed transition that
+        // also accepts a string event.
+        map.addTransition(new Transition("NEVER", new RegexGuard("go"), start,
+                null, wrong)
+        {
+            public boolean accept(Event event, Entity entity)
+            {
+                return false;
+            }
+        });
+        map.addTransition("GO", "go", start, null, right);
+        map.addTransition(new Transition("TYPED", new EventTypeGuard(
+                SampleEvent.class), start, null, right)
+        {
+            public boolean accept(Event event, Entity entity)
+            {
+                return "typed".equals(event.getData())
+                        || super.accept(event, entity);
+            }
+        });
+        map.build();
+
+        StateMachine sm = new StateMachine(map, new EntityAdapter(null));
+        sm.applyEvent(new StringEvent("go"));
+        assertEquals("Overridden regex transition", right, sm.getState());
+        sm = new StateMachine(map, new EntityAdapter(null));
+        sm.applyEvent(new StringEvent("typed"));
+        assertEquals("Overridden typed transition", right, sm.getState());
+        sm = new StateMachine(map, new EntityAdapter(null));
+        sm.applyEvent(new SampleEvent());
+        assertEquals("Typed transition", right, sm.getState());
+    }
+
+    // Defines classes from bytes so that each loader holds its own copy.
+    private static class CopyLoader extends ClassLoader
+    {
+        CopyLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes)
+        {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Confirm that source generated from a map compiles and builds a map with
+     * the same structure, using guards supplied for transitions whose guards
+     * cannot be generated.
+     */
+    public void testGeneratedSource() throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State online = map.addState("ONLINE", StateType.ACTIVE, null);
+        State ready = map.addState("READY", StateType.ACTIVE, online);
+        State error = map.addState("ERROR", StateType.ACTIVE, null);
+        State end = map.addState("END", StateType.END, null);
+        map.setErrorState(error);
+        map.addTransition("START-READY", "go|\\\"start\\\"", start, null,
+                ready);
+        map.addTransition("READY-END", SampleEvent.class, ready, null, end);
+        Guard stopGuard = new Guard()
+        {
+            public boolean accept(Event message, Entity entity, State state)
+            {
+                return "stop".equals(message.getData());
+            }
+        };
+        map.addTransition("ONLINE-START", stopGuard, online, null, start);
+        map.addTimeoutTransition("READY-TIMEOUT", ready, 1, TimeUnit.HOURS,
+                null, end);
+        map.addTimeout(start, 5, TimeUnit.MINUTES, new StringEvent("late"));
+        map.addTransition("START-LATE", "late", start, null, error);
+        map.addTransition("ERROR-START", "reset", error, null, start);
+        map.addIgnoredEvent(start, SampleEvent.class);
+        map.build();
+
+        // Generate and compile the source.
+        String source = StateMapSourceGenerator.generate(map, "generated",
+                "SampleMap");
+        File dir = File.createTempFile("generated", "");
+        dir.delete();
+        try
+        {
+            assertUngeneratable(null, "Unnamed transition");
+            assertUngeneratable("none", "Duplicate transition name");
+
+            File sourceFile = new File(dir, "generated/SampleMap.java");
+            sourceFile.getParentFile().mkdirs();
+            FileWriter writer = new FileWriter(sourceFile);
+            writer.write(source);
+            writer.close();
+            int status = ToolProvider.getSystemJavaCompiler().run(null, null,
+                    null, "-d", dir.getPath(), "-classpath",
+                    System.getProperty("java.class.path"),
+                    sourceFile.getPath());
+            assertEquals("Compiled: " + source, 0, status);
+
+            ClassLoader loader = new URLClassLoader(new URL[]{dir.toURI()
+                    .toURL()}, getClass().getClassLoader());
+            Object generated = loader.loadClass("generated.SampleMap")
+                    .getConstructor().newInstance();
+            Method build = generated.getClass().getMethod("build");
+            try
+            {
+                build.invoke(generated);
+                throw new Exception("Built map without supplied guard");
+            }
+            catch (InvocationTargetException e)
+            {
+                assertTrue("Missing guard",
+                        e.getCause() instanceof FiniteStateException);
+            }
+            generated.getClass().getMethod("onGuard", String.class,
+                    Guard.class).invoke(generated, "ONLINE-START", stopGuard);
+            StateTransitionMap copy = (StateTransitionMap) build
+                    .invoke(generated);
+            assertEquals("Fingerprint", map.getFingerprint(), copy
+                    .getFingerprint());
+            assertEquals("Error state", "ERROR", copy.getErrorState()
+                    .getName());
+
+            StateMachine sm = new StateMachine(copy, new EntityAdapter(null));
+            assertEquals("Ignored", EventDisposition.IGNORED, sm
+                    .tryApplyEvent(new SampleEvent()));
+            sm.applyEvent(new StringEvent("\"start\""));
+            assertEquals("Regex guard", "ONLINE:READY", sm.getState()
+                    .getName());
+            sm.applyEvent(new StringEvent("stop"));
+            assertEquals("Supplied guard", copy.getStartState(), sm
+                    .getState());
+            sm.applyEvent(new StringEvent("go"));
+            sm.applyEvent(new SampleEvent());
+            assertTrue("Event type guard", sm.isEndState());
+        }
+        finally
+        {
+            deleteTree(dir);
+        }
+    }
+
+    // Confirms that source cannot be generated for a map in which a second
+    // transition has the given name.
+    private void assertUngeneratable(String name, String message)
+            throws Exception
+    {
+        StateTransitionMap map = new StateTransitionMap();
+        State start = map.addState("START", StateType.START, null);
+        State end = map.addState("END", StateType.END, null);
+        map.addTransition(new Transition(new RegexGuard("loop"), start, null,
+                start));
+        map.addTransition(new Transition(name, new RegexGuard("end"), start,
+                null, end));
+        map.build();
+        try
+        {
+            StateMapSourceGenerator.generate(map, "generated", "SampleMap");
+            throw new Exception(message + " accepted");
+        }
+        catch (FiniteStateException e)
+        {
+            // OK.
+        }
+    }
+
+    // Deletes a file or a directory tree.
+    private void deleteTree(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                deleteTree(child);
+        }
+        file.delete();
+    }
+
     // Clear an action array making all actions illegal.
     private void clearActionArray(SampleAction[] actions)
     {